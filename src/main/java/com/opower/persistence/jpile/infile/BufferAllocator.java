@@ -0,0 +1,59 @@
+package com.opower.persistence.jpile.infile;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Allocates the buffers used by an {@link InfileDataBuffer}. Buffers are handed back with {@link #release(ByteBuffer)}
+ * when the infile data buffer is closed, which allows implementations to reuse them.
+ * <p/>
+ * Implementations must be safe for use by multiple threads when they are shared between loaders.
+ *
+ * @author agent
+ * @see PooledBufferAllocator
+ * @since 1.7.12
+ */
+public interface BufferAllocator {
+    /**
+     * Allocates buffers on the Java heap. This is the default.
+     */
+    BufferAllocator HEAP = new BufferAllocator() {
+        @Override
+        public ByteBuffer allocate(int capacity) {
+            return ByteBuffer.allocate(capacity);
+        }
+
+        @Override
+        public void release(ByteBuffer buffer) {
+        }
+    };
+
+    /**
+     * Allocates direct buffers, which keep large infile buffers off the Java heap and out of garbage collection. Direct
+     * buffers are expensive to allocate, so this is best combined with a {@link PooledBufferAllocator}.
+     */
+    BufferAllocator DIRECT = new BufferAllocator() {
+        @Override
+        public ByteBuffer allocate(int capacity) {
+            return ByteBuffer.allocateDirect(capacity);
+        }
+
+        @Override
+        public void release(ByteBuffer buffer) {
+        }
+    };
+
+    /**
+     * Allocates a cleared buffer.
+     *
+     * @param capacity the capacity in bytes
+     * @return a buffer with a position of zero and a limit equal to its capacity
+     */
+    ByteBuffer allocate(int capacity);
+
+    /**
+     * Hands back a buffer that is no longer used. The buffer must not be used by the caller afterwards.
+     *
+     * @param buffer the buffer, previously returned by {@link #allocate(int)}
+     */
+    void release(ByteBuffer buffer);
+}
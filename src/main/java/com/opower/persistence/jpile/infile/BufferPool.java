@@ -0,0 +1,91 @@
+package com.opower.persistence.jpile.infile;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A pool of buffers under a memory budget, meant to be shared by all tables of a loader, or by all loaders. Released
+ * buffers are kept for reuse as long as the buffers in use and the pooled buffers together fit in the budget, and are
+ * handed back to the underlying allocator otherwise.
+ * <p/>
+ * Allocation never blocks or fails when the budget is exceeded. Instead, loaders check {@link #isExceeded()} and flush
+ * some of their buffers, which is what {@link com.opower.persistence.jpile.loader.HierarchicalInfileObjectLoader} does
+ * when it uses a pool. This keeps loaders that share a pool from waiting on each other, at the cost of going over the
+ * budget by about one infile buffer per loader. Infile buffers should be created to be allocated on demand, see
+ * {@link InfileDataBuffer#InfileDataBuffer(java.nio.charset.Charset, int, int, BufferAllocator, int, boolean)}, so
+ * that they are only held while they have rows.
+ * <p/>
+ * Instances of this class are safe for use by multiple threads.
+ *
+ * @author agent
+ * @since 1.7.12
+ */
+public class BufferPool extends PooledBufferAllocator {
+    private final long maxBytes;
+    // Written while holding the pool's lock, read without it by isExceeded() and the getters
+    private volatile long usedBytes = 0;
+    private volatile long pooledBytes = 0;
+
+    /**
+     * Creates a new pool.
+     *
+     * @param allocator allocates new buffers when there are none to reuse
+     * @param maxBytes the memory budget in bytes for the buffers in use and the pooled buffers
+     */
+    public BufferPool(BufferAllocator allocator, long maxBytes) {
+        super(allocator, Integer.MAX_VALUE);
+        Preconditions.checkArgument(maxBytes > 0, "maxBytes (%s) must be positive", maxBytes);
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    protected void allocated(int capacity, boolean reused) {
+        if (reused) {
+            this.pooledBytes -= capacity;
+        }
+        this.usedBytes += capacity;
+    }
+
+    /**
+     * Keeps a released buffer as long as the buffers in use and the pooled buffers together fit in the budget.
+     */
+    @Override
+    protected boolean released(int capacity, int pooledBuffers) {
+        this.usedBytes -= capacity;
+        if (this.usedBytes + this.pooledBytes + capacity > this.maxBytes) {
+            return false;
+        }
+        this.pooledBytes += capacity;
+        return true;
+    }
+
+    /**
+     * Checks whether the buffers in use take more memory than the budget allows.
+     *
+     * @return true if buffers should be flushed to release memory
+     */
+    public boolean isExceeded() {
+        return this.usedBytes > this.maxBytes;
+    }
+
+    public long getMaxBytes() {
+        return this.maxBytes;
+    }
+
+    /**
+     * Gets the memory taken by buffers that have been allocated and not released.
+     *
+     * @return the capacity of all buffers in use, in bytes
+     */
+    public long getUsedBytes() {
+        return this.usedBytes;
+    }
+
+    /**
+     * Gets the memory taken by buffers that are waiting to be reused.
+     *
+     * @return the capacity of all pooled buffers, in bytes
+     */
+    public long getPooledBytes() {
+        return this.pooledBytes;
+    }
+}
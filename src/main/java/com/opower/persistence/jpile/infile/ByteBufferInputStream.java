@@ -0,0 +1,70 @@
+package com.opower.persistence.jpile.infile;
+
+import com.google.common.base.Preconditions;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An input stream that reads the remaining bytes of a buffer. Unlike a {@link java.io.ByteArrayInputStream} this works for
+ * direct buffers, which have no backing array. Reading advances the position of the buffer.
+ * <p/>
+ * Instances of this class are not safe for use by multiple threads.
+ *
+ * @author agent
+ * @since 1.7.12
+ */
+public class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    public ByteBufferInputStream(ByteBuffer buffer) {
+        Preconditions.checkNotNull(buffer, "buffer cannot be null");
+        this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+        return this.buffer.hasRemaining() ? this.buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+        Preconditions.checkPositionIndexes(offset, offset + length, bytes.length);
+        if (length == 0) {
+            return 0;
+        }
+        if (!this.buffer.hasRemaining()) {
+            return -1;
+        }
+        int count = Math.min(length, this.buffer.remaining());
+        this.buffer.get(bytes, offset, count);
+        return count;
+    }
+
+    @Override
+    public long skip(long n) {
+        int count = (int) Math.max(0, Math.min(n, this.buffer.remaining()));
+        this.buffer.position(this.buffer.position() + count);
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return this.buffer.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        this.buffer.mark();
+    }
+
+    @Override
+    public synchronized void reset() {
+        this.buffer.reset();
+    }
+}
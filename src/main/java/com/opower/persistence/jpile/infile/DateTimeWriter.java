@@ -0,0 +1,168 @@
+package com.opower.persistence.jpile.infile;
+
+import org.joda.time.DateTimeZone;
+
+import javax.persistence.TemporalType;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes dates and times as ASCII digits straight into a buffer in the formats MySQL expects: {@code yyyy-MM-dd} for
+ * {@link TemporalType#DATE}, {@code HH:mm:ss} for {@link TemporalType#TIME} and {@code yyyy-MM-dd HH:mm:ss} for
+ * {@link TemporalType#TIMESTAMP}. Instants are converted to local time in a fixed time zone. The offset of that zone is
+ * cached together with the range of instants it is valid for, so that the zone rules are only consulted again when a
+ * value falls outside of that range.
+ * <p/>
+ * Only years 0 through 9999 are supported. Callers should fall back to a formatter for other values.
+ * <p/>
+ * Instances of this class are not safe for use by multiple threads.
+ *
+ * @author agent
+ * @since 1.7.12
+ */
+final class DateTimeWriter {
+    private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000L;
+    // Days from 0000-03-01 to 1970-01-01
+    private static final long DAYS_0000_TO_1970 = 719468;
+    private static final long DAYS_PER_400_YEARS = 146097;
+    private static final int MAX_YEAR = 9999;
+
+    private final DateTimeZone zone;
+
+    // The cached offset is valid for instants in [offsetStart, offsetEnd)
+    private int offset;
+    private long offsetStart = Long.MAX_VALUE;
+    private long offsetEnd = Long.MIN_VALUE;
+
+    DateTimeWriter(DateTimeZone zone) {
+        this.zone = zone;
+    }
+
+    DateTimeZone getZone() {
+        return this.zone;
+    }
+
+    /**
+     * Converts an instant to the local time in this writer's zone.
+     *
+     * @param instant milliseconds since the epoch
+     * @return the local time in milliseconds since the local epoch
+     */
+    long toLocalMillis(long instant) {
+        if (instant < this.offsetStart || instant >= this.offsetEnd) {
+            this.offset = this.zone.getOffset(instant);
+            long next = this.zone.nextTransition(instant);
+            long previous = this.zone.previousTransition(instant);
+            // Joda returns the instant itself if there is no transition. The previous transition is the last instant
+            // before the offset changed.
+            this.offsetEnd = next == instant ? Long.MAX_VALUE : next;
+            this.offsetStart = previous == instant ? Long.MIN_VALUE : previous + 1;
+        }
+        return instant + this.offset;
+    }
+
+    /**
+     * Writes a local time in the format of a temporal type. Nothing is written if the year is not supported.
+     *
+     * @param buffer the buffer to write to
+     * @param localMillis local time in milliseconds since the local epoch
+     * @param temporalType the format to write
+     * @return false if the year of the local time is not between 0 and 9999
+     */
+    static boolean write(ByteBuffer buffer, long localMillis, TemporalType temporalType) {
+        long epochDay = Math.floorDiv(localMillis, MILLIS_PER_DAY);
+        int secondOfDay = (int) (Math.floorMod(localMillis, MILLIS_PER_DAY) / 1000);
+        switch (temporalType) {
+            case DATE:
+                return writeDate(buffer, epochDay);
+            case TIME:
+                writeTime(buffer, secondOfDay / 3600, secondOfDay / 60 % 60, secondOfDay % 60);
+                return true;
+            case TIMESTAMP:
+                if (!writeDate(buffer, epochDay)) {
+                    return false;
+                }
+                buffer.put((byte) ' ');
+                writeTime(buffer, secondOfDay / 3600, secondOfDay / 60 % 60, secondOfDay % 60);
+                return true;
+            default:
+                throw new IllegalArgumentException("Unsupported temporal type " + temporalType);
+        }
+    }
+
+    /**
+     * Checks whether a year can be written by this class.
+     *
+     * @param year the year
+     * @return true if the year is between 0 and 9999
+     */
+    static boolean isSupported(long year) {
+        return year >= 0 && year <= MAX_YEAR;
+    }
+
+    /**
+     * Writes {@code yyyy-MM-dd}.
+     *
+     * @param buffer the buffer to write to
+     * @param year the year, between 0 and 9999
+     * @param month the month of the year, starting at 1
+     * @param day the day of the month, starting at 1
+     */
+    static void writeDate(ByteBuffer buffer, int year, int month, int day) {
+        if (buffer.remaining() < "yyyy-MM-dd".length()) {
+            throw new BufferOverflowException();
+        }
+        writeTwoDigits(buffer, year / 100);
+        writeTwoDigits(buffer, year % 100);
+        buffer.put((byte) '-');
+        writeTwoDigits(buffer, month);
+        buffer.put((byte) '-');
+        writeTwoDigits(buffer, day);
+    }
+
+    /**
+     * Writes {@code HH:mm:ss}.
+     *
+     * @param buffer the buffer to write to
+     * @param hour the hour of the day
+     * @param minute the minute of the hour
+     * @param second the second of the minute
+     */
+    static void writeTime(ByteBuffer buffer, int hour, int minute, int second) {
+        if (buffer.remaining() < "HH:mm:ss".length()) {
+            throw new BufferOverflowException();
+        }
+        writeTwoDigits(buffer, hour);
+        buffer.put((byte) ':');
+        writeTwoDigits(buffer, minute);
+        buffer.put((byte) ':');
+        writeTwoDigits(buffer, second);
+    }
+
+    /**
+     * Converts days since the epoch to a proleptic Gregorian date and writes it. See
+     * <a href="http://howardhinnant.github.io/date_algorithms.html#civil_from_days">civil_from_days</a> for the algorithm.
+     */
+    private static boolean writeDate(ByteBuffer buffer, long epochDay) {
+        long days = epochDay + DAYS_0000_TO_1970;
+        long era = Math.floorDiv(days, DAYS_PER_400_YEARS);
+        long dayOfEra = days - era * DAYS_PER_400_YEARS;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        // Months start in March so that the leap day is the last day of the year
+        long shiftedMonth = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * shiftedMonth + 2) / 5 + 1);
+        int month = (int) (shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        if (!isSupported(year)) {
+            return false;
+        }
+        writeDate(buffer, (int) year, month, day);
+        return true;
+    }
+
+    private static void writeTwoDigits(ByteBuffer buffer, int value) {
+        buffer.put((byte) ('0' + value / 10));
+        buffer.put((byte) ('0' + value % 10));
+    }
+}
@@ -0,0 +1,91 @@
+package com.opower.persistence.jpile.infile;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * The fixed-point format of a decimal column, resolved once from the precision and scale of its
+ * {@link javax.persistence.Column &#064;Column} annotation. Values written with this format are rounded half-even to
+ * {@link #getScale()} digits after the decimal point and written in plain notation, without an exponent or grouping.
+ * Trailing zeros are dropped, along with the decimal point when nothing follows it, so {@code 2.50} is written as
+ * {@code 2.5} and {@code 3.0} as {@code 3}. Values between -1 and 1 keep their leading zero ({@code 0.5}, where a
+ * {@link java.text.DecimalFormat} with the pattern {@code ###.###} would write {@code .5}), and values that round to
+ * zero are written as {@code 0} without a sign.
+ * <p/>
+ * Instances of this class are immutable and safe for use by multiple threads.
+ *
+ * @author agent
+ * @see InfileRow#append(double, FixedPointFormat)
+ * @since 1.7.12
+ */
+public final class FixedPointFormat {
+    // Largest scale that can be written using long arithmetic
+    static final int MAX_FAST_SCALE = 18;
+
+    private final int precision;
+    private final int scale;
+    private final double factor;
+
+    private FixedPointFormat(int precision, int scale) {
+        this.precision = precision;
+        this.scale = scale;
+        this.factor = Math.pow(10, scale);
+    }
+
+    /**
+     * Creates a new format for a column.
+     *
+     * @param precision the maximum number of digits
+     * @param scale the number of digits to the right of the decimal point
+     * @return the format
+     */
+    public static FixedPointFormat of(int precision, int scale) {
+        checkArgument(scale > 0, "Scale (%s) should be greater than 0", scale);
+        checkArgument(precision > 0, "Precision (%s) should be greater than 0", precision);
+        checkArgument(scale < precision, "Scale (%s) must be no larger than precision (%s)", scale, precision);
+        return new FixedPointFormat(precision, scale);
+    }
+
+    public int getPrecision() {
+        return this.precision;
+    }
+
+    public int getScale() {
+        return this.scale;
+    }
+
+    /**
+     * Gets the factor that scales a value to its unscaled form.
+     *
+     * @return {@code 10^scale} as a double
+     */
+    double getFactor() {
+        return this.factor;
+    }
+
+    /**
+     * Rounds a double with BigDecimals and formats it in plain notation. Like {@link java.text.DecimalFormat}, it rounds
+     * the shortest decimal representation of the double, and only looks at the exact binary value to break ties.
+     *
+     * @param number the number to format
+     * @return the formatted number
+     */
+    String format(double number) {
+        if (Double.isNaN(number) || Double.isInfinite(number)) {
+            return Double.toString(number);
+        }
+        BigDecimal shortest = BigDecimal.valueOf(number);
+        BigDecimal rounded = shortest.setScale(this.scale, RoundingMode.HALF_EVEN);
+        if (shortest.subtract(rounded).abs().compareTo(BigDecimal.valueOf(5, this.scale + 1)) == 0) {
+            rounded = new BigDecimal(number).setScale(this.scale, RoundingMode.HALF_EVEN);
+        }
+        return rounded.signum() == 0 ? "0" : rounded.stripTrailingZeros().toPlainString();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FixedPointFormat(%d,%d)", this.precision, this.scale);
+    }
+}
@@ -2,30 +2,29 @@ package com.opower.persistence.jpile.infile;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
-import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableSet;
 import com.opower.persistence.jpile.reflection.CachedProxy;
 import com.opower.persistence.jpile.reflection.PersistenceAnnotationInspector;
+import org.joda.time.DateTimeZone;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
 
 import javax.persistence.Temporal;
-import java.io.ByteArrayInputStream;
+import javax.persistence.TemporalType;
+import java.io.Closeable;
 import java.io.InputStream;
 import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
-import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
-import java.nio.charset.CharsetEncoder;
-import java.nio.charset.CoderResult;
-import java.text.DecimalFormat;
-import java.text.DecimalFormatSymbols;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Set;
-import java.util.regex.Pattern;
-
-import static com.google.common.base.Preconditions.checkArgument;
+import java.util.UUID;
 
 /**
  * A buffer used to collect data in MySQL's infile format. This buffer also maintains a separate row buffer
@@ -39,6 +38,13 @@ import static com.google.common.base.Preconditions.checkArgument;
  * level interaction and
  * management of these buffers.
  * <p/>
+ * Alternatively, rows can be written straight into the infile buffer with {@link #setWriteRowsInPlace(boolean)}, which
+ * avoids copying every row. A row that does not fit then fails with a {@link java.nio.BufferOverflowException} while it is
+ * being appended, and clients roll it back with {@link #rollbackRow()} before making room.
+ * <p/>
+ * The buffers come from a {@link BufferAllocator}, which can allocate them on the heap, off the heap, or from a pool. Once
+ * a buffer is no longer needed it should be {@link #close() closed} so that its buffers can be reused.
+ * <p/>
  * Instances of this class are not safe for use by multiple threads.
  *
  * @author Sean-Michael
@@ -47,7 +53,7 @@ import static com.google.common.base.Preconditions.checkArgument;
  * @see <a href="http://dev.mysql.com/doc/refman/5.1/en/load-data.html">LOAD DATA INFILE reference</a>
  * @since 1.0
  */
-public class InfileDataBuffer implements InfileRow {
+public class InfileDataBuffer implements InfileRow, Closeable {
     /**
      * Default size in bytes of the infile buffer.
      */
@@ -72,45 +78,147 @@ public class InfileDataBuffer implements InfileRow {
             (byte) 26);
     private static final String TEMPORAL_TYPE_EXCEPTION =
             "The Temporal.value should be TemporalType.DATE, TemporalType.TIME, or TemporalType.TIMESTAMP on method [%s]";
-    // This Pattern matches on all of the BYTES_NEEDING_ESCAPING
-    private static final Pattern ESCAPE_PATTERN = Pattern.compile("[\b\n\r\t\f\0\u001A\\\\]");
+    // Lookup table of all the characters that need escaping when appending a String. These are the
+    // BYTES_NEEDING_ESCAPING plus the form feed character.
+    private static final boolean[] CHARS_NEEDING_ESCAPING = new boolean[128];
+    // Characters used to write numbers and UUIDs. If the charset encodes each of them as the matching single ASCII byte
+    // then numbers are written to the buffer directly.
+    private static final String NUMBER_CHARS = "0123456789-+.Eabcdef";
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(Charsets.US_ASCII);
+    private static final int[] UUID_DASHES = {8, 13, 18, 23};
+    private static final int UUID_LENGTH = 36;
+    // Doubles with a magnitude below this are integral if they have no fractional part, and fit in a long
+    private static final double MAX_INTEGRAL_DOUBLE = 1e15;
+    // Doubles with a magnitude below this (2^52) still have a fractional bit, so they can be rounded exactly
+    private static final double MAX_EXACT_DOUBLE = 4503599627370496d;
+    // Scaled values this many ulps away from a rounding tie or closer are rounded on the slow path
+    private static final int TIE_MARGIN_ULPS = 4;
+    private static final long[] POWERS_OF_TEN = new long[FixedPointFormat.MAX_FAST_SCALE + 1];
+    // Lookup table of BYTES_NEEDING_ESCAPING indexed by the unsigned value of a byte
+    private static final boolean[] BYTE_NEEDS_ESCAPING = new boolean[256];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+        for (char c : new char[] {'\b', '\n', '\r', '\t', '\f', '\0', '\u001A', MYSQL_ESCAPE_CHAR}) {
+            CHARS_NEEDING_ESCAPING[c] = true;
+        }
+        for (byte b : BYTES_NEEDING_ESCAPING) {
+            BYTE_NEEDS_ESCAPING[b & 0xFF] = true;
+        }
+    }
 
     // Using Joda time which is thread safe
     private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormat.forPattern("yyyy-MM-dd");
     private static final DateTimeFormatter TIME_FORMATTER = DateTimeFormat.forPattern("HH:mm:ss");
     private static final DateTimeFormatter TIMESTAMP_FORMATTER = DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss");
+    private static final java.time.format.DateTimeFormatter LOCAL_DATE_FORMATTER =
+            java.time.format.DateTimeFormatter.ofPattern("yyyy-MM-dd");
+    private static final java.time.format.DateTimeFormatter LOCAL_DATE_TIME_FORMATTER =
+            java.time.format.DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
 
     // Utilities
-    private final CharsetEncoder encoder;
+    private final Charset charset;
+    private final StringEncoder stringEncoder;
+    // Replaced when the default time zone changes, see appendInstant()
+    private DateTimeWriter dateTimeWriter = new DateTimeWriter(DateTimeZone.getDefault());
 
     // Common byte sequences
+    private final byte[] escapeBytes;
     private final byte[] nullBytes;
     private final byte[] tabBytes;
     private final byte[] newlineBytes;
+    private final boolean asciiNumbers;
 
     // Buffers
-    private final ByteBuffer infileBuffer;
+    private final BufferAllocator allocator;
+    private final int infileBufferSize;
+    // An empty placeholder while the infile buffer is not allocated, see setAllocateOnDemand()
+    private ByteBuffer infileBuffer;
+    private boolean infileBufferAllocated;
+    private boolean allocateOnDemand = false;
+    // The infile buffer grows from the initial capacity up to infileBufferSize, see setGrowth()
+    private int initialCapacity;
+    private int capacity;
+    private boolean shrinkOnClear = false;
     private final ByteBuffer rowBuffer;
+    // Where the current row is written to: the row buffer, or the infile buffer when writing rows in place
+    private ByteBuffer target;
+    private boolean writeRowsInPlace = false;
+    // When writing rows in place, the position of the infile buffer before and after the newline of the current row
+    private int rowMark = 0;
+    private int rowStart = 0;
+    private boolean closed = false;
 
     private PersistenceAnnotationInspector persistenceAnnotationInspector =
             CachedProxy.create(new PersistenceAnnotationInspector());
 
-    public InfileDataBuffer(Charset charset, int infileBufferSize, int rowBufferSize) {
+    /**
+     * Creates a new buffer whose infile buffer starts small or is only allocated once it has rows, so that creating the
+     * buffer never takes the full infile buffer size. See {@link #setGrowth(int, boolean)} and
+     * {@link #setAllocateOnDemand(boolean)}, which have the same effect on an existing buffer, but only after it has
+     * allocated its initial infile buffer.
+     *
+     * @param charset the charset of the infile
+     * @param infileBufferSize maximum size in bytes of the infile buffer
+     * @param rowBufferSize size in bytes of the row buffer, no larger than the infile buffer
+     * @param allocator allocates the buffers, which are released again by {@link #close()}
+     * @param initialCapacity the capacity in bytes the infile buffer starts with, at most {@code infileBufferSize}
+     * @param allocateOnDemand true to only hold an infile buffer while there are rows
+     * @since 1.7.12
+     */
+    public InfileDataBuffer(Charset charset, int infileBufferSize, int rowBufferSize, BufferAllocator allocator,
+                            int initialCapacity, boolean allocateOnDemand) {
         Preconditions.checkNotNull(charset, "No charset set for encoding.");
-        this.encoder = charset.newEncoder();
+        Preconditions.checkNotNull(allocator, "allocator cannot be null");
+        this.charset = charset;
+        this.stringEncoder = StringEncoder.forCharset(charset);
 
         // This not using the encoder because that API is tedious just to encode a few strings.
+        this.escapeBytes = String.valueOf(MYSQL_ESCAPE_CHAR).getBytes(charset);
         this.tabBytes = "\t".getBytes(charset);
         this.newlineBytes = "\n".getBytes(charset);
         this.nullBytes = MYSQL_NULL_STRING.getBytes(charset);
+        this.asciiNumbers = Arrays.equals(NUMBER_CHARS.getBytes(charset), NUMBER_CHARS.getBytes(Charsets.US_ASCII));
 
         // Make sure the row buffer is not larger than the infile buffer. If that were allowed you'd get into cases
         // where you would not be able to write rows to the infile buffer even if it were empty.
         Preconditions.checkState(rowBufferSize <= infileBufferSize,
                                  "Cannot create a row buffer larger than the infile buffer.");
 
-        this.rowBuffer = ByteBuffer.allocate(rowBufferSize);
-        this.infileBuffer = ByteBuffer.allocate(infileBufferSize);
+        Preconditions.checkArgument(initialCapacity > 0 && initialCapacity <= infileBufferSize,
+                                    "initialCapacity (%s) must be between 1 and %s", initialCapacity, infileBufferSize);
+
+        this.allocator = allocator;
+        this.infileBufferSize = infileBufferSize;
+        this.initialCapacity = initialCapacity;
+        this.capacity = initialCapacity;
+        this.allocateOnDemand = allocateOnDemand;
+        this.rowBuffer = allocator.allocate(rowBufferSize);
+        this.infileBuffer = ByteBuffer.allocate(0);
+        if (!allocateOnDemand) {
+            this.allocateInfileBuffer();
+        }
+        this.target = this.rowBuffer;
+    }
+
+    /**
+     * Creates a new buffer.
+     *
+     * @param charset the charset of the infile
+     * @param infileBufferSize size in bytes of the infile buffer
+     * @param rowBufferSize size in bytes of the row buffer, no larger than the infile buffer
+     * @param allocator allocates the buffers, which are released again by {@link #close()}
+     * @since 1.7.12
+     */
+    public InfileDataBuffer(Charset charset, int infileBufferSize, int rowBufferSize, BufferAllocator allocator) {
+        this(charset, infileBufferSize, rowBufferSize, allocator, infileBufferSize, false);
+    }
+
+    public InfileDataBuffer(Charset charset, int infileBufferSize, int rowBufferSize) {
+        this(charset, infileBufferSize, rowBufferSize, BufferAllocator.HEAP);
     }
 
     public InfileDataBuffer(Charset charset) {
@@ -125,13 +233,31 @@ public class InfileDataBuffer implements InfileRow {
      * Attempts to add the current row to the infile buffer. If there is insufficient room for the current row
      * and -- if there is any other data in the buffer -- a newline, then the row is not added and the method returns
      * {@code false}.
+     * <p/>
+     * When {@link #isWritingRowsInPlace() writing rows in place} the row is already in the infile buffer, so this method
+     * only marks it as complete and always returns {@code true}. Rows that do not fit fail while they are appended instead.
      *
      * @return {@code true} if the current row fits into the infile (and has been added)
      */
     public boolean addRowToInfile() {
+        if (this.writeRowsInPlace) {
+            if (this.infileBuffer.position() == this.rowStart) {
+                // Drop the newline of an empty row
+                this.infileBuffer.position(this.rowMark);
+            }
+            this.rowMark = this.infileBuffer.position();
+            this.rowStart = this.rowMark;
+            return true;
+        }
+
+        this.allocateInfileBuffer();
         boolean addNewline = this.infileBuffer.position() > 0;
-        if (this.infileBuffer.remaining() < (this.rowBuffer.position() + (addNewline ? this.newlineBytes.length : 0))) {
-            return false;
+        int required = this.rowBuffer.position() + (addNewline ? this.newlineBytes.length : 0);
+        if (this.infileBuffer.remaining() < required) {
+            this.growTo(this.infileBuffer.position() + required);
+            if (this.infileBuffer.remaining() < required) {
+                return false;
+            }
         }
 
         this.rowBuffer.flip();
@@ -146,6 +272,233 @@ public class InfileDataBuffer implements InfileRow {
         return true;
     }
 
+    /**
+     * Discards the current row. When writing rows in place this rolls the infile buffer back to where it was before
+     * {@link #newRow()}, which is how clients recover from a {@link java.nio.BufferOverflowException} thrown by one of the
+     * {@code append} methods: roll back, flush the infile buffer, and then write the row again.
+     *
+     * @since 1.7.12
+     */
+    public void rollbackRow() {
+        if (this.writeRowsInPlace) {
+            this.infileBuffer.position(this.rowMark);
+            this.rowStart = this.rowMark;
+        }
+        else {
+            this.rowBuffer.clear();
+        }
+        this.stringEncoder.reset();
+    }
+
+    /**
+     * Toggles writing rows straight into the infile buffer instead of into a separate row buffer that is copied into the
+     * infile buffer by {@link #addRowToInfile()}. This saves copying every row, but a row that does not fit in the infile
+     * buffer is only detected while it is being appended, and must be rolled back with {@link #rollbackRow()}. This can
+     * only be changed between rows.
+     *
+     * @param writeRowsInPlace true to write rows straight into the infile buffer
+     * @since 1.7.12
+     */
+    public void setWriteRowsInPlace(boolean writeRowsInPlace) {
+        if (this.writeRowsInPlace) {
+            Preconditions.checkState(this.infileBuffer.position() == this.rowStart,
+                                     "Cannot change where rows are written while a row is being written");
+            this.infileBuffer.position(this.rowMark);
+        }
+        this.writeRowsInPlace = writeRowsInPlace;
+        this.rowBuffer.clear();
+        this.rowMark = this.infileBuffer.position();
+        this.rowStart = writeRowsInPlace ? this.rowMark : 0;
+        this.target = writeRowsInPlace ? this.infileBuffer : this.rowBuffer;
+    }
+
+    public boolean isWritingRowsInPlace() {
+        return this.writeRowsInPlace;
+    }
+
+    /**
+     * Toggles allocating the infile buffer when the first row is written, and releasing it to the allocator whenever
+     * this buffer is cleared or reset. An empty buffer then holds no more than its row buffer, which matters for loaders
+     * with many tables that receive few rows, and lets a {@link BufferPool} hand the memory to whichever buffer needs it.
+     * This can only be changed while the buffer is empty.
+     *
+     * @param allocateOnDemand true to only hold an infile buffer while there are rows
+     * @since 1.7.12
+     */
+    public void setAllocateOnDemand(boolean allocateOnDemand) {
+        Preconditions.checkState(this.isEmpty() && this.infileBuffer.position() == this.rowStart,
+                                 "Cannot change how the infile buffer is allocated while it holds rows");
+        this.allocateOnDemand = allocateOnDemand;
+        if (allocateOnDemand) {
+            this.releaseInfileBuffer();
+        }
+        else {
+            this.allocateInfileBuffer();
+        }
+    }
+
+    public boolean isAllocatingOnDemand() {
+        return this.allocateOnDemand;
+    }
+
+    /**
+     * Lets the infile buffer start small and double in capacity whenever a row does not fit, up to the infile buffer size
+     * given to the constructor. Buffers of tables that only receive a few rows then never take the full size. Growing
+     * copies the rows that are already in the buffer, so the initial capacity should not be much smaller than the
+     * typical flush. This can only be changed while the buffer is empty. The infile buffer that was allocated before is
+     * replaced unless it already has the initial capacity, so buffers that should never take the full size up front are
+     * better created with the initial capacity, see
+     * {@link #InfileDataBuffer(Charset, int, int, BufferAllocator, int, boolean)}.
+     * <p/>
+     * When writing rows in place, a row that does not fit is only detected while it is appended, so the caller has to
+     * roll it back, call {@link #growInfileBuffer()} and write the row again.
+     *
+     * @param initialCapacity the capacity in bytes the infile buffer starts with
+     * @param shrinkOnClear true to go back to the initial capacity whenever the buffer is cleared or reset, instead of
+     * keeping the capacity it grew to
+     * @since 1.7.12
+     */
+    public void setGrowth(int initialCapacity, boolean shrinkOnClear) {
+        Preconditions.checkArgument(initialCapacity > 0 && initialCapacity <= this.infileBufferSize,
+                                    "initialCapacity (%s) must be between 1 and %s", initialCapacity, this.infileBufferSize);
+        Preconditions.checkState(this.isEmpty() && this.infileBuffer.position() == this.rowStart,
+                                 "Cannot change the capacity of the infile buffer while it holds rows");
+        this.initialCapacity = initialCapacity;
+        this.shrinkOnClear = shrinkOnClear;
+        this.resize(initialCapacity);
+    }
+
+    /**
+     * Doubles the capacity of the infile buffer, keeping its rows, unless it has reached its maximum size. Only needed
+     * when writing rows in place, after a row that did not fit has been {@link #rollbackRow() rolled back}.
+     *
+     * @return false if the infile buffer cannot grow any further
+     * @since 1.7.12
+     */
+    public boolean growInfileBuffer() {
+        Preconditions.checkState(!this.writeRowsInPlace || this.infileBuffer.position() == this.rowStart,
+                                 "Cannot grow the infile buffer while a row is being written");
+        return this.growTo(this.capacity + 1);
+    }
+
+    /**
+     * Gets the capacity the infile buffer has, or will have once it is allocated.
+     *
+     * @return the capacity of the infile buffer in bytes
+     * @since 1.7.12
+     */
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * Gets the capacity the infile buffer can grow to.
+     *
+     * @return the infile buffer size given to the constructor
+     * @since 1.7.12
+     */
+    public int getMaxCapacity() {
+        return this.infileBufferSize;
+    }
+
+    /**
+     * Grows the infile buffer to at least twice its capacity, and at least {@code minCapacity} as far as the maximum size
+     * allows.
+     */
+    private boolean growTo(int minCapacity) {
+        int newCapacity = (int) Math.min(this.infileBufferSize, Math.max(2L * this.capacity, minCapacity));
+        if (newCapacity <= this.capacity) {
+            return false;
+        }
+        if (this.infileBufferAllocated) {
+            ByteBuffer grown = this.allocator.allocate(newCapacity);
+            ByteBuffer old = this.infileBuffer;
+            old.flip();
+            grown.put(old);
+            this.allocator.release(old);
+            this.infileBuffer = grown;
+            if (this.writeRowsInPlace) {
+                this.target = grown;
+            }
+        }
+        this.capacity = newCapacity;
+        return true;
+    }
+
+    /**
+     * Changes the capacity of an empty infile buffer.
+     */
+    private void resize(int newCapacity) {
+        if (newCapacity != this.capacity) {
+            this.releaseInfileBuffer();
+            this.capacity = newCapacity;
+            if (!this.allocateOnDemand) {
+                this.allocateInfileBuffer();
+            }
+        }
+    }
+
+    private void allocateInfileBuffer() {
+        if (!this.infileBufferAllocated) {
+            this.infileBuffer = this.allocator.allocate(this.capacity);
+            this.infileBufferAllocated = true;
+            if (this.writeRowsInPlace) {
+                this.target = this.infileBuffer;
+            }
+        }
+    }
+
+    private void releaseInfileBuffer() {
+        if (this.infileBufferAllocated) {
+            this.allocator.release(this.infileBuffer);
+            this.infileBuffer = ByteBuffer.allocate(0);
+            this.infileBufferAllocated = false;
+            if (this.writeRowsInPlace) {
+                this.target = this.infileBuffer;
+            }
+        }
+    }
+
+    /**
+     * Checks whether any rows have been added to the infile buffer. A row that is being written does not count.
+     *
+     * @return true if there are no rows in the infile buffer
+     * @since 1.7.12
+     */
+    public boolean isEmpty() {
+        return this.size() == 0;
+    }
+
+    /**
+     * Gets the number of bytes of the rows that have been added to the infile buffer. A row that is being written does
+     * not count.
+     *
+     * @return the size of the infile in bytes
+     * @since 1.7.12
+     */
+    public int size() {
+        return this.writeRowsInPlace ? this.rowMark : this.infileBuffer.position();
+    }
+
+    public Charset getCharset() {
+        return this.charset;
+    }
+
+    /**
+     * Creates a new, empty buffer with the same charset, sizes, allocator and way of writing rows and allocating and
+     * growing the infile buffer as this buffer. The new buffer starts at the initial capacity.
+     *
+     * @return the new buffer
+     * @since 1.7.12
+     */
+    public InfileDataBuffer createSibling() {
+        InfileDataBuffer sibling = new InfileDataBuffer(this.charset, this.infileBufferSize, this.rowBuffer.capacity(),
+                                                        this.allocator, this.initialCapacity, this.allocateOnDemand);
+        sibling.setWriteRowsInPlace(this.writeRowsInPlace);
+        sibling.setGrowth(this.initialCapacity, this.shrinkOnClear);
+        return sibling;
+    }
+
     /**
      * @return true if the rowBuffer is empty.
      */
@@ -161,8 +514,40 @@ public class InfileDataBuffer implements InfileRow {
      */
     // CR MB: Do we want to add status flags to this class to prevent undefined use?
     public InputStream asInputStream() {
+        Preconditions.checkState(!this.closed, "This buffer is closed");
         this.infileBuffer.flip();
-        return new ByteArrayInputStream(this.infileBuffer.array(), 0, this.infileBuffer.limit());
+        // Read from a duplicate so that reading does not move the position of the infile buffer
+        return new ByteBufferInputStream(this.infileBuffer.duplicate());
+    }
+
+    /**
+     * Gets a read-only view of the contents of the infile buffer, for writing them somewhere without copying them into
+     * an array first. Unlike {@link #asInputStream()} this leaves the buffer unchanged, so the same rows can be read
+     * again, for example when loading them failed, and more rows can be added until the buffer is cleared.
+     *
+     * @return buffer contents, from position zero up to {@link #size()}
+     * @since 1.7.12
+     */
+    public ByteBuffer asReadOnlyBuffer() {
+        Preconditions.checkState(!this.closed, "This buffer is closed");
+        ByteBuffer contents = this.infileBuffer.asReadOnlyBuffer();
+        contents.limit(this.size());
+        contents.position(0);
+        return contents;
+    }
+
+    /**
+     * Releases the buffers to the allocator they came from. This buffer cannot be used afterwards.
+     *
+     * @since 1.7.12
+     */
+    @Override
+    public void close() {
+        if (!this.closed) {
+            this.closed = true;
+            this.releaseInfileBuffer();
+            this.allocator.release(this.rowBuffer);
+        }
     }
 
     /**
@@ -171,21 +556,39 @@ public class InfileDataBuffer implements InfileRow {
     public void reset() {
         this.infileBuffer.clear();
         this.rowBuffer.clear();
+        this.rowMark = 0;
+        this.rowStart = 0;
+        this.releaseOrShrink();
     }
 
     /**
-     * Clears the contents of the infile buffer, but maintains the state of the current row.
+     * Clears the contents of the infile buffer, but maintains the state of the current row. When writing rows in place
+     * the current row is part of the infile buffer, so this should only be called between rows.
      */
     public void clear() {
         this.infileBuffer.clear();
+        this.rowMark = 0;
+        if (this.writeRowsInPlace) {
+            this.rowStart = 0;
+        }
+        this.releaseOrShrink();
+    }
+
+    private void releaseOrShrink() {
+        if (this.allocateOnDemand) {
+            this.releaseInfileBuffer();
+        }
+        if (this.shrinkOnClear) {
+            this.resize(this.initialCapacity);
+        }
     }
 
     /**
      * Appends an encoded tab ('\t') character if current row has any data in it. Otherwise, it does nothing.
      */
     private void appendTabIfNeeded() {
-        if (this.rowBuffer.position() > 0) {
-            this.rowBuffer.put(this.tabBytes);
+        if (this.target.position() > this.rowStart) {
+            this.target.put(this.tabBytes);
         }
     }
 
@@ -199,82 +602,404 @@ public class InfileDataBuffer implements InfileRow {
     @Override
     public final InfileRow append(byte[] bytes) {
         this.appendTabIfNeeded();
-        for (byte b : bytes) {
-            appendByte(b);
+        // Copy each run of bytes that do not need escaping with a single put
+        int runStart = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            if (BYTE_NEEDS_ESCAPING[bytes[i] & 0xFF]) {
+                this.target.put(bytes, runStart, i - runStart);
+                this.target.put((byte) MYSQL_ESCAPE_CHAR);
+                runStart = i;
+            }
+        }
+        this.target.put(bytes, runStart, bytes.length - runStart);
+        return this;
+    }
+
+    @Override
+    public final InfileRow appendLong(long number) {
+        this.appendTabIfNeeded();
+        if (this.asciiNumbers) {
+            this.writeDigits(number, 1);
+        }
+        else {
+            String formatted = Long.toString(number);
+            this.encode(formatted, 0, formatted.length());
+        }
+        return this;
+    }
+
+    @Override
+    public final InfileRow appendInt(int number) {
+        return this.appendLong(number);
+    }
+
+    @Override
+    public final InfileRow appendShort(short number) {
+        return this.appendLong(number);
+    }
+
+    @Override
+    public final InfileRow appendDouble(double number) {
+        if (Math.abs(number) < MAX_INTEGRAL_DOUBLE && number == Math.rint(number)) {
+            return this.appendLong((long) number);
         }
+        this.appendTabIfNeeded();
+        // Double.toString never produces characters that need escaping
+        this.appendPlain(Double.toString(number));
         return this;
     }
 
+    /**
+     * Writes the ASCII digits of a number straight into the row buffer, back to front.
+     *
+     * @param number the number to write
+     * @param minDigits the number is left padded with zeros to at least this many digits
+     */
+    private void writeDigits(long number, int minDigits) {
+        int digits = 1;
+        for (long remaining = number / 10; remaining != 0; remaining /= 10) {
+            digits++;
+        }
+        digits = Math.max(digits, minDigits);
+        int length = number < 0 ? digits + 1 : digits;
+        int start = this.target.position();
+        if (this.target.remaining() < length) {
+            throw new BufferOverflowException();
+        }
+        if (number < 0) {
+            this.target.put(start, (byte) '-');
+        }
+        // Work with the negative value so that Long.MIN_VALUE does not overflow
+        long remaining = number < 0 ? number : -number;
+        for (int index = start + length - 1; index >= start + length - digits; index--) {
+            this.target.put(index, (byte) ('0' - (remaining % 10)));
+            remaining /= 10;
+        }
+        this.target.position(start + length);
+    }
+
+    /**
+     * Writes a String that needs no escaping, such as a formatted number, to the row buffer.
+     *
+     * @param s the string to write
+     */
+    private void appendPlain(String s) {
+        if (this.asciiNumbers) {
+            this.writeAscii(s);
+        }
+        else {
+            this.encode(s, 0, s.length());
+        }
+    }
+
+    /**
+     * Writes a String that is known to be ASCII and to need no escaping straight into the row buffer.
+     *
+     * @param s the string to write
+     */
+    private void writeAscii(String s) {
+        for (int i = 0, length = s.length(); i < length; i++) {
+            this.target.put((byte) s.charAt(i));
+        }
+    }
+
     @Override
     public InfileRow append(Float number, int precision, int scale) {
-        checkArgument(scale > 0, "Scale (%s) should be greater than 0", scale);
-        checkArgument(precision > 0, "Precision (%s) should be greater than 0", precision);
-        checkArgument(scale < precision, "Scale (%s) must be no larger than precision (%s)", scale, precision);
+        FixedPointFormat format = FixedPointFormat.of(precision, scale);
+        return (number == null) ? this.appendNull() : this.append(number.doubleValue(), format);
+    }
 
-        String integer = Strings.repeat("#", precision - scale);
-        String fractional = Strings.repeat("#", scale);
+    /**
+     * Writes the number with long arithmetic when the scaled value is exact enough to round correctly. Values that are
+     * too large, or so close to a rounding tie that the scaling could have moved them across it, take the slow path
+     * instead.
+     */
+    @Override
+    public final InfileRow append(double number, FixedPointFormat format) {
+        this.appendTabIfNeeded();
+        int scale = format.getScale();
+        if (!this.asciiNumbers || scale > FixedPointFormat.MAX_FAST_SCALE
+                || Double.isNaN(number) || Double.isInfinite(number)) {
+            this.appendPlain(format.format(number));
+            return this;
+        }
+        double scaled = number * format.getFactor();
+        double distanceFromTie = Math.abs(scaled - Math.floor(scaled) - 0.5);
+        if (Math.abs(scaled) >= MAX_EXACT_DOUBLE || distanceFromTie <= TIE_MARGIN_ULPS * Math.ulp(scaled)) {
+            this.appendPlain(format.format(number));
+            return this;
+        }
 
-        DecimalFormatSymbols decimalFormatSymbols = new DecimalFormatSymbols();
-        decimalFormatSymbols.setDecimalSeparator('.');
-        DecimalFormat decimalFormat = new DecimalFormat(integer + "." + fractional);
-        decimalFormat.setGroupingUsed(false);
-        decimalFormat.setDecimalFormatSymbols(decimalFormatSymbols);
+        long unscaled = (long) Math.rint(scaled);
+        // Drop trailing zeros
+        while (scale > 0 && unscaled % 10 == 0) {
+            unscaled /= 10;
+            scale--;
+        }
+        this.writeFixedPoint(unscaled, scale);
+        return this;
+    }
 
-        String formatted = decimalFormat.format(number);
-        return append(formatted);
+    @Override
+    public final InfileRow append(BigDecimal number) {
+        if (number == null) {
+            return this.appendNull();
+        }
+        this.appendTabIfNeeded();
+        int scale = number.scale();
+        if (this.asciiNumbers && scale >= 0 && scale <= FixedPointFormat.MAX_FAST_SCALE
+                && number.precision() <= FixedPointFormat.MAX_FAST_SCALE) {
+            this.writeFixedPoint(number.unscaledValue().longValue(), scale);
+        }
+        else {
+            this.appendPlain(number.toPlainString());
+        }
+        return this;
+    }
+
+    /**
+     * Writes an unscaled number and its scale as {@code integer.fraction}. The fraction is left padded with zeros to
+     * {@code scale} digits, and the decimal point is left out if the scale is 0.
+     *
+     * @param unscaled the unscaled value
+     * @param scale the number of digits after the decimal point, at most {@link FixedPointFormat#MAX_FAST_SCALE}
+     */
+    private void writeFixedPoint(long unscaled, int scale) {
+        long divisor = POWERS_OF_TEN[scale];
+        long integer = unscaled / divisor;
+        if (unscaled < 0 && integer == 0) {
+            this.target.put((byte) '-');
+        }
+        this.writeDigits(integer, 1);
+        if (scale > 0) {
+            this.target.put((byte) '.');
+            this.writeDigits(Math.abs(unscaled % divisor), scale);
+        }
     }
 
     private void appendByte(byte b) {
-        if (BYTES_NEEDING_ESCAPING.contains(b)) {
-            this.rowBuffer.put((byte) MYSQL_ESCAPE_CHAR);
+        if (BYTE_NEEDS_ESCAPING[b & 0xFF]) {
+            this.target.put((byte) MYSQL_ESCAPE_CHAR);
         }
-        this.rowBuffer.put(b);
+        this.target.put(b);
     }
 
+    /**
+     * Escapes and encodes a String directly into the row buffer in a single pass. Runs of characters that do not need
+     * escaping are handed to the encoder as is, and the escape character is written in front of each special character
+     * as it is found. Nothing is allocated per value.
+     */
     @Override
     public final InfileRow append(String s) {
         if (s == null) {
             return this.appendNull();
         }
         this.appendTabIfNeeded();
-        String escapedStr = ESCAPE_PATTERN.matcher(s).replaceAll("\\\\$0");
 
-        CoderResult result = this.encoder.encode(CharBuffer.wrap(escapedStr), this.rowBuffer, false);
-        if (!result.isUnderflow()) {
-            try {
-                result.throwException();
-            }
-            catch (CharacterCodingException e) {
-                throw new Error(e);
+        int length = s.length();
+        int runStart = 0;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < CHARS_NEEDING_ESCAPING.length && CHARS_NEEDING_ESCAPING[c]) {
+                this.encode(s, runStart, i);
+                this.target.put(this.escapeBytes);
+                // The special character itself starts the next run
+                runStart = i;
             }
         }
+        this.encode(s, runStart, length);
         return this;
     }
 
+    /**
+     * Encodes the characters {@code s[start, end)} into the row buffer.
+     *
+     * @param s the string to encode
+     * @param start index of the first character to encode
+     * @param end index after the last character to encode
+     */
+    private void encode(String s, int start, int end) {
+        this.stringEncoder.encode(s, start, end, this.target);
+    }
+
     @Override
     public final InfileRow append(Date d, Method method) {
         Temporal temporal = this.persistenceAnnotationInspector.findAnnotation(method, Temporal.class);
         Preconditions.checkNotNull(temporal, "A temporal annotation must be provided on method [%s]", method);
+        Preconditions.checkArgument(temporal.value() != null, TEMPORAL_TYPE_EXCEPTION, method);
+        return this.append(d, temporal.value());
+    }
+
+    @Override
+    public final InfileRow append(Date d, TemporalType temporalType) {
+        Preconditions.checkNotNull(temporalType, "A temporal type must be provided");
+        return (d == null) ? this.appendNull() : this.appendInstant(d.getTime(), temporalType);
+    }
+
+    @Override
+    public final InfileRow append(Instant instant) {
+        return (instant == null) ? this.appendNull() : this.appendInstant(instant.toEpochMilli(), TemporalType.TIMESTAMP);
+    }
+
+    @Override
+    public final InfileRow append(LocalDate date) {
+        return (date == null) ? this.appendNull() : this.appendDate(date.getYear(), date.getMonthValue(), date.getDayOfMonth());
+    }
 
-        switch (temporal.value()) {
+    @Override
+    public final InfileRow append(LocalDateTime dateTime) {
+        return (dateTime == null) ? this.appendNull() : this.appendDateTime(dateTime.getYear(), dateTime.getMonthValue(),
+                dateTime.getDayOfMonth(), dateTime.getHour(), dateTime.getMinute(), dateTime.getSecond());
+    }
+
+    @Override
+    public final InfileRow appendDate(int year, int month, int day) {
+        this.appendTabIfNeeded();
+        if (this.asciiNumbers && DateTimeWriter.isSupported(year)) {
+            DateTimeWriter.writeDate(this.target, year, month, day);
+        }
+        else {
+            this.appendPlain(LocalDate.of(year, month, day).format(LOCAL_DATE_FORMATTER));
+        }
+        return this;
+    }
+
+    @Override
+    public final InfileRow appendDateTime(int year, int month, int day, int hour, int minute, int second) {
+        this.appendTabIfNeeded();
+        if (this.asciiNumbers && DateTimeWriter.isSupported(year)) {
+            DateTimeWriter.writeDate(this.target, year, month, day);
+            this.target.put((byte) ' ');
+            DateTimeWriter.writeTime(this.target, hour, minute, second);
+        }
+        else {
+            this.appendPlain(LocalDateTime.of(year, month, day, hour, minute, second).format(LOCAL_DATE_TIME_FORMATTER));
+        }
+        return this;
+    }
+
+    /**
+     * Writes an instant as local time in the default time zone at the time of the call, like the formatters did before.
+     * The digits are written directly unless the year is out of range for {@link DateTimeWriter}, in which case a
+     * formatter is used.
+     */
+    @Override
+    public final InfileRow appendInstant(long instant, TemporalType temporalType) {
+        Preconditions.checkNotNull(temporalType, "A temporal type must be provided");
+        this.appendTabIfNeeded();
+        DateTimeZone zone = DateTimeZone.getDefault();
+        if (!zone.equals(this.dateTimeWriter.getZone())) {
+            this.dateTimeWriter = new DateTimeWriter(zone);
+        }
+        long localMillis = this.dateTimeWriter.toLocalMillis(instant);
+        if (!this.asciiNumbers || !DateTimeWriter.write(this.target, localMillis, temporalType)) {
+            this.appendPlain(formatterFor(temporalType).withZone(zone).print(instant));
+        }
+        return this;
+    }
+
+    /**
+     * Writes the hex digits of a UUID straight into the row buffer, without building its String.
+     */
+    @Override
+    public final InfileRow append(UUID uuid) {
+        if (uuid == null) {
+            return this.appendNull();
+        }
+        this.appendTabIfNeeded();
+        if (!this.asciiNumbers) {
+            this.encode(uuid.toString(), 0, UUID_LENGTH);
+            return this;
+        }
+        if (this.target.remaining() < UUID_LENGTH) {
+            throw new BufferOverflowException();
+        }
+        long high = uuid.getMostSignificantBits();
+        long low = uuid.getLeastSignificantBits();
+        this.writeHex(high >>> 32, 8);
+        this.target.put((byte) '-');
+        this.writeHex(high >>> 16, 4);
+        this.target.put((byte) '-');
+        this.writeHex(high, 4);
+        this.target.put((byte) '-');
+        this.writeHex(low >>> 48, 4);
+        this.target.put((byte) '-');
+        this.writeHex(low, 12);
+        return this;
+    }
+
+    /**
+     * Writes the lowest hex digits of a number as ASCII, most significant first.
+     *
+     * @param bits the number
+     * @param digits the number of digits to write
+     */
+    private void writeHex(long bits, int digits) {
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            this.target.put(HEX_DIGITS[(int) (bits >>> shift) & 0xF]);
+        }
+    }
+
+    @Override
+    public final InfileRow appendBinary(UUID uuid) {
+        if (uuid == null) {
+            return this.appendNull();
+        }
+        this.appendTabIfNeeded();
+        this.appendBinary(uuid.getMostSignificantBits());
+        this.appendBinary(uuid.getLeastSignificantBits());
+        return this;
+    }
+
+    /**
+     * Writes the bytes of a long, most significant first, escaping the ones that need it.
+     */
+    private void appendBinary(long bits) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            byte b = (byte) (bits >>> shift);
+            if (BYTE_NEEDS_ESCAPING[b & 0xFF]) {
+                this.target.put((byte) MYSQL_ESCAPE_CHAR);
+            }
+            this.target.put(b);
+        }
+    }
+
+    /**
+     * Escapes and encodes a value the same way as {@link #append(String)} does, so that it can be appended with
+     * {@link #appendEncoded(byte[])}. The bytes can be appended to any buffer that has the same charset.
+     *
+     * @param s the value
+     * @return the escaped and encoded bytes
+     * @since 1.7.12
+     */
+    public byte[] encodeValue(String s) {
+        StringBuilder escaped = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < CHARS_NEEDING_ESCAPING.length && CHARS_NEEDING_ESCAPING[c]) {
+                escaped.append(MYSQL_ESCAPE_CHAR);
+            }
+            escaped.append(c);
+        }
+        return escaped.toString().getBytes(this.charset);
+    }
+
+    private static DateTimeFormatter formatterFor(TemporalType temporalType) {
+        switch (temporalType) {
             case DATE:
-                return appendDate(d, DATE_FORMATTER);
+                return DATE_FORMATTER;
             case TIME:
-                return appendDate(d, TIME_FORMATTER);
+                return TIME_FORMATTER;
             case TIMESTAMP:
-                return appendDate(d, TIMESTAMP_FORMATTER);
+                return TIMESTAMP_FORMATTER;
             default:
-                throw new IllegalArgumentException(String.format(TEMPORAL_TYPE_EXCEPTION, method));
+                throw new IllegalArgumentException("Unsupported temporal type " + temporalType);
         }
     }
 
-    private InfileRow appendDate(Date d, DateTimeFormatter dateTimeFormatter) {
-        return (d == null) ? this.appendNull() : this.append(dateTimeFormatter.print(d.getTime()));
-    }
-
     @Override
     public final InfileRow append(Boolean b) {
-        return (b == null) ? this.appendNull() : this.append(b ? 1 : 0);
+        return (b == null) ? this.appendNull() : this.appendInt(b ? 1 : 0);
     }
 
     @Override
@@ -285,7 +1010,22 @@ public class InfileDataBuffer implements InfileRow {
     @Override
     public final InfileRow appendNull() {
         this.appendTabIfNeeded();
-        this.rowBuffer.put(this.nullBytes);
+        this.target.put(this.nullBytes);
+        return this;
+    }
+
+    /**
+     * Adds a value that has already been escaped and encoded in the charset of this buffer, for example by
+     * {@link #encodeValue(String)}. Values that occur in many rows can be encoded once and then appended with a single
+     * copy.
+     *
+     * @param encoded the escaped and encoded bytes of the value
+     * @return this row
+     * @since 1.7.12
+     */
+    public final InfileRow appendEncoded(byte[] encoded) {
+        this.appendTabIfNeeded();
+        this.target.put(encoded);
         return this;
     }
 
@@ -301,7 +1041,18 @@ public class InfileDataBuffer implements InfileRow {
      */
     @Override
     public final InfileRow newRow() {
-        this.rowBuffer.clear();
+        Preconditions.checkState(!this.closed, "This buffer is closed");
+        this.allocateInfileBuffer();
+        if (this.writeRowsInPlace) {
+            this.infileBuffer.position(this.rowMark);
+            if (this.rowMark > 0) {
+                this.infileBuffer.put(this.newlineBytes);
+            }
+            this.rowStart = this.infileBuffer.position();
+        }
+        else {
+            this.rowBuffer.clear();
+        }
         return this;
     }
 }
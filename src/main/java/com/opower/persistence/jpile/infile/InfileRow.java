@@ -1,11 +1,25 @@
 package com.opower.persistence.jpile.infile;
 
+import org.joda.time.format.DateTimeFormat;
+
+import javax.persistence.TemporalType;
 import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.Date;
+import java.util.UUID;
 
 /**
  * A chaining interface for adding data to a row. Implementations handle encoding objects for use in an infile stream.
  * Each append method also inserts necessary field separators, as needed.
+ * <p/>
+ * The typed appends that were added after the first release have default implementations that format the value and
+ * append it with the appends that every implementation has, so that existing implementations keep working.
+ * {@link InfileDataBuffer} overrides them to write values without formatting them first.
  *
  * @author s-m
  * @since 1.0
@@ -35,6 +49,53 @@ public interface InfileRow {
      */
     InfileRow append(byte[] bytes);
 
+    /**
+     * Adds a long to this row before returning said row. Implementations should write the digits without boxing the value
+     * or building an intermediate String.
+     *
+     * @param number to add
+     * @return this row
+     */
+    default InfileRow appendLong(long number) {
+        return this.append(Long.toString(number));
+    }
+
+    /**
+     * Adds an int to this row before returning said row.
+     *
+     * @param number to add
+     * @return this row
+     * @see #appendLong(long)
+     */
+    default InfileRow appendInt(int number) {
+        return this.appendLong(number);
+    }
+
+    /**
+     * Adds a short to this row before returning said row.
+     *
+     * @param number to add
+     * @return this row
+     * @see #appendLong(long)
+     */
+    default InfileRow appendShort(short number) {
+        return this.appendLong(number);
+    }
+
+    /**
+     * Adds a double to this row before returning said row. The value is written the same way {@link Double#toString(double)}
+     * formats it, except that integral values are written without a fractional part.
+     *
+     * @param number to add
+     * @return this row
+     */
+    default InfileRow appendDouble(double number) {
+        if (Math.abs(number) < 1e15 && number == Math.rint(number)) {
+            return this.appendLong((long) number);
+        }
+        return this.append(Double.toString(number));
+    }
+
     /**
      * Adds a Float to this row before returning said row. Implementations are responsible for formatting.
      *
@@ -42,9 +103,33 @@ public interface InfileRow {
      * @param precision the maximum number of digits
      * @param scale the number of digits to the right of the decimal point
      * @return this row
+     * @see #append(double, FixedPointFormat)
      */
     InfileRow append(Float number, int precision, int scale);
 
+    /**
+     * Adds a floating point number to this row in a fixed-point format before returning said row. Callers should resolve
+     * the format once per column rather than once per value.
+     *
+     * @param number to add
+     * @param format the precision and scale of the column
+     * @return this row
+     */
+    default InfileRow append(double number, FixedPointFormat format) {
+        return this.append(format.format(number));
+    }
+
+    /**
+     * Adds a BigDecimal to this row before returning said row. The value is written in plain notation, never using an
+     * exponent.
+     *
+     * @param number to add
+     * @return this row
+     */
+    default InfileRow append(BigDecimal number) {
+        return (number == null) ? this.appendNull() : this.append(number.toPlainString());
+    }
+
     /**
      * Adds a String to this row before returning said row. Implementations are responsible for handling encoding.
      *
@@ -63,6 +148,126 @@ public interface InfileRow {
      */
     InfileRow append(Date d, Method method);
 
+    /**
+     * Adds a date to this row in the format of a temporal type before returning said row. Callers should resolve the
+     * temporal type once per column rather than once per value.
+     *
+     * @param d to add
+     * @param temporalType the temporal type of the column
+     * @return this row
+     */
+    default InfileRow append(Date d, TemporalType temporalType) {
+        return (d == null) ? this.appendNull() : this.appendInstant(d.getTime(), temporalType);
+    }
+
+    /**
+     * Adds an instant to this row as a {@link TemporalType#TIMESTAMP} in the default time zone before returning said row.
+     *
+     * @param instant to add
+     * @return this row
+     */
+    default InfileRow append(Instant instant) {
+        return (instant == null) ? this.appendNull() : this.appendInstant(instant.toEpochMilli(), TemporalType.TIMESTAMP);
+    }
+
+    /**
+     * Adds a local date to this row as a {@link TemporalType#DATE} before returning said row.
+     *
+     * @param date to add
+     * @return this row
+     */
+    default InfileRow append(LocalDate date) {
+        return (date == null) ? this.appendNull() : this.appendDate(date.getYear(), date.getMonthValue(), date.getDayOfMonth());
+    }
+
+    /**
+     * Adds a local date and time to this row as a {@link TemporalType#TIMESTAMP} before returning said row. Fractions of
+     * a second are dropped.
+     *
+     * @param dateTime to add
+     * @return this row
+     */
+    default InfileRow append(LocalDateTime dateTime) {
+        return (dateTime == null) ? this.appendNull() : this.appendDateTime(dateTime.getYear(), dateTime.getMonthValue(),
+                dateTime.getDayOfMonth(), dateTime.getHour(), dateTime.getMinute(), dateTime.getSecond());
+    }
+
+    /**
+     * Adds a date from its fields, in the same format as {@link #append(LocalDate)}, before returning said row. This
+     * allows dates of other libraries to be added without converting them first.
+     *
+     * @param year the year
+     * @param month the month of the year, from 1 to 12
+     * @param day the day of the month, from 1
+     * @return this row
+     */
+    default InfileRow appendDate(int year, int month, int day) {
+        return this.append(LocalDate.of(year, month, day).format(DateTimeFormatter.ofPattern("yyyy-MM-dd")));
+    }
+
+    /**
+     * Adds a date and time from its fields, in the same format as {@link #append(LocalDateTime)}, before returning said
+     * row.
+     *
+     * @param year the year
+     * @param month the month of the year, from 1 to 12
+     * @param day the day of the month, from 1
+     * @param hour the hour of the day, from 0 to 23
+     * @param minute the minute of the hour
+     * @param second the second of the minute
+     * @return this row
+     */
+    default InfileRow appendDateTime(int year, int month, int day, int hour, int minute, int second) {
+        return this.append(LocalDateTime.of(year, month, day, hour, minute, second)
+                                   .format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")));
+    }
+
+    /**
+     * Adds an instant as local time, in the same format as {@link #append(Date, TemporalType)}, before returning said
+     * row.
+     *
+     * @param instant milliseconds since the epoch
+     * @param temporalType the format to use
+     * @return this row
+     */
+    default InfileRow appendInstant(long instant, TemporalType temporalType) {
+        switch (temporalType) {
+            case DATE:
+                return this.append(DateTimeFormat.forPattern("yyyy-MM-dd").print(instant));
+            case TIME:
+                return this.append(DateTimeFormat.forPattern("HH:mm:ss").print(instant));
+            case TIMESTAMP:
+                return this.append(DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss").print(instant));
+            default:
+                throw new IllegalArgumentException("Unsupported temporal type " + temporalType);
+        }
+    }
+
+    /**
+     * Adds a UUID in its text form, for example {@code 123e4567-e89b-12d3-a456-426655440000}, before returning said row.
+     *
+     * @param uuid to add
+     * @return this row
+     */
+    default InfileRow append(UUID uuid) {
+        return (uuid == null) ? this.appendNull() : this.append(uuid.toString());
+    }
+
+    /**
+     * Adds the 16 bytes of a UUID, most significant first, for a {@code BINARY(16)} column. The bytes are escaped like
+     * {@link #append(byte[])} does.
+     *
+     * @param uuid to add
+     * @return this row
+     */
+    default InfileRow appendBinary(UUID uuid) {
+        if (uuid == null) {
+            return this.appendNull();
+        }
+        return this.append(ByteBuffer.allocate(16).putLong(uuid.getMostSignificantBits())
+                                   .putLong(uuid.getLeastSignificantBits()).array());
+    }
+
     /**
      * Adds a boolean to this row before returning said row.
      */
@@ -0,0 +1,112 @@
+package com.opower.persistence.jpile.infile;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Throwables.propagate;
+
+/**
+ * Writes infile chunks to disk instead of loading them, so that rows can be converted without a database and loaded
+ * later, possibly on another machine, with an {@link InfileSpoolReplayer}. Each {@code LOAD DATA} statement gets its own
+ * directory, holding the statement in {@value #SQL_FILE_NAME} and every flushed buffer as a numbered chunk file. Chunk
+ * files are written through a memory mapping under a temporary name and then renamed, so a chunk file is either
+ * complete or absent.
+ * <p/>
+ * The chunks are encoded in the charset of the infile buffers, and are loaded with the character set of the database
+ * they are replayed into, just like rows that are loaded directly.
+ * <p/>
+ * Instances of this class are safe for use by multiple threads.
+ *
+ * @author agent
+ * @see com.opower.persistence.jpile.loader.InfileObjectLoader#setSpool(InfileSpool)
+ * @since 1.7.12
+ */
+public class InfileSpool {
+    static final String SQL_FILE_NAME = "load.sql";
+    static final String CHUNK_SUFFIX = ".infile";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private final File directory;
+    private final Map<String, Table> tables = new HashMap<>();
+
+    /**
+     * Creates a spool in a directory, which is created if it does not exist.
+     *
+     * @param directory the directory to write to, which should not contain an earlier spool
+     */
+    public InfileSpool(File directory) {
+        Preconditions.checkNotNull(directory, "directory cannot be null");
+        Preconditions.checkArgument(directory.isDirectory() || directory.mkdirs(), "Cannot create directory [%s]", directory);
+        this.directory = directory;
+    }
+
+    public File getDirectory() {
+        return this.directory;
+    }
+
+    /**
+     * Writes the rows of a buffer as the next chunk of a statement. The buffer is left unchanged, so it must be cleared
+     * afterwards.
+     *
+     * @param loadInfileSql the statement that loads the rows
+     * @param infileDataBuffer the rows
+     */
+    public void write(String loadInfileSql, InfileDataBuffer infileDataBuffer) {
+        Table table = this.table(loadInfileSql);
+        ByteBuffer contents = infileDataBuffer.asReadOnlyBuffer();
+        File chunk = new File(table.directory, String.format("chunk-%06d%s", table.chunks.incrementAndGet(), CHUNK_SUFFIX));
+        File temporary = new File(chunk.getPath() + TEMPORARY_SUFFIX);
+        try {
+            try (FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE_NEW,
+                                                        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, contents.remaining());
+                mapped.put(contents);
+                mapped.force();
+            }
+            java.nio.file.Files.move(temporary.toPath(), chunk.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            throw propagate(e);
+        }
+    }
+
+    private synchronized Table table(String loadInfileSql) {
+        Table table = this.tables.get(loadInfileSql);
+        if (table == null) {
+            table = new Table(new File(this.directory, String.format("table-%03d", this.tables.size() + 1)));
+            Preconditions.checkState(table.directory.mkdir(), "Cannot create directory [%s]", table.directory);
+            try {
+                Files.write(loadInfileSql, new File(table.directory, SQL_FILE_NAME), Charsets.UTF_8);
+            }
+            catch (IOException e) {
+                throw propagate(e);
+            }
+            this.tables.put(loadInfileSql, table);
+        }
+        return table;
+    }
+
+    /**
+     * The directory of a statement and the number of chunks written to it.
+     */
+    private static final class Table {
+        private final File directory;
+        private final AtomicInteger chunks = new AtomicInteger();
+
+        private Table(File directory) {
+            this.directory = directory;
+        }
+    }
+}
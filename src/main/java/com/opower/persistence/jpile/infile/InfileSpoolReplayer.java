@@ -0,0 +1,214 @@
+package com.opower.persistence.jpile.infile;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.opower.persistence.jpile.util.JdbcUtil;
+
+import javax.sql.DataSource;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.Throwables.propagate;
+
+/**
+ * Loads a directory written by an {@link InfileSpool} into a database. The chunks of a table are loaded in the order
+ * they were written, each with its own {@code LOAD DATA} statement and read through a memory mapping. Different tables
+ * can be loaded in parallel on separate connections.
+ * <p/>
+ * A chunk file is renamed once it has been loaded, so replaying a spool again after a failure only loads the chunks
+ * that were not loaded yet. Foreign key checks are disabled while loading, since tables are not loaded in any particular
+ * order, and are set back to their previous value of each connection afterwards.
+ * <p/>
+ * Instances of this class are safe for use by multiple threads, as long as they do not replay the same directory at
+ * the same time.
+ *
+ * @author agent
+ * @since 1.7.12
+ */
+public class InfileSpoolReplayer {
+    static final String LOADED_SUFFIX = ".loaded";
+
+    private final File directory;
+
+    /**
+     * Creates a replayer for a spool directory.
+     *
+     * @param directory the directory of an {@link InfileSpool}
+     */
+    public InfileSpoolReplayer(File directory) {
+        Preconditions.checkArgument(directory.isDirectory(), "[%s] is not a directory", directory);
+        this.directory = directory;
+    }
+
+    /**
+     * Loads all tables one after the other.
+     *
+     * @param connection the connection to load with
+     * @return the warnings of all statements
+     */
+    public List<Exception> replay(Connection connection) {
+        List<Exception> warnings = new ArrayList<>();
+        List<File> tables = this.tableDirectories();
+        boolean foreignKeyChecks = foreignKeyChecks(connection);
+        setForeignKeyChecks(connection, false);
+        try {
+            for (File table : tables) {
+                warnings.addAll(replayTable(table, connection));
+            }
+        }
+        finally {
+            setForeignKeyChecks(connection, foreignKeyChecks);
+        }
+        return warnings;
+    }
+
+    /**
+     * Loads tables in parallel, each on its own connection. Every table is attempted even if another one fails, and the
+     * first failure is thrown once all tables are done.
+     *
+     * @param dataSource provides a connection for each table
+     * @param threads the maximum number of tables loaded at the same time
+     * @return the warnings of all statements
+     */
+    public List<Exception> replay(final DataSource dataSource, int threads) {
+        Preconditions.checkNotNull(dataSource, "dataSource cannot be null");
+        Preconditions.checkArgument(threads >= 1, "threads (%s) must be at least 1", threads);
+        final List<Exception> warnings = Collections.synchronizedList(new ArrayList<Exception>());
+        ExecutorService executor = Executors.newFixedThreadPool(
+                threads, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("jpile-replay-%d").build());
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (final File table : this.tableDirectories()) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws SQLException {
+                        try (Connection connection = dataSource.getConnection()) {
+                            // Pooled connections keep their session variables
+                            boolean foreignKeyChecks = foreignKeyChecks(connection);
+                            setForeignKeyChecks(connection, false);
+                            try {
+                                warnings.addAll(replayTable(table, connection));
+                            }
+                            finally {
+                                setForeignKeyChecks(connection, foreignKeyChecks);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            Throwable failure = null;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                }
+                catch (ExecutionException e) {
+                    failure = failure == null ? e.getCause() : failure;
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw propagate(e);
+                }
+            }
+            if (failure != null) {
+                throw propagate(failure);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        return warnings;
+    }
+
+    private List<File> tableDirectories() {
+        try {
+            return Arrays.asList(listFiles(this.directory, new FileFilter() {
+                @Override
+                public boolean accept(File file) {
+                    return new File(file, InfileSpool.SQL_FILE_NAME).isFile();
+                }
+            }));
+        }
+        catch (IOException e) {
+            throw propagate(e);
+        }
+    }
+
+    private static List<Exception> replayTable(File table, Connection connection) {
+        List<Exception> warnings = new ArrayList<>();
+        try {
+            String loadInfileSql = Files.toString(new File(table, InfileSpool.SQL_FILE_NAME), Charsets.UTF_8);
+            File[] chunks = listFiles(table, new FileFilter() {
+                @Override
+                public boolean accept(File file) {
+                    return file.getName().endsWith(InfileSpool.CHUNK_SUFFIX);
+                }
+            });
+            for (File chunk : chunks) {
+                try (FileChannel channel = FileChannel.open(chunk.toPath(), StandardOpenOption.READ)) {
+                    MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    warnings.addAll(JdbcUtil.execute(connection, new InfileStatementCallback(
+                            loadInfileSql, new ByteBufferInputStream(mapped))));
+                }
+                Files.move(chunk, new File(chunk.getPath() + LOADED_SUFFIX));
+            }
+        }
+        catch (IOException e) {
+            throw propagate(e);
+        }
+        return warnings;
+    }
+
+    /**
+     * Lists the files of a directory by name.
+     *
+     * @throws IOException if the directory cannot be listed
+     */
+    private static File[] listFiles(File directory, FileFilter filter) throws IOException {
+        File[] files = directory.listFiles(filter);
+        if (files == null) {
+            throw new IOException(String.format("Could not list the files of [%s]", directory));
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static boolean foreignKeyChecks(Connection connection) {
+        return JdbcUtil.execute(connection, new JdbcUtil.StatementCallback<Boolean>() {
+            @Override
+            public Boolean doInStatement(Statement statement) throws SQLException {
+                try (ResultSet resultSet = statement.executeQuery("SELECT @@FOREIGN_KEY_CHECKS")) {
+                    return !resultSet.next() || resultSet.getInt(1) != 0;
+                }
+            }
+        });
+    }
+
+    private static void setForeignKeyChecks(Connection connection, final boolean enabled) {
+        JdbcUtil.execute(connection, new JdbcUtil.StatementCallback<Boolean>() {
+            @Override
+            public Boolean doInStatement(Statement statement) throws SQLException {
+                return statement.execute("SET FOREIGN_KEY_CHECKS = " + (enabled ? 1 : 0));
+            }
+        });
+    }
+}
@@ -11,6 +11,7 @@ import java.sql.SQLException;
 import java.sql.SQLWarning;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -42,6 +43,8 @@ public class InfileStatementCallback implements JdbcUtil.StatementCallback<List<
     private String loadInfileSql;
     // Source of data.
     private InputStream inputStream;
+    // Null to return the warnings of each statement instead
+    private InfileWarnings infileWarnings;
 
     /**
      * Constructs a callback from a SQL statement and a data stream from which to read.
@@ -54,13 +57,33 @@ public class InfileStatementCallback implements JdbcUtil.StatementCallback<List<
         this.inputStream = inputStream;
     }
 
+    /**
+     * Constructs a callback that records warnings in a collector instead of returning them. Warnings are not read at all
+     * when the collector is {@link InfileWarnings.Mode#OFF off}.
+     *
+     * @param loadInfileSql to execute
+     * @param inputStream   from which to read
+     * @param infileWarnings where to record the warnings
+     * @since 1.7.12
+     */
+    public InfileStatementCallback(String loadInfileSql, InputStream inputStream, InfileWarnings infileWarnings) {
+        this(loadInfileSql, inputStream);
+        this.infileWarnings = infileWarnings;
+    }
+
     @Override
     public List<Exception> doInStatement(Statement statement) throws SQLException {
         for (JdbcDriverSupport support : SUPPORTED_DRIVERS) {
             if (support.accept(statement)) {
                 support.doWithStatement(statement, this.inputStream);
                 statement.execute(this.loadInfileSql);
-                return extractWarnings(statement.getWarnings());
+                if (this.infileWarnings == null) {
+                    return extractWarnings(statement.getWarnings());
+                }
+                if (this.infileWarnings.isEnabled()) {
+                    this.infileWarnings.record(statement.getWarnings());
+                }
+                return Collections.emptyList();
             }
         }
         throw new RuntimeException(String.format("Statement of type [%s] is not supported.", statement.getClass().getName()));
@@ -73,7 +96,10 @@ public class InfileStatementCallback implements JdbcUtil.StatementCallback<List<
      * @return list of warnings
      */
     private List<Exception> extractWarnings(SQLWarning warning) {
-        List<Exception> warnings = new ArrayList<>(1000);
+        if (warning == null) {
+            return Collections.emptyList();
+        }
+        List<Exception> warnings = new ArrayList<>();
         while (warning != null) {
             warnings.add(warning);
             warning = warning.getNextWarning();
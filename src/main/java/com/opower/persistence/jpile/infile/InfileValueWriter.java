@@ -0,0 +1,83 @@
+package com.opower.persistence.jpile.infile;
+
+import org.joda.time.LocalDate;
+import org.joda.time.LocalDateTime;
+import org.joda.time.ReadableInstant;
+
+import javax.persistence.TemporalType;
+import java.util.UUID;
+
+/**
+ * Writes the values of a type into a row with the typed appends of {@link InfileRow}, instead of appending the String
+ * returned by {@link Object#toString()}. Writers are registered for a type in {@link InfileValueWriters}, and loaders
+ * use the writer of the declared type of a column for all of its values.
+ * <p/>
+ * Implementations must be safe for use by multiple threads when they are shared between loaders.
+ *
+ * @param <T> the type of values
+ * @author agent
+ * @see InfileValueWriters
+ * @since 1.7.12
+ */
+public interface InfileValueWriter<T> {
+    /**
+     * Writes UUIDs in their text form, for {@code CHAR(36)} columns. This is the default for UUIDs.
+     */
+    InfileValueWriter<UUID> UUID_TEXT = new InfileValueWriter<UUID>() {
+        @Override
+        public void write(UUID value, InfileRow infileRow) {
+            infileRow.append(value);
+        }
+    };
+
+    /**
+     * Writes UUIDs as 16 raw bytes, for {@code BINARY(16)} columns. Like
+     * {@link com.opower.persistence.jpile.loader.SingleInfileObjectLoaderBuilder#useRawBinary(boolean)}, this relies on
+     * the server not converting the bytes from the database character set.
+     */
+    InfileValueWriter<UUID> UUID_BINARY = new InfileValueWriter<UUID>() {
+        @Override
+        public void write(UUID value, InfileRow infileRow) {
+            infileRow.appendBinary(value);
+        }
+    };
+
+    /**
+     * Writes Joda instants, such as {@link org.joda.time.DateTime}, as timestamps in the time zone of the row.
+     */
+    InfileValueWriter<ReadableInstant> JODA_INSTANT = new InfileValueWriter<ReadableInstant>() {
+        @Override
+        public void write(ReadableInstant value, InfileRow infileRow) {
+            infileRow.appendInstant(value.getMillis(), TemporalType.TIMESTAMP);
+        }
+    };
+
+    /**
+     * Writes Joda local dates as dates.
+     */
+    InfileValueWriter<LocalDate> JODA_LOCAL_DATE = new InfileValueWriter<LocalDate>() {
+        @Override
+        public void write(LocalDate value, InfileRow infileRow) {
+            infileRow.appendDate(value.getYear(), value.getMonthOfYear(), value.getDayOfMonth());
+        }
+    };
+
+    /**
+     * Writes Joda local date times as timestamps, without their milliseconds.
+     */
+    InfileValueWriter<LocalDateTime> JODA_LOCAL_DATE_TIME = new InfileValueWriter<LocalDateTime>() {
+        @Override
+        public void write(LocalDateTime value, InfileRow infileRow) {
+            infileRow.appendDateTime(value.getYear(), value.getMonthOfYear(), value.getDayOfMonth(),
+                                     value.getHourOfDay(), value.getMinuteOfHour(), value.getSecondOfMinute());
+        }
+    };
+
+    /**
+     * Appends a value to a row as a single column.
+     *
+     * @param value the value, never null
+     * @param infileRow the row to append to
+     */
+    void write(T value, InfileRow infileRow);
+}
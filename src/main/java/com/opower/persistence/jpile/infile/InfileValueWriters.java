@@ -0,0 +1,142 @@
+package com.opower.persistence.jpile.infile;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.Primitives;
+import org.joda.time.LocalDate;
+import org.joda.time.LocalDateTime;
+import org.joda.time.ReadableInstant;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A registry of {@link InfileValueWriter}s by type. The writer of a type is the one registered for the type itself, or
+ * else for its closest superclass, or else for one of its interfaces. Primitive types use the writer of their wrapper.
+ * <p/>
+ * Values that need to be converted to another type first, like JPA attribute converters do, can be written with
+ * {@link #converting(Function, InfileValueWriter)}, for example to write a money type as its amount in cents.
+ * <p/>
+ * Instances of this class are not safe for use by multiple threads while writers are being registered. Loaders copy the
+ * writers they are built with.
+ *
+ * @author agent
+ * @since 1.7.12
+ */
+public final class InfileValueWriters {
+    private final Map<Class<?>, InfileValueWriter<?>> writers = new LinkedHashMap<>();
+
+    /**
+     * Creates a registry with the writers for UUIDs and Joda types, which loaders use by default.
+     *
+     * @return a new registry
+     */
+    public static InfileValueWriters defaults() {
+        return new InfileValueWriters()
+                .register(UUID.class, InfileValueWriter.UUID_TEXT)
+                .register(ReadableInstant.class, InfileValueWriter.JODA_INSTANT)
+                .register(LocalDate.class, InfileValueWriter.JODA_LOCAL_DATE)
+                .register(LocalDateTime.class, InfileValueWriter.JODA_LOCAL_DATE_TIME);
+    }
+
+    /**
+     * Creates a writer that converts each value and writes the result with another writer. Values that are converted to
+     * null are written as {@code NULL}.
+     *
+     * @param converter converts the values
+     * @param writer writes the converted values
+     * @param <T> the type of values
+     * @param <R> the type the values are converted to
+     * @return the writer
+     */
+    public static <T, R> InfileValueWriter<T> converting(final Function<? super T, ? extends R> converter,
+                                                         final InfileValueWriter<? super R> writer) {
+        Preconditions.checkNotNull(converter, "converter cannot be null");
+        Preconditions.checkNotNull(writer, "writer cannot be null");
+        return new InfileValueWriter<T>() {
+            @Override
+            public void write(T value, InfileRow infileRow) {
+                R converted = converter.apply(value);
+                if (converted == null) {
+                    infileRow.appendNull();
+                }
+                else {
+                    writer.write(converted, infileRow);
+                }
+            }
+        };
+    }
+
+    /**
+     * Registers the writer for a type, replacing the one that was registered before.
+     *
+     * @param type the type
+     * @param writer the writer for values of the type and its subtypes
+     * @param <T> the type
+     * @return this registry
+     */
+    public <T> InfileValueWriters register(Class<T> type, InfileValueWriter<? super T> writer) {
+        Preconditions.checkNotNull(writer, "writer cannot be null");
+        this.writers.put(Primitives.wrap(type), writer);
+        return this;
+    }
+
+    /**
+     * Registers all writers of another registry, replacing the ones registered before for the same types.
+     *
+     * @param other the other registry
+     * @return this registry
+     */
+    public InfileValueWriters registerAll(InfileValueWriters other) {
+        this.writers.putAll(other.writers);
+        return this;
+    }
+
+    /**
+     * Finds the writer for a type.
+     *
+     * @param type the type
+     * @param <T> the type
+     * @return the writer, or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    public <T> InfileValueWriter<? super T> find(Class<T> type) {
+        return (InfileValueWriter<? super T>) this.findWriter(Primitives.wrap(type));
+    }
+
+    /**
+     * Writes a value with the writer for its class.
+     *
+     * @param value the value, not null
+     * @param infileRow the row to append to
+     * @return false, without appending anything, if there is no writer for the class of the value
+     */
+    @SuppressWarnings("unchecked")
+    public boolean write(Object value, InfileRow infileRow) {
+        InfileValueWriter<Object> writer = (InfileValueWriter<Object>) this.findWriter(value.getClass());
+        if (writer == null) {
+            return false;
+        }
+        writer.write(value, infileRow);
+        return true;
+    }
+
+    private InfileValueWriter<?> findWriter(Class<?> type) {
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            InfileValueWriter<?> writer = this.writers.get(c);
+            if (writer != null) {
+                return writer;
+            }
+        }
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            for (Class<?> anInterface : c.getInterfaces()) {
+                InfileValueWriter<?> writer = this.findWriter(anInterface);
+                if (writer != null) {
+                    return writer;
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,151 @@
+package com.opower.persistence.jpile.infile;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import java.sql.SQLWarning;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the warnings of {@code LOAD DATA} statements across flushes, using a bounded amount of memory. Depending on
+ * the {@link Mode}, warnings are ignored, counted by SQLState and vendor code, or counted with the most recent ones kept
+ * as samples. The counts only include warnings that the driver reports, which MySQL limits to {@code max_error_count}
+ * per statement.
+ * <p/>
+ * Instances of this class are safe for use by multiple threads, so one instance can be shared by all loaders.
+ *
+ * @author agent
+ * @since 1.7.12
+ */
+public class InfileWarnings {
+    public static final int DEFAULT_SAMPLE_SIZE = 1000;
+
+    /**
+     * What to keep of the warnings.
+     */
+    public enum Mode {
+        /**
+         * Do not ask the driver for warnings at all, which saves a round trip per statement.
+         */
+        OFF,
+        /**
+         * Count warnings by SQLState and vendor code.
+         */
+        COUNTS,
+        /**
+         * Count warnings and keep the most recent ones.
+         */
+        SAMPLES
+    }
+
+    private final Mode mode;
+    private final int sampleSize;
+    private final Map<String, Long> counts = new LinkedHashMap<>();
+    private final ArrayDeque<SQLWarning> samples = new ArrayDeque<>();
+    private long count = 0;
+
+    /**
+     * Creates a collector.
+     *
+     * @param mode what to keep of the warnings
+     * @param sampleSize the number of warnings to keep in {@link Mode#SAMPLES} mode
+     */
+    public InfileWarnings(Mode mode, int sampleSize) {
+        Preconditions.checkNotNull(mode, "mode cannot be null");
+        Preconditions.checkArgument(sampleSize >= 0, "sampleSize (%s) cannot be negative", sampleSize);
+        this.mode = mode;
+        this.sampleSize = mode == Mode.SAMPLES ? sampleSize : 0;
+    }
+
+    /**
+     * Creates a collector that keeps the {@value #DEFAULT_SAMPLE_SIZE} most recent warnings.
+     */
+    public InfileWarnings() {
+        this(Mode.SAMPLES, DEFAULT_SAMPLE_SIZE);
+    }
+
+    public Mode getMode() {
+        return this.mode;
+    }
+
+    /**
+     * Checks whether warnings should be read from the statement.
+     *
+     * @return false in {@link Mode#OFF} mode
+     */
+    public boolean isEnabled() {
+        return this.mode != Mode.OFF;
+    }
+
+    /**
+     * Adds a chain of warnings.
+     *
+     * @param warning the first warning of the chain, or null if there are none
+     */
+    public synchronized void record(SQLWarning warning) {
+        if (!this.isEnabled()) {
+            return;
+        }
+        for (; warning != null; warning = warning.getNextWarning()) {
+            this.count++;
+            String code = warning.getSQLState() + ":" + warning.getErrorCode();
+            Long codeCount = this.counts.get(code);
+            this.counts.put(code, codeCount == null ? 1 : codeCount + 1);
+            if (this.sampleSize > 0) {
+                if (this.samples.size() == this.sampleSize) {
+                    this.samples.removeFirst();
+                }
+                this.samples.addLast(warning);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of warnings recorded.
+     *
+     * @return the total count
+     */
+    public synchronized long getCount() {
+        return this.count;
+    }
+
+    /**
+     * Gets the number of warnings by their code.
+     *
+     * @return counts keyed by {@code SQLState:vendorCode}, in the order the codes first occurred
+     */
+    public synchronized Map<String, Long> getCountsByCode() {
+        return ImmutableMap.copyOf(this.counts);
+    }
+
+    /**
+     * Gets the most recent warnings, oldest first. Always empty unless in {@link Mode#SAMPLES} mode.
+     *
+     * @return a copy of the samples
+     */
+    public synchronized List<SQLWarning> getSamples() {
+        return ImmutableList.copyOf(this.samples);
+    }
+
+    /**
+     * Forgets all warnings recorded so far.
+     */
+    public synchronized void clear() {
+        this.count = 0;
+        this.counts.clear();
+        this.samples.clear();
+    }
+
+    /**
+     * Summarizes the counts, for example {@code 3 warnings [01000:1265=2, 01000:1366=1]}.
+     */
+    @Override
+    public synchronized String toString() {
+        return String.format("%d warnings [%s]", this.count, Joiner.on(", ").withKeyValueSeparator("=").join(this.counts));
+    }
+}
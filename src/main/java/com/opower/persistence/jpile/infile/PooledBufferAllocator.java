@@ -0,0 +1,106 @@
+package com.opower.persistence.jpile.infile;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps released buffers and hands them out again for allocations of the same capacity, so that buffers can be reused
+ * across loader instances. New buffers come from another allocator, for example {@link BufferAllocator#DIRECT}.
+ * <p/>
+ * Subclasses can decide which released buffers are kept, see {@link BufferPool}.
+ * <p/>
+ * Instances of this class are safe for use by multiple threads.
+ *
+ * @author agent
+ * @since 1.7.12
+ */
+public class PooledBufferAllocator implements BufferAllocator {
+    private final BufferAllocator allocator;
+    private final int maxPooledBuffers;
+    private final Map<Integer, Deque<ByteBuffer>> pool = new HashMap<>();
+
+    /**
+     * Creates a new pool.
+     *
+     * @param allocator allocates new buffers when there are none to reuse
+     * @param maxPooledBuffers the maximum number of released buffers to keep for each capacity
+     */
+    public PooledBufferAllocator(BufferAllocator allocator, int maxPooledBuffers) {
+        Preconditions.checkNotNull(allocator, "allocator cannot be null");
+        Preconditions.checkArgument(maxPooledBuffers >= 0, "maxPooledBuffers (%s) cannot be negative", maxPooledBuffers);
+        this.allocator = allocator;
+        this.maxPooledBuffers = maxPooledBuffers;
+    }
+
+    @Override
+    public ByteBuffer allocate(int capacity) {
+        ByteBuffer buffer;
+        synchronized (this.pool) {
+            Deque<ByteBuffer> buffers = this.pool.get(capacity);
+            buffer = buffers == null ? null : buffers.poll();
+            this.allocated(capacity, buffer != null);
+        }
+        if (buffer == null) {
+            return this.allocator.allocate(capacity);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    @Override
+    public void release(ByteBuffer buffer) {
+        synchronized (this.pool) {
+            Deque<ByteBuffer> buffers = this.pool.get(buffer.capacity());
+            if (buffers == null) {
+                buffers = new ArrayDeque<>();
+                this.pool.put(buffer.capacity(), buffers);
+            }
+            if (this.released(buffer.capacity(), buffers.size())) {
+                buffers.push(buffer);
+                return;
+            }
+        }
+        this.allocator.release(buffer);
+    }
+
+    /**
+     * Called whenever a buffer is handed out, while holding the lock of the pool.
+     *
+     * @param capacity the capacity of the buffer
+     * @param reused true if the buffer was taken from the pool, false if it is allocated by the underlying allocator
+     */
+    protected void allocated(int capacity, boolean reused) {
+    }
+
+    /**
+     * Called whenever a buffer is released, while holding the lock of the pool, to decide whether to keep it. Buffers
+     * that are not kept are handed back to the underlying allocator.
+     *
+     * @param capacity the capacity of the buffer
+     * @param pooledBuffers the number of buffers of that capacity that are already pooled
+     * @return true to keep the buffer for reuse
+     */
+    protected boolean released(int capacity, int pooledBuffers) {
+        return pooledBuffers < this.maxPooledBuffers;
+    }
+
+    /**
+     * Gets the number of buffers that are waiting to be reused.
+     *
+     * @return the number of pooled buffers of all capacities
+     */
+    public int getPooledBufferCount() {
+        synchronized (this.pool) {
+            int count = 0;
+            for (Deque<ByteBuffer> buffers : this.pool.values()) {
+                count += buffers.size();
+            }
+            return count;
+        }
+    }
+}
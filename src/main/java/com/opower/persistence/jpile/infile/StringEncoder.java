@@ -0,0 +1,249 @@
+package com.opower.persistence.jpile.infile;
+
+import com.google.common.base.Charsets;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+
+/**
+ * Encodes ranges of a String into a byte buffer. US-ASCII, ISO-8859-1 and UTF-8 have encoders that write bytes directly,
+ * with a tight loop for runs of ASCII characters since those are by far the most common. Any character such an encoder
+ * cannot handle itself, like an unmappable character or a lone surrogate, is handed to a {@link CharsetEncoder} so that
+ * errors are reported the same way for every charset. All other charsets always use a {@link CharsetEncoder}.
+ * <p/>
+ * Characters are written with relative puts, so a full buffer results in a
+ * {@link java.nio.BufferOverflowException}. Part of the range may already have been written when that happens.
+ * <p/>
+ * Instances of this class are not safe for use by multiple threads.
+ *
+ * @author agent
+ * @since 1.7.12
+ */
+abstract class StringEncoder {
+    // Size in chars of the scratch buffer used to feed the charset encoder
+    private static final int CHAR_BUFFER_SIZE = 1024;
+    private static final int ASCII_LIMIT = 0x80;
+
+    /**
+     * Creates the fastest encoder for a charset.
+     *
+     * @param charset the charset to encode to
+     * @return the encoder
+     */
+    static StringEncoder forCharset(Charset charset) {
+        Generic generic = (Generic) generic(charset);
+        if (charset.equals(Charsets.US_ASCII)) {
+            return new Ascii(generic);
+        }
+        if (charset.equals(Charsets.ISO_8859_1)) {
+            return new Latin1(generic);
+        }
+        if (charset.equals(Charsets.UTF_8)) {
+            return new Utf8(generic);
+        }
+        return generic;
+    }
+
+    /**
+     * Visible for testing.
+     *
+     * @param charset the charset to encode to
+     * @return an encoder that always uses a {@link CharsetEncoder}
+     */
+    static StringEncoder generic(Charset charset) {
+        return new Generic(charset.newEncoder());
+    }
+
+    /**
+     * Encodes the characters {@code s[start, end)}.
+     *
+     * @param s the string to encode
+     * @param start index of the first character to encode
+     * @param end index after the last character to encode
+     * @param out the buffer to write to
+     */
+    abstract void encode(String s, int start, int end, ByteBuffer out);
+
+    /**
+     * Resets any state left behind by a call to {@link #encode} that failed part way.
+     */
+    abstract void reset();
+
+    /**
+     * Writes characters as single bytes for as long as they are ASCII. Heap buffers are written through their backing
+     * array. Writing stops early without an exception if the buffer is full.
+     *
+     * @return the index of the first character that was not written
+     */
+    static int encodeAscii(String s, int start, int end, ByteBuffer out) {
+        int i = start;
+        if (out.hasArray()) {
+            byte[] array = out.array();
+            int offset = out.arrayOffset();
+            int position = offset + out.position();
+            int stop = Math.min(end, start + out.remaining());
+            for (char c; i < stop && (c = s.charAt(i)) < ASCII_LIMIT; i++) {
+                array[position++] = (byte) c;
+            }
+            out.position(position - offset);
+        }
+        else {
+            int stop = Math.min(end, start + out.remaining());
+            for (char c; i < stop && (c = s.charAt(i)) < ASCII_LIMIT; i++) {
+                out.put((byte) c);
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Uses a {@link CharsetEncoder}. The characters are copied into a reusable char buffer in chunks so that a surrogate
+     * pair is never split between two calls to the encoder.
+     */
+    private static final class Generic extends StringEncoder {
+        private final CharsetEncoder encoder;
+        private final CharBuffer charBuffer = CharBuffer.allocate(CHAR_BUFFER_SIZE);
+
+        private Generic(CharsetEncoder encoder) {
+            this.encoder = encoder;
+        }
+
+        @Override
+        void encode(String s, int start, int end, ByteBuffer out) {
+            while (start < end) {
+                int chunkEnd = Math.min(end, start + this.charBuffer.capacity());
+                if (chunkEnd < end && Character.isHighSurrogate(s.charAt(chunkEnd - 1))) {
+                    chunkEnd--;
+                }
+                this.charBuffer.clear();
+                s.getChars(start, chunkEnd, this.charBuffer.array(), 0);
+                this.charBuffer.limit(chunkEnd - start);
+
+                CoderResult result = this.encoder.encode(this.charBuffer, out, false);
+                if (!result.isUnderflow()) {
+                    try {
+                        result.throwException();
+                    }
+                    catch (CharacterCodingException e) {
+                        throw new Error(e);
+                    }
+                }
+                start = chunkEnd;
+            }
+        }
+
+        @Override
+        void reset() {
+            this.encoder.reset();
+        }
+    }
+
+    /**
+     * US-ASCII, where every supported character is a single byte.
+     */
+    private static final class Ascii extends StringEncoder {
+        private final Generic fallback;
+
+        private Ascii(Generic fallback) {
+            this.fallback = fallback;
+        }
+
+        @Override
+        void encode(String s, int start, int end, ByteBuffer out) {
+            int i = encodeAscii(s, start, end, out);
+            if (i < end) {
+                // Either the buffer is full or the character is unmappable
+                this.fallback.encode(s, i, end, out);
+            }
+        }
+
+        @Override
+        void reset() {
+            this.fallback.reset();
+        }
+    }
+
+    /**
+     * ISO-8859-1, where every character below U+0100 is a single byte.
+     */
+    private static final class Latin1 extends StringEncoder {
+        private final Generic fallback;
+
+        private Latin1(Generic fallback) {
+            this.fallback = fallback;
+        }
+
+        @Override
+        void encode(String s, int start, int end, ByteBuffer out) {
+            for (int i = encodeAscii(s, start, end, out); i < end; i++) {
+                char c = s.charAt(i);
+                if (c > 0xFF) {
+                    this.fallback.encode(s, i, end, out);
+                    return;
+                }
+                out.put((byte) c);
+            }
+        }
+
+        @Override
+        void reset() {
+            this.fallback.reset();
+        }
+    }
+
+    /**
+     * UTF-8, including supplementary characters written as four bytes, which MySQL calls utf8mb4.
+     */
+    private static final class Utf8 extends StringEncoder {
+        private final Generic fallback;
+
+        private Utf8(Generic fallback) {
+            this.fallback = fallback;
+        }
+
+        @Override
+        void encode(String s, int start, int end, ByteBuffer out) {
+            int i = encodeAscii(s, start, end, out);
+            while (i < end) {
+                char c = s.charAt(i);
+                if (c < ASCII_LIMIT) {
+                    out.put((byte) c);
+                    i = encodeAscii(s, i + 1, end, out);
+                    continue;
+                }
+                if (c < 0x800) {
+                    out.put((byte) (0xC0 | (c >> 6)));
+                    out.put((byte) (0x80 | (c & 0x3F)));
+                }
+                else if (!Character.isSurrogate(c)) {
+                    out.put((byte) (0xE0 | (c >> 12)));
+                    out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                    out.put((byte) (0x80 | (c & 0x3F)));
+                }
+                else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, s.charAt(i + 1));
+                    out.put((byte) (0xF0 | (codePoint >> 18)));
+                    out.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                    out.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                    out.put((byte) (0x80 | (codePoint & 0x3F)));
+                    i++;
+                }
+                else {
+                    // A lone surrogate is malformed
+                    this.fallback.encode(s, i, end, out);
+                    return;
+                }
+                i++;
+            }
+        }
+
+        @Override
+        void reset() {
+            this.fallback.reset();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.opower.persistence.jpile.loader;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides how many bytes a loader collects before it flushes, based on how long its previous flushes took. The flush
+ * size aims for flushes that take about the target latency at the measured throughput, so that narrow tables that load
+ * quickly flush less often, while tables that are expensive to load, for example because of many secondary indexes,
+ * flush smaller statements that do not stall the server. The throughput is a moving average, and the flush size changes
+ * by at most a factor of two per flush so that one slow flush does not swing it from one bound to the other.
+ * <p/>
+ * The flush size starts at the lower bound. Each loader needs its own instance, see
+ * {@link InfileObjectLoader#setAdaptiveFlushSize(AdaptiveFlushSize)}.
+ * <p/>
+ * Instances of this class are safe for use by multiple threads, since flushes may be measured on a background thread.
+ *
+ * @author agent
+ * @since 1.7.12
+ */
+public final class AdaptiveFlushSize {
+    // Weight of the latest flush in the moving average of the throughput
+    private static final double SMOOTHING = 0.3;
+    private static final int MAX_STEP = 2;
+
+    private final int minBytes;
+    private final int maxBytes;
+    private final long targetNanos;
+
+    private int flushSize;
+    // Negative until the first flush has been measured
+    private double bytesPerNano = -1;
+
+    /**
+     * Creates a new flush size.
+     *
+     * @param minBytes the smallest flush size, at least 1
+     * @param maxBytes the largest flush size, usually the capacity of the infile buffer
+     * @param targetLatency how long a flush should take
+     * @param unit the unit of {@code targetLatency}
+     */
+    public AdaptiveFlushSize(int minBytes, int maxBytes, long targetLatency, TimeUnit unit) {
+        Preconditions.checkArgument(minBytes >= 1, "minBytes (%s) must be at least 1", minBytes);
+        Preconditions.checkArgument(maxBytes >= minBytes, "maxBytes (%s) must be at least minBytes (%s)", maxBytes, minBytes);
+        Preconditions.checkArgument(targetLatency > 0, "targetLatency (%s) must be positive", targetLatency);
+        this.minBytes = minBytes;
+        this.maxBytes = maxBytes;
+        this.targetNanos = unit.toNanos(targetLatency);
+        this.flushSize = minBytes;
+    }
+
+    /**
+     * Gets the number of bytes after which the next flush should start.
+     *
+     * @return the flush size, between the bounds given to the constructor
+     */
+    public synchronized int getFlushSize() {
+        return this.flushSize;
+    }
+
+    /**
+     * Gets the moving average of the throughput of the measured flushes.
+     *
+     * @return bytes per second, or 0 if no flush has been measured yet
+     */
+    public synchronized double getBytesPerSecond() {
+        return this.bytesPerNano < 0 ? 0 : this.bytesPerNano * TimeUnit.SECONDS.toNanos(1);
+    }
+
+    /**
+     * Adjusts the flush size to a completed flush.
+     *
+     * @param bytes the number of bytes that were flushed
+     * @param nanos how long the flush took
+     */
+    public synchronized void recordFlush(long bytes, long nanos) {
+        if (bytes <= 0) {
+            return;
+        }
+        double throughput = (double) bytes / Math.max(1, nanos);
+        this.bytesPerNano = this.bytesPerNano < 0
+                ? throughput
+                : SMOOTHING * throughput + (1 - SMOOTHING) * this.bytesPerNano;
+
+        double ideal = this.bytesPerNano * this.targetNanos;
+        double stepped = Math.max((double) this.flushSize / MAX_STEP, Math.min((double) this.flushSize * MAX_STEP, ideal));
+        this.flushSize = (int) Math.max(this.minBytes, Math.min(this.maxBytes, stepped));
+    }
+}
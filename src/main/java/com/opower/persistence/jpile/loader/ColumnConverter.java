@@ -0,0 +1,377 @@
+package com.opower.persistence.jpile.loader;
+
+import com.google.common.base.Preconditions;
+import com.opower.persistence.jpile.infile.FixedPointFormat;
+import com.opower.persistence.jpile.infile.InfileDataBuffer;
+import com.opower.persistence.jpile.infile.InfileRow;
+import com.opower.persistence.jpile.infile.InfileValueWriter;
+import com.opower.persistence.jpile.reflection.PersistenceAnnotationInspector;
+
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.TemporalType;
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Throwables.propagate;
+import static com.opower.persistence.jpile.reflection.PersistenceAnnotationInspector.memberType;
+import static com.opower.persistence.jpile.util.Hex.encodeHexString;
+
+/**
+ * Appends the values of one column. The converter of a column is resolved once from the declared type of its getter or
+ * field and its annotations when the loader is built, so that appending a value does not have to look at its class,
+ * run through the checks for every supported type, or look up the annotations of the column again. For example, the
+ * converter of a {@code @ManyToOne} column reads the id of the related entity through a cached handle, and the
+ * converter of an enum column knows whether to write its name or its ordinal.
+ * <p/>
+ * The {@link InfileValueWriter} registered for the declared type of a column, if there is one, takes precedence over
+ * the conversions below.
+ * <p/>
+ * Columns with a small set of values, which are enums, booleans and string columns that have a dictionary, are encoded
+ * once for each value, so that appending a value copies its escaped and encoded bytes into the row. This is only done
+ * for rows that are an {@link InfileDataBuffer} with the charset of the loader's buffer; other rows get the typed
+ * append of the value. String values that are not in the dictionary of their column are encoded as usual.
+ * <p/>
+ * Columns whose declared type does not determine the conversion, such as {@code Object}, interfaces and non-final
+ * classes that are not entities, are converted by {@link SingleInfileObjectLoader#appendValue} for each value.
+ *
+ * @author agent
+ * @since 1.7.12
+ */
+abstract class ColumnConverter {
+    /**
+     * Appends a value, or {@code NULL}.
+     *
+     * @param value the value of the column
+     * @param infileRow the row to append to
+     */
+    final void append(Object value, InfileRow infileRow) {
+        if (value == null) {
+            infileRow.appendNull();
+        }
+        else {
+            this.appendValue(value, infileRow);
+        }
+    }
+
+    /**
+     * Appends a value that is not null.
+     *
+     * @param value the value of the column
+     * @param infileRow the row to append to
+     */
+    abstract void appendValue(Object value, InfileRow infileRow);
+
+    /**
+     * Tells whether values must be appended by this converter, because it does not append them the same way as the typed
+     * append of the declared type of the column. Row writers append other columns of such types directly.
+     *
+     * @return true if this converter writes values differently from the typed append of their type
+     */
+    boolean replacesTypedAppend() {
+        return false;
+    }
+
+    /**
+     * Resolves the converters of all columns of a loader, in the order of its mappings.
+     *
+     * @param loader the loader, whose mappings, formats and temporal types have been found
+     * @return a converter for each column
+     */
+    static ColumnConverter[] forColumns(SingleInfileObjectLoader<?> loader) {
+        ColumnConverter[] converters = new ColumnConverter[loader.mappings.size()];
+        int i = 0;
+        for (Map.Entry<String, AccessibleObject> entry : loader.mappings.entrySet()) {
+            AccessibleObject member = entry.getValue();
+            converters[i++] = forColumn(loader, entry.getKey(), member, memberType(member));
+        }
+        return converters;
+    }
+
+    private static ColumnConverter forColumn(final SingleInfileObjectLoader<?> loader, String column,
+                                             final AccessibleObject member, Class<?> type) {
+        PersistenceAnnotationInspector inspector = loader.persistenceAnnotationInspector;
+        if (inspector.hasTableAnnotation(type)) {
+            AccessibleObject idMember = inspector.idMember(type);
+            if (idMember != null) {
+                return new IdConverter(inspector.getter(idMember), forColumn(loader, column, member, memberType(idMember)));
+            }
+        }
+        InfileValueWriter<?> writer = loader.valueWriters.find(type);
+        if (writer != null) {
+            return new WriterConverter(writer);
+        }
+        if (type == Long.class || type == long.class) {
+            return new ColumnConverter() {
+                @Override
+                void appendValue(Object value, InfileRow infileRow) {
+                    infileRow.appendLong((Long) value);
+                }
+            };
+        }
+        if (type == Integer.class || type == int.class) {
+            return new ColumnConverter() {
+                @Override
+                void appendValue(Object value, InfileRow infileRow) {
+                    infileRow.appendInt((Integer) value);
+                }
+            };
+        }
+        if (type == Short.class || type == short.class) {
+            return new ColumnConverter() {
+                @Override
+                void appendValue(Object value, InfileRow infileRow) {
+                    infileRow.appendShort((Short) value);
+                }
+            };
+        }
+        if (type == Byte.class || type == byte.class) {
+            return new ColumnConverter() {
+                @Override
+                void appendValue(Object value, InfileRow infileRow) {
+                    // Not append(byte) which would write the raw byte instead of the number
+                    infileRow.appendShort((Byte) value);
+                }
+            };
+        }
+        if (type == Double.class || type == double.class || type == Float.class || type == float.class) {
+            final FixedPointFormat format = loader.fixedPointFormats.get(member);
+            if (format != null) {
+                return new ColumnConverter() {
+                    @Override
+                    void appendValue(Object value, InfileRow infileRow) {
+                        infileRow.append(((Number) value).doubleValue(), format);
+                    }
+                };
+            }
+            if (type == Double.class || type == double.class) {
+                return new ColumnConverter() {
+                    @Override
+                    void appendValue(Object value, InfileRow infileRow) {
+                        infileRow.appendDouble((Double) value);
+                    }
+                };
+            }
+            return new ColumnConverter() {
+                @Override
+                void appendValue(Object value, InfileRow infileRow) {
+                    infileRow.append(value);
+                }
+            };
+        }
+        if (type == Boolean.class || type == boolean.class) {
+            final Charset charset = loader.infileDataBuffer.getCharset();
+            final byte[] trueBytes = loader.infileDataBuffer.encodeValue("1");
+            final byte[] falseBytes = loader.infileDataBuffer.encodeValue("0");
+            return new ColumnConverter() {
+                @Override
+                void appendValue(Object value, InfileRow infileRow) {
+                    if (acceptsEncoded(infileRow, charset)) {
+                        ((InfileDataBuffer) infileRow).appendEncoded((Boolean) value ? trueBytes : falseBytes);
+                    }
+                    else {
+                        infileRow.append((Boolean) value);
+                    }
+                }
+            };
+        }
+        if (type == String.class) {
+            Set<String> dictionary = loader.dictionaries.get(column);
+            if (dictionary != null) {
+                final Charset charset = loader.infileDataBuffer.getCharset();
+                final Map<String, byte[]> encoded = new HashMap<>();
+                for (String value : dictionary) {
+                    encoded.put(value, loader.infileDataBuffer.encodeValue(value));
+                }
+                return new ColumnConverter() {
+                    @Override
+                    boolean replacesTypedAppend() {
+                        return true;
+                    }
+
+                    @Override
+                    void appendValue(Object value, InfileRow infileRow) {
+                        byte[] bytes = acceptsEncoded(infileRow, charset) ? encoded.get(value) : null;
+                        if (bytes != null) {
+                            ((InfileDataBuffer) infileRow).appendEncoded(bytes);
+                        }
+                        else {
+                            infileRow.append((String) value);
+                        }
+                    }
+                };
+            }
+            return new ColumnConverter() {
+                @Override
+                void appendValue(Object value, InfileRow infileRow) {
+                    infileRow.append((String) value);
+                }
+            };
+        }
+        if (type == BigDecimal.class) {
+            return new ColumnConverter() {
+                @Override
+                void appendValue(Object value, InfileRow infileRow) {
+                    infileRow.append((BigDecimal) value);
+                }
+            };
+        }
+        if (Date.class.isAssignableFrom(type) && loader.temporalTypes.containsKey(member)) {
+            final TemporalType temporalType = loader.temporalTypes.get(member);
+            return new ColumnConverter() {
+                @Override
+                void appendValue(Object value, InfileRow infileRow) {
+                    infileRow.append((Date) value, temporalType);
+                }
+            };
+        }
+        if (type == LocalDateTime.class) {
+            return new ColumnConverter() {
+                @Override
+                void appendValue(Object value, InfileRow infileRow) {
+                    infileRow.append((LocalDateTime) value);
+                }
+            };
+        }
+        if (type == LocalDate.class) {
+            return new ColumnConverter() {
+                @Override
+                void appendValue(Object value, InfileRow infileRow) {
+                    infileRow.append((LocalDate) value);
+                }
+            };
+        }
+        if (type == Instant.class) {
+            return new ColumnConverter() {
+                @Override
+                void appendValue(Object value, InfileRow infileRow) {
+                    infileRow.append((Instant) value);
+                }
+            };
+        }
+        if (type == byte[].class) {
+            if (loader.useRawBinary) {
+                return new ColumnConverter() {
+                    @Override
+                    void appendValue(Object value, InfileRow infileRow) {
+                        infileRow.append((byte[]) value);
+                    }
+                };
+            }
+            return new ColumnConverter() {
+                @Override
+                void appendValue(Object value, InfileRow infileRow) {
+                    infileRow.append(encodeHexString((byte[]) value));
+                }
+            };
+        }
+        if (type.isEnum()) {
+            Enumerated enumerated = member.getAnnotation(Enumerated.class);
+            boolean byName = enumerated != null && enumerated.value() == EnumType.STRING;
+            Object[] constants = type.getEnumConstants();
+            final Charset charset = loader.infileDataBuffer.getCharset();
+            // The same values as SingleInfileObjectLoader#getEnumValueToAppend
+            final Object[] values = new Object[constants.length];
+            final byte[][] encoded = new byte[constants.length][];
+            for (int i = 0; i < constants.length; i++) {
+                Enum<?> constant = (Enum<?>) constants[i];
+                values[i] = byName ? constant.name() : constant.ordinal();
+                encoded[i] = loader.infileDataBuffer.encodeValue(values[i].toString());
+            }
+            return new ColumnConverter() {
+                @Override
+                void appendValue(Object value, InfileRow infileRow) {
+                    int ordinal = ((Enum<?>) value).ordinal();
+                    if (acceptsEncoded(infileRow, charset)) {
+                        ((InfileDataBuffer) infileRow).appendEncoded(encoded[ordinal]);
+                    }
+                    else {
+                        infileRow.append(values[ordinal]);
+                    }
+                }
+            };
+        }
+        if (Modifier.isFinal(type.getModifiers()) && !inspector.hasTableAnnotation(type)) {
+            // Values cannot be an entity or any of the types above
+            return new ColumnConverter() {
+                @Override
+                void appendValue(Object value, InfileRow infileRow) {
+                    infileRow.append(value);
+                }
+            };
+        }
+        return new ColumnConverter() {
+            @Override
+            void appendValue(Object value, InfileRow infileRow) {
+                loader.appendValue(member, value, infileRow);
+            }
+        };
+    }
+
+    /**
+     * Tells whether values that were encoded by {@link InfileDataBuffer#encodeValue(String)} in a charset can be appended
+     * to a row as they are. Other rows get the value itself.
+     */
+    private static boolean acceptsEncoded(InfileRow infileRow, Charset charset) {
+        return infileRow instanceof InfileDataBuffer && ((InfileDataBuffer) infileRow).getCharset().equals(charset);
+    }
+
+    /**
+     * Appends the id of a related entity.
+     */
+    private static final class IdConverter extends ColumnConverter {
+        private final MethodHandle idGetter;
+        private final ColumnConverter idConverter;
+
+        private IdConverter(MethodHandle idGetter, ColumnConverter idConverter) {
+            this.idGetter = idGetter;
+            this.idConverter = idConverter;
+        }
+
+        @Override
+        void appendValue(Object value, InfileRow infileRow) {
+            Object id;
+            try {
+                id = (Object) this.idGetter.invokeExact(value);
+            }
+            catch (Throwable e) {
+                throw propagate(e);
+            }
+            Preconditions.checkState(id != null, "@Id for [%s] is null", value);
+            this.idConverter.appendValue(id, infileRow);
+        }
+    }
+
+    /**
+     * Appends values with the writer registered for their type.
+     */
+    private static final class WriterConverter extends ColumnConverter {
+        private final InfileValueWriter<Object> writer;
+
+        @SuppressWarnings("unchecked")
+        private WriterConverter(InfileValueWriter<?> writer) {
+            // Values of the column are always of the type the writer was found for
+            this.writer = (InfileValueWriter<Object>) writer;
+        }
+
+        @Override
+        boolean replacesTypedAppend() {
+            return true;
+        }
+
+        @Override
+        void appendValue(Object value, InfileRow infileRow) {
+            this.writer.write(value, infileRow);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.opower.persistence.jpile.loader;
+
+import com.opower.persistence.jpile.infile.InfileRow;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.AccessibleObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Throwables.propagate;
+
+/**
+ * All columns of a loader, including the columns of its embedded objects, flattened into arrays in the order they are
+ * written. This replaces iterating the mappings of the loader and calling the loader of each embedded object for every
+ * row, so that a column of a deeply embedded object costs about the same as a column of the entity itself.
+ * <p/>
+ * Each element reads a value with a cached getter handle from the entity, or from an embedded object that an earlier
+ * element has read. Column elements append their value with the converter of the column. Embedded object elements
+ * keep their value in a slot for the elements that read from it, and write the columns of the object at once if its
+ * loader has a generated row writer. When an embedded object is null, every element that reads from it is null as well,
+ * so all of its columns are written as {@code NULL}.
+ * <p/>
+ * Instances of this class are not safe for use by multiple threads, like the loader they belong to.
+ *
+ * @author agent
+ * @since 1.7.12
+ */
+final class FlattenedColumns {
+    // Writes the columns of the entity itself, which come first, or null to read them one at a time
+    private final InfileRowWriter rowWriter;
+    private final int rowWriterColumns;
+    private final MethodHandle[] getters;
+    // The slot of the entity or embedded object each element reads from
+    private final int[] owners;
+    // Null for embedded objects
+    private final ColumnConverter[] converters;
+    // The slot each embedded object is kept in
+    private final int[] targets;
+    // Writes the columns of an embedded object, which directly follow it, or null
+    private final InfileRowWriter[] writers;
+    private final int[] ownColumns;
+    // Slot 0 holds the entity, the other slots the embedded objects of the current row
+    private final Object[] slots;
+
+    private FlattenedColumns(SingleInfileObjectLoader<?> loader, List<Element> elements, int slots) {
+        this.rowWriter = loader.rowWriter;
+        this.rowWriterColumns = loader.mappings.size();
+        int size = elements.size();
+        this.getters = new MethodHandle[size];
+        this.owners = new int[size];
+        this.converters = new ColumnConverter[size];
+        this.targets = new int[size];
+        this.writers = new InfileRowWriter[size];
+        this.ownColumns = new int[size];
+        for (int i = 0; i < size; i++) {
+            Element element = elements.get(i);
+            this.getters[i] = element.getter;
+            this.owners[i] = element.owner;
+            this.converters[i] = element.converter;
+            this.targets[i] = element.target;
+            this.writers[i] = element.writer;
+            this.ownColumns[i] = element.ownColumns;
+        }
+        this.slots = new Object[slots];
+    }
+
+    /**
+     * Flattens the columns of a loader, whose converters and row writer have been resolved, and of the loaders of its
+     * embedded objects.
+     *
+     * @param loader the loader
+     * @return the columns of the loader
+     */
+    static FlattenedColumns of(SingleInfileObjectLoader<?> loader) {
+        List<Element> elements = new ArrayList<>();
+        int slots = addElements(loader, 0, 1, elements);
+        return new FlattenedColumns(loader, elements, slots);
+    }
+
+    /**
+     * Adds the columns of a loader, followed by each of its embedded objects and their columns.
+     *
+     * @return the number of slots used so far
+     */
+    private static int addElements(SingleInfileObjectLoader<?> loader, int owner, int slots, List<Element> elements) {
+        int column = 0;
+        for (AccessibleObject member : loader.mappings.values()) {
+            elements.add(new Element(getter(loader, member), owner, loader.converters[column++], 0, null, 0));
+        }
+        for (Map.Entry<AccessibleObject, SingleInfileObjectLoader<Object>> entry : loader.embeds.entrySet()) {
+            SingleInfileObjectLoader<Object> embedded = entry.getValue();
+            int target = slots++;
+            elements.add(new Element(getter(loader, entry.getKey()), owner, null, target, embedded.rowWriter,
+                                     embedded.mappings.size()));
+            slots = addElements(embedded, target, slots, elements);
+        }
+        return slots;
+    }
+
+    private static MethodHandle getter(SingleInfileObjectLoader<?> loader, AccessibleObject member) {
+        return loader.persistenceAnnotationInspector.getter(member);
+    }
+
+    /**
+     * Writes all columns of an entity.
+     *
+     * @param entity the entity, or null to write {@code NULL} for every column
+     * @param infileRow the row to append to
+     */
+    void write(Object entity, InfileRow infileRow) {
+        Object[] slots = this.slots;
+        slots[0] = entity;
+        int i = 0;
+        if (this.rowWriter != null && entity != null) {
+            this.rowWriter.write(entity, infileRow);
+            i = this.rowWriterColumns;
+        }
+        try {
+            for (; i < this.getters.length; i++) {
+                Object owner = slots[this.owners[i]];
+                Object value = owner == null ? null : (Object) this.getters[i].invokeExact(owner);
+                ColumnConverter converter = this.converters[i];
+                if (converter != null) {
+                    converter.append(value, infileRow);
+                }
+                else {
+                    slots[this.targets[i]] = value;
+                    InfileRowWriter writer = this.writers[i];
+                    if (writer != null && value != null) {
+                        writer.write(value, infileRow);
+                        i += this.ownColumns[i];
+                    }
+                }
+            }
+        }
+        catch (Throwable e) {
+            throw propagate(e);
+        }
+        finally {
+            // Do not keep the entity of the last row from being collected
+            for (int slot = 0; slot < slots.length; slot++) {
+                slots[slot] = null;
+            }
+        }
+    }
+
+    /**
+     * A column or embedded object while the columns are being flattened.
+     */
+    private static final class Element {
+        private final MethodHandle getter;
+        private final int owner;
+        private final ColumnConverter converter;
+        private final int target;
+        private final InfileRowWriter writer;
+        private final int ownColumns;
+
+        private Element(MethodHandle getter, int owner, ColumnConverter converter, int target, InfileRowWriter writer,
+                        int ownColumns) {
+            this.getter = getter;
+            this.owner = owner;
+            this.converter = converter;
+            this.target = target;
+            this.writer = writer;
+            this.ownColumns = ownColumns;
+        }
+    }
+}
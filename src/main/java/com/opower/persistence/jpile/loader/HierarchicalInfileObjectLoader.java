@@ -1,10 +1,19 @@
 package com.opower.persistence.jpile.loader;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.opower.persistence.jpile.infile.BufferAllocator;
+import com.opower.persistence.jpile.infile.BufferPool;
 import com.opower.persistence.jpile.infile.InfileDataBuffer;
+import com.opower.persistence.jpile.infile.InfileSpool;
+import com.opower.persistence.jpile.infile.InfileValueWriter;
+import com.opower.persistence.jpile.infile.InfileValueWriters;
+import com.opower.persistence.jpile.infile.InfileWarnings;
 import com.opower.persistence.jpile.reflection.CachedProxy;
 import com.opower.persistence.jpile.reflection.PersistenceAnnotationInspector;
 import com.opower.persistence.jpile.util.JdbcUtil;
@@ -16,23 +25,34 @@ import javax.persistence.OneToMany;
 import javax.persistence.OneToOne;
 import javax.persistence.PrimaryKeyJoinColumn;
 import javax.persistence.SecondaryTable;
+import javax.sql.DataSource;
 import java.io.Closeable;
 import java.io.Flushable;
-import java.lang.reflect.Method;
+import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.ParameterizedType;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
-import static com.google.common.base.Throwables.propagate;
 import static com.google.common.collect.Iterables.concat;
+import static com.google.common.collect.Lists.newArrayList;
 import static com.google.common.collect.Maps.newHashMap;
 import static com.google.common.collect.Maps.newLinkedHashMap;
 import static com.google.common.collect.Sets.newHashSet;
+import static com.opower.persistence.jpile.reflection.PersistenceAnnotationInspector.genericMemberType;
+import static com.opower.persistence.jpile.reflection.PersistenceAnnotationInspector.getValue;
 
 /**
  * Save any type of data using a collection of SingleInfileObjectLoaders. A common use case would be to do something like
@@ -66,11 +86,45 @@ public class HierarchicalInfileObjectLoader implements Flushable, Closeable {
     // linked for consistent error message
     private Map<Class<?>, SingleInfileObjectLoader<Object>> primaryObjectLoaders = newLinkedHashMap();
     private Map<Class<?>, SingleInfileObjectLoader<Object>> secondaryTableObjectLoaders = newLinkedHashMap();
-    private Map<Class<?>, Set<Method>> parentDependent = newHashMap();
-    private Map<Class<?>, Set<Method>> childDependent = newHashMap();
+    private Map<Class<?>, Set<AccessibleObject>> parentDependent = newHashMap();
+    private Map<Class<?>, Set<AccessibleObject>> childDependent = newHashMap();
     private Set<Class<?>> classesToIgnore = ImmutableSet.of();
     private Set<String> secondaryClassesToIgnore = ImmutableSet.of();
     private boolean useReplace = false;
+    private boolean useRawBinary = false;
+    private boolean generateRowWriters = true;
+    private Map<Class<?>, Map<String, Collection<String>>> dictionaries = newHashMap();
+    private InfileValueWriters valueWriters = new InfileValueWriters();
+    private boolean writeRowsInPlace = false;
+    private BufferAllocator bufferAllocator = BufferAllocator.HEAP;
+    private int buffersPerTable = 1;
+    // The maximum size of each infile buffer, see setBufferSize()
+    private int infileBufferSize = InfileDataBuffer.DEFAULT_INFILE_BUFFER_SIZE;
+    // Zero unless infile buffers grow, see setBufferGrowth()
+    private int initialBufferSize = 0;
+    private boolean shrinkBuffersAfterFlush = false;
+    // Lazy initialized when buffersPerTable is more than 1. Single threaded because the loaders share the connection.
+    private ExecutorService flushExecutor;
+    private final StreamingConnection streamingConnection = new StreamingConnection();
+    private boolean streaming = false;
+    private long maxStreamRows;
+    private long maxStreamBytes;
+    private long maxStreamTime;
+    private TimeUnit maxStreamTimeUnit;
+    // Adaptive flush size bounds, see setAdaptiveFlushing()
+    private int minFlushBytes = 0;
+    private long targetFlushLatency;
+    private TimeUnit targetFlushLatencyUnit;
+    // Flush on several connections at once, see setParallelFlushing()
+    private InfileConnectionPool connectionPool;
+    // Retry transient failures, see setRetryPolicy()
+    private RetryPolicy retryPolicy;
+    // Write to disk instead of the connection, see setSpool()
+    private InfileSpool spool;
+    // Time based flushing, see setMaxLatency()
+    private ScheduledExecutorService latencyScheduler;
+    // Shared by all loaders, see setInfileWarnings()
+    private InfileWarnings infileWarnings = new InfileWarnings();
 
     /**
      * Disables fk (if not already disabled) and saves each object
@@ -87,8 +141,9 @@ public class HierarchicalInfileObjectLoader implements Flushable, Closeable {
      *
      * @param objects the objects to save
      */
-    public void persist(Iterable<?> objects) {
-        Preconditions.checkNotNull(this.connection, "Connection is null, did you call setConnection()?");
+    public synchronized void persist(Iterable<?> objects) {
+        Preconditions.checkState(this.connection != null || this.spool != null,
+                                 "Connection is null, did you call setConnection()?");
         for (Object o : objects) {
             persistWithCyclicCheck(o, new HashSet<>());
         }
@@ -118,8 +173,8 @@ public class HierarchicalInfileObjectLoader implements Flushable, Closeable {
         cyclicCheck.add(entity);
 
         // Save dependent children first because there is a key that depends on these items
-        for (Method dependent : this.childDependent.get(entity.getClass())) {
-            Object o = invoke(dependent, entity);
+        for (AccessibleObject dependent : this.childDependent.get(entity.getClass())) {
+            Object o = getValue(this.persistenceAnnotationInspector, dependent, entity);
             if (o != null) {
                 persistWithCyclicCheck(o, cyclicCheck);
             }
@@ -127,15 +182,15 @@ public class HierarchicalInfileObjectLoader implements Flushable, Closeable {
 
         // Save this entity now that we know all children have been saved
         callOnBeforeEvent(entity);
-        this.primaryObjectLoaders.get(entity.getClass()).add(entity);
+        add(this.primaryObjectLoaders.get(entity.getClass()), entity);
         callOnAfterEvent(entity);
 
         // Get generated id
         Object id = PersistenceAnnotationInspector.getIdValue(this.persistenceAnnotationInspector, entity);
 
         // Find all objects that depend entity's id being generated and save these now
-        for (Method dependent : this.parentDependent.get(entity.getClass())) {
-            Object o = invoke(dependent, entity);
+        for (AccessibleObject dependent : this.parentDependent.get(entity.getClass())) {
+            Object o = getValue(this.persistenceAnnotationInspector, dependent, entity);
             if (o != null) {
                 if (o instanceof Collection) {
                     for (Object item : (Collection) o) {
@@ -152,7 +207,42 @@ public class HierarchicalInfileObjectLoader implements Flushable, Closeable {
         // Check to see if there is a secondary
         SingleInfileObjectLoader<Object> loader = this.secondaryTableObjectLoaders.get(entity.getClass());
         if (loader != null) {
-            loader.add(entity);
+            add(loader, entity);
+        }
+    }
+
+    private void add(SingleInfileObjectLoader<Object> loader, Object entity) {
+        loader.add(entity);
+        if (this.bufferAllocator instanceof BufferPool && ((BufferPool) this.bufferAllocator).isExceeded()) {
+            flushLargestBuffers((BufferPool) this.bufferAllocator);
+        }
+    }
+
+    /**
+     * Flushes the tables with the most buffered bytes until enough infile buffers are released to get back within the
+     * memory budget of the pool, as far as the tables of this loader can.
+     */
+    private void flushLargestBuffers(BufferPool bufferPool) {
+        List<SingleInfileObjectLoader<?>> loaders = newArrayList();
+        for (SingleInfileObjectLoader<?> loader : concat(this.primaryObjectLoaders.values(),
+                                                         this.secondaryTableObjectLoaders.values())) {
+            if (!loader.getInfileDataBuffer().isEmpty()) {
+                loaders.add(loader);
+            }
+        }
+        Collections.sort(loaders, new Comparator<SingleInfileObjectLoader<?>>() {
+            @Override
+            public int compare(SingleInfileObjectLoader<?> a, SingleInfileObjectLoader<?> b) {
+                return Integer.compare(b.getInfileDataBuffer().size(), a.getInfileDataBuffer().size());
+            }
+        });
+        long excess = bufferPool.getUsedBytes() - bufferPool.getMaxBytes();
+        for (Iterator<SingleInfileObjectLoader<?>> i = loaders.iterator(); i.hasNext() && excess > 0; ) {
+            SingleInfileObjectLoader<?> loader = i.next();
+            LOGGER.debug("Flushing [{}] bytes to stay within the memory budget.", loader.getInfileDataBuffer().size());
+            // Asynchronous flushes release the buffer once they are done
+            excess -= loader.getInfileDataBuffer().getCapacity();
+            loader.startFlush();
         }
     }
 
@@ -174,30 +264,83 @@ public class HierarchicalInfileObjectLoader implements Flushable, Closeable {
         if (this.primaryObjectLoaders.containsKey(aClass)) {
             return;
         }
-        SingleInfileObjectLoader<Object> primaryLoader = new SingleInfileObjectLoaderBuilder<>(aClass)
+        // Building a loader queries the connection, which must not happen while it is being used for a flush
+        this.awaitFlushes();
+        SingleInfileObjectLoader<Object> primaryLoader = new SingleInfileObjectLoaderBuilder<Object>(aClass)
                 .withBuffer(newInfileDataBuffer())
                 .withDefaultTableName()
                 .withJdbcConnection(this.connection)
                 .usingAnnotationInspector(this.persistenceAnnotationInspector)
                 .useReplace(this.useReplace)
+                .useRawBinary(this.useRawBinary)
+                .generateRowWriter(this.generateRowWriters)
+                .withDictionaries(this.dictionariesOf(aClass))
+                .withValueWriters(this.valueWriters)
+                .spoolTo(this.spool)
                 .build();
 
         this.primaryObjectLoaders.put(aClass, primaryLoader);
+        this.configureFlushing(primaryLoader);
 
         for (SecondaryTable secondaryTable : this.persistenceAnnotationInspector.findSecondaryTables(aClass)) {
             if (!this.secondaryClassesToIgnore.contains(secondaryTable.name())) {
                 SingleInfileObjectLoader<Object> secondaryLoader
-                        = new SingleInfileObjectLoaderBuilder<>(aClass)
+                        = new SingleInfileObjectLoaderBuilder<Object>(aClass)
                         .withBuffer(newInfileDataBuffer())
                         .withDefaultTableName()
                         .usingSecondaryTable(secondaryTable)
                         .withJdbcConnection(this.connection)
                         .usingAnnotationInspector(this.persistenceAnnotationInspector)
                         .useReplace(this.useReplace)
+                        .useRawBinary(this.useRawBinary)
+                        .generateRowWriter(this.generateRowWriters)
+                        .withDictionaries(this.dictionariesOf(aClass))
+                        .withValueWriters(this.valueWriters)
+                        .spoolTo(this.spool)
                         .build();
 
                 this.secondaryTableObjectLoaders.put(aClass, secondaryLoader);
+                this.configureFlushing(secondaryLoader);
+            }
+        }
+    }
+
+    private Map<String, Collection<String>> dictionariesOf(Class<?> aClass) {
+        Map<String, Collection<String>> classDictionaries = this.dictionaries.get(aClass);
+        return classDictionaries == null ? ImmutableMap.<String, Collection<String>>of() : classDictionaries;
+    }
+
+    private void configureFlushing(SingleInfileObjectLoader<Object> loader) {
+        loader.setInfileWarnings(this.infileWarnings);
+        loader.setRetryPolicy(this.retryPolicy);
+        if (this.minFlushBytes > 0) {
+            loader.setAdaptiveFlushSize(new AdaptiveFlushSize(this.minFlushBytes, this.infileBufferSize,
+                                                              this.targetFlushLatency, this.targetFlushLatencyUnit));
+        }
+        boolean parallel = this.connectionPool != null && this.spool == null;
+        if (this.buffersPerTable > 1 || this.streaming || parallel) {
+            if (this.flushExecutor == null) {
+                this.flushExecutor = Executors.newFixedThreadPool(
+                        parallel ? this.connectionPool.getSize() : 1,
+                        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("jpile-flush-%d").build());
             }
+            if (parallel) {
+                loader.setAsyncFlushing(this.flushExecutor, Math.max(this.buffersPerTable, this.connectionPool.getSize() + 1));
+                loader.setConnectionPool(this.connectionPool);
+                return;
+            }
+            loader.setAsyncFlushing(this.flushExecutor, Math.max(2, this.buffersPerTable));
+            loader.setStreamingConnection(this.streamingConnection);
+            if (this.streaming && this.spool == null) {
+                loader.setStreaming(this.maxStreamRows, this.maxStreamBytes, this.maxStreamTime, this.maxStreamTimeUnit);
+            }
+        }
+    }
+
+    private void awaitFlushes() {
+        for (SingleInfileObjectLoader<?> loader : concat(this.primaryObjectLoaders.values(),
+                                                         this.secondaryTableObjectLoaders.values())) {
+            loader.awaitFlushes();
         }
     }
 
@@ -205,13 +348,14 @@ public class HierarchicalInfileObjectLoader implements Flushable, Closeable {
         if (this.parentDependent.containsKey(aClass)) {
             return;
         }
-        Set<Method> methods = newHashSet(this.persistenceAnnotationInspector.methodsAnnotatedWith(aClass, OneToMany.class));
-        methods.addAll(this.persistenceAnnotationInspector.methodsAnnotatedWith(aClass, OneToOne.class,
+        Set<AccessibleObject> members = newHashSet(this.persistenceAnnotationInspector.membersAnnotatedWith(aClass,
+                                                                                                            OneToMany.class));
+        members.addAll(this.persistenceAnnotationInspector.membersAnnotatedWith(aClass, OneToOne.class,
                                                                            PrimaryKeyJoinColumn.class));
-        this.parentDependent.put(aClass, methods.size() > 0 ? methods : ImmutableSet.<Method>of());
+        this.parentDependent.put(aClass, members.size() > 0 ? members : ImmutableSet.<AccessibleObject>of());
 
         // Do all children again
-        for (Method m : methods) {
+        for (AccessibleObject m : members) {
             findParentDependents(getReturnType(m));
         }
     }
@@ -221,10 +365,11 @@ public class HierarchicalInfileObjectLoader implements Flushable, Closeable {
             return;
         }
 
-        Set<Method> methods = newHashSet(this.persistenceAnnotationInspector.methodsAnnotatedWith(aClass, ManyToOne.class));
-        methods.addAll(this.persistenceAnnotationInspector.methodsAnnotatedWith(aClass, new Predicate<Method>() {
+        Set<AccessibleObject> members = newHashSet(this.persistenceAnnotationInspector.membersAnnotatedWith(aClass,
+                                                                                                            ManyToOne.class));
+        members.addAll(this.persistenceAnnotationInspector.membersAnnotatedWith(aClass, new Predicate<AccessibleObject>() {
             @Override
-            public boolean apply(Method m) {
+            public boolean apply(AccessibleObject m) {
                 // Must have OneToOne but not PrimaryKeyJoinColumn annotations
                 PersistenceAnnotationInspector annotationInspector =
                         HierarchicalInfileObjectLoader.this.persistenceAnnotationInspector;
@@ -233,69 +378,111 @@ public class HierarchicalInfileObjectLoader implements Flushable, Closeable {
             }
         }));
 
-        this.childDependent.put(aClass, methods.size() > 0 ? methods : ImmutableSet.<Method>of());
+        this.childDependent.put(aClass, members.size() > 0 ? members : ImmutableSet.<AccessibleObject>of());
 
         // Do all children again
-        for (Method m : methods) {
+        for (AccessibleObject m : members) {
             findChildDependents(getReturnType(m));
         }
     }
 
-    private Class<?> getReturnType(Method m) {
-        if (m.getGenericReturnType() instanceof ParameterizedType) {
+    private Class<?> getReturnType(AccessibleObject m) {
+        if (genericMemberType(m) instanceof ParameterizedType) {
             // For List<String> etc...
-            ParameterizedType type = (ParameterizedType) m.getGenericReturnType();
+            ParameterizedType type = (ParameterizedType) genericMemberType(m);
             return (Class<?>) type.getActualTypeArguments()[0];
         }
         else {
-            return (Class<?>) m.getGenericReturnType();
+            return (Class<?>) genericMemberType(m);
         }
     }
 
     private InfileDataBuffer newInfileDataBuffer() {
-        return new InfileDataBuffer();
-    }
-
-    private Object invoke(Method method, Object target) {
-        try {
-            return method.invoke(target);
-        }
-        catch (ReflectiveOperationException e) {
-            throw propagate(e);
-        }
+        int initialCapacity = this.initialBufferSize > 0 ? this.initialBufferSize : this.infileBufferSize;
+        // Create the buffer at its initial capacity so that the maximum size is never allocated up front
+        InfileDataBuffer infileDataBuffer = new InfileDataBuffer(Charsets.UTF_8, this.infileBufferSize,
+                                                                 Math.min(InfileDataBuffer.DEFAULT_ROW_BUFFER_SIZE,
+                                                                          this.infileBufferSize),
+                                                                 this.bufferAllocator, initialCapacity,
+                                                                 this.bufferAllocator instanceof BufferPool);
+        infileDataBuffer.setWriteRowsInPlace(this.writeRowsInPlace);
+        infileDataBuffer.setGrowth(initialCapacity, this.shrinkBuffersAfterFlush);
+        return infileDataBuffer;
     }
 
     /**
      * Flushes all object loaders
      */
     @Override
-    public void flush() {
+    public synchronized void flush() {
         LOGGER.debug("Flushing all object loaders.");
-        for (SingleInfileObjectLoader<?> loader : this.primaryObjectLoaders.values()) {
-            loader.flush();
-        }
-        for (SingleInfileObjectLoader<?> loader : this.secondaryTableObjectLoaders.values()) {
-            loader.flush();
+        // Start all flushes before waiting so that asynchronous loaders flush back to back
+        for (SingleInfileObjectLoader<?> loader : concat(this.primaryObjectLoaders.values(),
+                                                         this.secondaryTableObjectLoaders.values())) {
+            loader.startFlush();
         }
+        this.awaitFlushes();
     }
 
     /**
      * Closes all object loaders.
      * <p/>
-     * Re-enables foreign key checks for the connection.
+     * Re-enables foreign key checks for the connection. The loaders, the flush executor and the connection pool are
+     * closed and foreign key checks are re-enabled even if flushing fails, after which the first failure is thrown.
      */
     @Override
-    public void close() {
-        flush();
+    public synchronized void close() {
+        if (this.latencyScheduler != null) {
+            this.latencyScheduler.shutdownNow();
+            this.latencyScheduler = null;
+        }
+        RuntimeException failure = null;
+        try {
+            flush();
+        }
+        catch (RuntimeException e) {
+            failure = e;
+        }
         LOGGER.debug("Closing all object loaders.");
+        for (SingleInfileObjectLoader<?> loader : concat(this.primaryObjectLoaders.values(),
+                                                         this.secondaryTableObjectLoaders.values())) {
+            try {
+                loader.close();
+            }
+            catch (RuntimeException e) {
+                failure = failure == null ? e : failure;
+            }
+        }
         this.primaryObjectLoaders.clear();
         this.secondaryTableObjectLoaders.clear();
-        JdbcUtil.execute(this.connection, new JdbcUtil.StatementCallback<Boolean>() {
-            @Override
-            public Boolean doInStatement(Statement statement) throws SQLException {
-                return statement.execute("SET FOREIGN_KEY_CHECKS = 1");
+        if (this.flushExecutor != null) {
+            this.flushExecutor.shutdown();
+            this.flushExecutor = null;
+        }
+        if (this.connectionPool != null) {
+            try {
+                this.connectionPool.close();
             }
-        });
+            catch (RuntimeException e) {
+                failure = failure == null ? e : failure;
+            }
+        }
+        if (this.connection != null) {
+            try {
+                JdbcUtil.execute(this.connection, new JdbcUtil.StatementCallback<Boolean>() {
+                    @Override
+                    public Boolean doInStatement(Statement statement) throws SQLException {
+                        return statement.execute("SET FOREIGN_KEY_CHECKS = 1");
+                    }
+                });
+            }
+            catch (RuntimeException e) {
+                failure = failure == null ? e : failure;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
     }
 
     /**
@@ -352,6 +539,276 @@ public class HierarchicalInfileObjectLoader implements Flushable, Closeable {
         this.useReplace = useReplace;
     }
 
+    /**
+     * Toggles writing {@code byte[]} columns as escaped raw bytes instead of hex strings. See
+     * {@link SingleInfileObjectLoaderBuilder#useRawBinary(boolean)}.
+     *
+     * @param useRawBinary true to write raw bytes
+     * @since 1.7.12
+     */
+    public void setUseRawBinary(boolean useRawBinary) {
+        this.useRawBinary = useRawBinary;
+    }
+
+    /**
+     * Toggles generating a class for each entity that calls its getters directly instead of through reflection. See
+     * {@link SingleInfileObjectLoaderBuilder#generateRowWriter(boolean)}. Enabled by default.
+     *
+     * @param generateRowWriters true to generate row writers
+     * @since 1.7.12
+     */
+    public void setGenerateRowWriters(boolean generateRowWriters) {
+        this.generateRowWriters = generateRowWriters;
+    }
+
+    /**
+     * Registers the known values of a string column of an entity, which are then encoded once instead of for every row. See
+     * {@link SingleInfileObjectLoaderBuilder#withDictionary(String, Collection)}. Must be called before the first entity of
+     * the class is persisted.
+     *
+     * @param aClass the entity class
+     * @param column the name of the column, in the primary or a secondary table of the entity
+     * @param values the known values
+     * @since 1.7.12
+     */
+    public void addDictionary(Class<?> aClass, String column, Collection<String> values) {
+        Preconditions.checkState(!this.primaryObjectLoaders.containsKey(aClass),
+                                 "Dictionaries of [%s] must be added before it is persisted", aClass);
+        Map<String, Collection<String>> classDictionaries = this.dictionaries.get(aClass);
+        if (classDictionaries == null) {
+            classDictionaries = newHashMap();
+            this.dictionaries.put(aClass, classDictionaries);
+        }
+        classDictionaries.put(column, ImmutableSet.copyOf(values));
+    }
+
+    /**
+     * Registers the writer for the columns of a type, for all entities. See
+     * {@link SingleInfileObjectLoaderBuilder#withValueWriter(Class, InfileValueWriter)}. Only entities that are persisted
+     * for the first time afterwards use the writer.
+     *
+     * @param type the type
+     * @param writer the writer for values of the type and its subtypes
+     * @param <T> the type
+     * @since 1.7.12
+     */
+    public <T> void addValueWriter(Class<T> type, InfileValueWriter<? super T> writer) {
+        this.valueWriters.register(type, writer);
+    }
+
+    /**
+     * Toggles writing rows straight into the infile buffers instead of copying each row from a row buffer. See
+     * {@link InfileDataBuffer#setWriteRowsInPlace(boolean)}.
+     *
+     * @param writeRowsInPlace true to write rows in place
+     * @since 1.7.12
+     */
+    public void setWriteRowsInPlace(boolean writeRowsInPlace) {
+        this.writeRowsInPlace = writeRowsInPlace;
+    }
+
+    /**
+     * Sets the allocator for the buffers of the object loaders. The buffers are released to the allocator when this loader
+     * is closed, so a {@link com.opower.persistence.jpile.infile.PooledBufferAllocator} can share buffers between loaders.
+     * <p/>
+     * With a {@link BufferPool} the infile buffers are {@link InfileDataBuffer#setAllocateOnDemand(boolean) allocated on
+     * demand}, so tables only take memory while they have rows, and the tables with the most rows are flushed whenever
+     * the budget of the pool is exceeded. A pool can be shared by many loaders to keep all of them within one budget.
+     *
+     * @param bufferAllocator the allocator, {@link BufferAllocator#HEAP} by default
+     * @since 1.7.12
+     */
+    public void setBufferAllocator(BufferAllocator bufferAllocator) {
+        this.bufferAllocator = Preconditions.checkNotNull(bufferAllocator, "bufferAllocator cannot be null");
+    }
+
+    /**
+     * Sets the number of infile buffers for each table. With more than one buffer, full buffers are loaded into the
+     * database on a background thread while rows are written into the next buffer, and persisting blocks only when all
+     * buffers of a table are waiting to be loaded. Failures of background loads are thrown by a later call to
+     * {@code persist}, {@link #flush()} or {@link #close()}. Only affects tables that have not been persisted to yet.
+     *
+     * @param buffersPerTable the number of buffers, 1 by default to load synchronously
+     * @since 1.7.12
+     */
+    public void setBuffersPerTable(int buffersPerTable) {
+        Preconditions.checkArgument(buffersPerTable >= 1, "buffersPerTable (%s) must be at least 1", buffersPerTable);
+        this.buffersPerTable = buffersPerTable;
+    }
+
+    /**
+     * Writes the rows of all tables to a spool on disk instead of loading them, to be loaded later with an
+     * {@link com.opower.persistence.jpile.infile.InfileSpoolReplayer}. A connection is then optional; it is only used to
+     * find the largest id of tables with generated ids, which otherwise start at 1. Streaming is disabled while
+     * spooling. Only affects tables that have not been persisted to yet.
+     *
+     * @param spool the spool to write to
+     * @since 1.7.12
+     */
+    public void setSpool(InfileSpool spool) {
+        this.spool = spool;
+    }
+
+    /**
+     * Flushes the buffers of all tables on up to {@code connections} connections from a data source at the same time, so
+     * that large tables are loaded by several {@code LOAD DATA} statements at once. Each connection has foreign key
+     * checks disabled like the connection of this loader, and enabled again when this loader is closed. The connection
+     * of this loader is still needed to find the largest id of tables with generated ids, and must be set unless
+     * spooling.
+     * <p/>
+     * Each table gets at least one buffer more than there are connections, see
+     * {@link InfileObjectLoader#setConnectionPool(InfileConnectionPool)}, so a memory budget, see
+     * {@link #setBufferAllocator(BufferAllocator)}, is advisable when there are many tables. Streaming is disabled with
+     * parallel flushing. Should be called before anything is persisted, since the flush threads are started with the
+     * first table.
+     *
+     * @param dataSource provides the connections
+     * @param connections the number of connections, at least 1
+     * @since 1.7.12
+     */
+    public void setParallelFlushing(DataSource dataSource, int connections) {
+        this.connectionPool = new InfileConnectionPool(dataSource, connections, ImmutableList.of("SET FOREIGN_KEY_CHECKS = 0"),
+                                                       ImmutableList.of("SET FOREIGN_KEY_CHECKS = 1"));
+    }
+
+    /**
+     * Loads buffers again when their statement fails because of a deadlock, a lock wait timeout or a broken connection,
+     * see {@link RetryPolicy}. Broken connections are only replaced with {@link #setParallelFlushing(DataSource, int)
+     * parallel flushing}. Only affects tables that have not been persisted to yet.
+     *
+     * @param retryPolicy which failures to retry, or null to fail on the first error
+     * @since 1.7.12
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Sets what to keep of the warnings of all tables, see {@link InfileWarnings}. By default the most recent
+     * {@value InfileWarnings#DEFAULT_SAMPLE_SIZE} warnings are kept. Only affects tables that have not been persisted to
+     * yet.
+     *
+     * @param infileWarnings the collector shared by all tables
+     * @since 1.7.12
+     */
+    public void setInfileWarnings(InfileWarnings infileWarnings) {
+        this.infileWarnings = Preconditions.checkNotNull(infileWarnings, "infileWarnings cannot be null");
+    }
+
+    /**
+     * Gets the warnings of the flushes of all tables, counted by code.
+     *
+     * @return the collector shared by all tables
+     * @since 1.7.12
+     */
+    public InfileWarnings getInfileWarnings() {
+        return this.infileWarnings;
+    }
+
+    /**
+     * Sets the maximum size of the infile buffer of each table, which is also the most that is loaded by one flush. Rows
+     * are written into a row buffer of at most {@link InfileDataBuffer#DEFAULT_ROW_BUFFER_SIZE} first, which is also
+     * the largest row that can be written. Must be called before {@link #setBufferGrowth(int, boolean)} and
+     * {@link #setAdaptiveFlushing(int, long, TimeUnit)}. Only affects tables that have not been persisted to yet.
+     *
+     * @param infileBufferSize the size in bytes, {@link InfileDataBuffer#DEFAULT_INFILE_BUFFER_SIZE} by default
+     * @since 1.7.12
+     */
+    public void setBufferSize(int infileBufferSize) {
+        Preconditions.checkArgument(infileBufferSize > 0, "infileBufferSize (%s) must be positive", infileBufferSize);
+        this.infileBufferSize = infileBufferSize;
+    }
+
+    /**
+     * Lets the infile buffer of each table start at {@code initialBufferSize} and grow as rows are added, so that tables
+     * with only a few rows take kilobytes instead of a full infile buffer. See
+     * {@link InfileDataBuffer#setGrowth(int, boolean)}. Only affects tables that have not been persisted to yet.
+     *
+     * @param initialBufferSize the capacity in bytes each infile buffer starts with
+     * @param shrinkAfterFlush true to shrink buffers back to the initial capacity after each flush
+     * @since 1.7.12
+     */
+    public void setBufferGrowth(int initialBufferSize, boolean shrinkAfterFlush) {
+        Preconditions.checkArgument(initialBufferSize > 0 && initialBufferSize <= this.infileBufferSize,
+                                    "initialBufferSize (%s) must be between 1 and the infile buffer size", initialBufferSize);
+        this.initialBufferSize = initialBufferSize;
+        this.shrinkBuffersAfterFlush = shrinkAfterFlush;
+    }
+
+    /**
+     * Sizes the flushes of each table by how fast that table loads, between {@code minBytes} and the size of the infile
+     * buffer. See {@link AdaptiveFlushSize}. Only affects tables that have not been persisted to yet.
+     *
+     * @param minBytes the smallest flush size
+     * @param targetLatency how long a flush should take
+     * @param unit the unit of {@code targetLatency}
+     * @since 1.7.12
+     */
+    public void setAdaptiveFlushing(int minBytes, long targetLatency, TimeUnit unit) {
+        Preconditions.checkArgument(minBytes >= 1 && minBytes <= this.infileBufferSize,
+                                    "minBytes (%s) must be between 1 and the infile buffer size", minBytes);
+        Preconditions.checkArgument(targetLatency > 0, "targetLatency (%s) must be positive", targetLatency);
+        this.minFlushBytes = minBytes;
+        this.targetFlushLatency = targetLatency;
+        this.targetFlushLatencyUnit = Preconditions.checkNotNull(unit, "unit cannot be null");
+    }
+
+    /**
+     * Flushes every table whose oldest buffered row has waited for {@code maxLatency}, so that rows that trickle in reach
+     * the database within a bounded time while rows that arrive quickly are still loaded in large batches. The age of the
+     * rows is checked on a background thread, which stops when this loader is closed. {@link #persist(Iterable)},
+     * {@link #flush()} and {@link #close()} synchronize on this loader so that the connection is never used by both
+     * threads at the same time.
+     *
+     * @param maxLatency how long a row may stay in a buffer
+     * @param unit the unit of {@code maxLatency}
+     * @since 1.7.12
+     */
+    public synchronized void setMaxLatency(long maxLatency, TimeUnit unit) {
+        Preconditions.checkArgument(maxLatency > 0, "maxLatency (%s) must be positive", maxLatency);
+        Preconditions.checkState(this.latencyScheduler == null, "Time based flushing is already enabled");
+        final long maxAgeNanos = unit.toNanos(maxLatency);
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("jpile-latency-%d").build());
+        this.latencyScheduler = scheduler;
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (HierarchicalInfileObjectLoader.this) {
+                    if (scheduler.isShutdown()) {
+                        return;
+                    }
+                    long delay = maxAgeNanos;
+                    for (SingleInfileObjectLoader<?> loader : concat(primaryObjectLoaders.values(),
+                                                                     secondaryTableObjectLoaders.values())) {
+                        delay = Math.min(delay, loader.flushIfOlderThan(maxAgeNanos));
+                    }
+                    scheduler.schedule(this, delay, TimeUnit.NANOSECONDS);
+                }
+            }
+        }, maxAgeNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Loads each table with long running {@code LOAD DATA} statements that read buffers as they fill up, instead of one
+     * statement per buffer. See {@link InfileObjectLoader#setStreaming(long, long, long, TimeUnit)}. Streaming implies at
+     * least two buffers per table. Only affects tables that have not been persisted to yet.
+     *
+     * @param maxRows the number of rows after which a statement is ended, or 0 for no limit
+     * @param maxBytes the number of bytes after which a statement is ended, or 0 for no limit
+     * @param maxTime the time after which a statement is ended
+     * @param unit the unit of {@code maxTime}
+     * @since 1.7.12
+     */
+    public void setStreaming(long maxRows, long maxBytes, long maxTime, TimeUnit unit) {
+        Preconditions.checkArgument(maxTime > 0, "maxTime (%s) must be positive", maxTime);
+        this.streaming = true;
+        this.maxStreamRows = maxRows;
+        this.maxStreamBytes = maxBytes;
+        this.maxStreamTime = maxTime;
+        this.maxStreamTimeUnit = Preconditions.checkNotNull(unit, "unit cannot be null");
+    }
+
     /**
      * An event interface that can be used to do perform actions before and after persisting objects
      */
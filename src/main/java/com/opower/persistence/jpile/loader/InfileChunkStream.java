@@ -0,0 +1,164 @@
+package com.opower.persistence.jpile.loader;
+
+import com.opower.persistence.jpile.infile.InfileDataBuffer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The input stream of a streaming {@code LOAD DATA} statement. Full infile buffers are offered to the stream as chunks
+ * while the statement is running, and the stream reads them one after the other with a newline in between. A buffer is
+ * cleared and handed back to the free buffers of its loader as soon as it has been read.
+ * <p/>
+ * Reading blocks while there are no chunks, until the stream is {@link #end() ended} or its deadline passes. Either
+ * way the stream ends once it has no chunks left, which ends the statement.
+ * <p/>
+ * Instances of this class are safe for use by multiple threads: chunks are offered by the thread that writes rows, and
+ * read by the thread that runs the statement.
+ *
+ * @author agent
+ * @since 1.7.12
+ */
+final class InfileChunkStream extends InputStream {
+    private final byte[] separator;
+    private final Queue<InfileDataBuffer> freeBuffers;
+    private final long deadline;
+    private final Queue<InfileDataBuffer> chunks = new ArrayDeque<>();
+    private boolean ended = false;
+
+    // Only used by the reading thread
+    private InfileDataBuffer currentChunk;
+    private InputStream currentStream;
+    private int separatorIndex;
+    private boolean first = true;
+
+    /**
+     * Creates a new stream.
+     *
+     * @param separator the bytes written between chunks
+     * @param freeBuffers where buffers go once they have been read
+     * @param deadline the {@link System#nanoTime()} after which the stream stops waiting for more chunks
+     */
+    InfileChunkStream(byte[] separator, Queue<InfileDataBuffer> freeBuffers, long deadline) {
+        this.separator = separator;
+        this.freeBuffers = freeBuffers;
+        this.deadline = deadline;
+        this.separatorIndex = separator.length;
+    }
+
+    /**
+     * Adds a chunk to be read after the chunks that were offered before.
+     *
+     * @param chunk a buffer with at least one row, which must not be used by the caller afterwards
+     * @return false if the stream has ended, in which case the chunk was not added
+     */
+    synchronized boolean offer(InfileDataBuffer chunk) {
+        if (this.ended) {
+            return false;
+        }
+        this.chunks.add(chunk);
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Ends the stream once the chunks that have been offered are read.
+     */
+    synchronized void end() {
+        this.ended = true;
+        notifyAll();
+    }
+
+    /**
+     * Ends the stream and hands back all chunks that have not been read, for when the statement failed.
+     */
+    synchronized void abort() {
+        this.ended = true;
+        if (this.currentChunk != null) {
+            this.recycle(this.currentChunk);
+            this.currentChunk = null;
+            this.currentStream = null;
+        }
+        for (InfileDataBuffer chunk = this.chunks.poll(); chunk != null; chunk = this.chunks.poll()) {
+            this.recycle(chunk);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return this.read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (true) {
+            if (this.separatorIndex < this.separator.length) {
+                int count = Math.min(len, this.separator.length - this.separatorIndex);
+                System.arraycopy(this.separator, this.separatorIndex, b, off, count);
+                this.separatorIndex += count;
+                return count;
+            }
+            if (this.currentStream != null) {
+                int count = this.currentStream.read(b, off, len);
+                if (count > 0) {
+                    return count;
+                }
+                this.finishChunk();
+            }
+            if (!this.nextChunk()) {
+                return -1;
+            }
+        }
+    }
+
+    private synchronized void finishChunk() {
+        this.recycle(this.currentChunk);
+        this.currentChunk = null;
+        this.currentStream = null;
+    }
+
+    /**
+     * Waits for the next chunk.
+     *
+     * @return false if the stream has ended
+     */
+    private synchronized boolean nextChunk() throws InterruptedIOException {
+        while (this.chunks.isEmpty() && !this.ended) {
+            long remaining = this.deadline - System.nanoTime();
+            if (remaining <= 0) {
+                this.ended = true;
+                break;
+            }
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for rows");
+            }
+        }
+        this.currentChunk = this.chunks.poll();
+        if (this.currentChunk == null) {
+            return false;
+        }
+        this.currentStream = this.currentChunk.asInputStream();
+        if (!this.first) {
+            this.separatorIndex = 0;
+        }
+        this.first = false;
+        return true;
+    }
+
+    private void recycle(InfileDataBuffer chunk) {
+        chunk.clear();
+        this.freeBuffers.add(chunk);
+    }
+}
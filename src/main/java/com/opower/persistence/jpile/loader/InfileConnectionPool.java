@@ -0,0 +1,197 @@
+package com.opower.persistence.jpile.loader;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.opower.persistence.jpile.util.JdbcUtil;
+
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+import static com.google.common.base.Throwables.propagate;
+
+/**
+ * A fixed number of connections from a data source that loaders use to flush buffers at the same time, so that a single
+ * table can be loaded by more than one {@code LOAD DATA} statement at once. Connections are opened when they are first
+ * needed, and each one is prepared with the same session statements, for example {@code SET FOREIGN_KEY_CHECKS = 0}.
+ * Closing the pool runs the reset statements on each connection and closes it, after which the pool opens new
+ * connections when it is used again.
+ * <p/>
+ * Instances of this class are safe for use by multiple threads.
+ *
+ * @author agent
+ * @see InfileObjectLoader#setConnectionPool(InfileConnectionPool)
+ * @since 1.7.12
+ */
+public class InfileConnectionPool implements Closeable {
+    private final DataSource dataSource;
+    private final int size;
+    private final List<String> sessionStatements;
+    private final List<String> resetStatements;
+    private final Semaphore available;
+    private final Deque<Connection> idle = new ArrayDeque<>();
+    private final List<Connection> connections = new ArrayList<>();
+
+    /**
+     * Creates a new pool.
+     *
+     * @param dataSource provides the connections
+     * @param size the number of connections, at least 1
+     * @param sessionStatements run on each connection after it has been opened
+     * @param resetStatements run on each connection before it is closed
+     */
+    public InfileConnectionPool(DataSource dataSource, int size, List<String> sessionStatements,
+                                List<String> resetStatements) {
+        Preconditions.checkNotNull(dataSource, "dataSource cannot be null");
+        Preconditions.checkArgument(size >= 1, "size (%s) must be at least 1", size);
+        this.dataSource = dataSource;
+        this.size = size;
+        this.sessionStatements = ImmutableList.copyOf(sessionStatements);
+        this.resetStatements = ImmutableList.copyOf(resetStatements);
+        this.available = new Semaphore(size);
+    }
+
+    public int getSize() {
+        return this.size;
+    }
+
+    /**
+     * Takes a connection, waiting for one if all of them are in use. Every connection that is taken must be handed back
+     * with {@link #release(Connection)} or {@link #discard(Connection)}.
+     *
+     * @return a connection that has been prepared with the session statements
+     */
+    public Connection acquire() {
+        try {
+            this.available.acquire();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw propagate(e);
+        }
+        synchronized (this) {
+            Connection connection = this.idle.poll();
+            if (connection != null) {
+                return connection;
+            }
+            try {
+                connection = this.open();
+            }
+            catch (RuntimeException | Error e) {
+                this.available.release();
+                throw e;
+            }
+            this.connections.add(connection);
+            return connection;
+        }
+    }
+
+    /**
+     * Hands back a connection that was taken with {@link #acquire()}.
+     *
+     * @param connection the connection
+     */
+    public void release(Connection connection) {
+        synchronized (this) {
+            Preconditions.checkArgument(this.connections.contains(connection), "Connection is not from this pool");
+            this.idle.push(connection);
+        }
+        this.available.release();
+    }
+
+    /**
+     * Closes a connection that was taken with {@link #acquire()} instead of handing it back, for example because it
+     * broke. A new connection is opened in its place when one is needed.
+     *
+     * @param connection the connection
+     */
+    public void discard(Connection connection) {
+        synchronized (this) {
+            Preconditions.checkArgument(this.connections.remove(connection), "Connection is not from this pool");
+        }
+        try {
+            connection.close();
+        }
+        catch (SQLException e) {
+            // Do nothing
+        }
+        finally {
+            this.available.release();
+        }
+    }
+
+    /**
+     * Resets and closes all connections. No connection may be in use.
+     */
+    @Override
+    public synchronized void close() {
+        Preconditions.checkState(this.idle.size() == this.connections.size(), "Cannot close a pool with connections in use");
+        RuntimeException failure = null;
+        for (Connection connection : this.connections) {
+            try {
+                execute(connection, this.resetStatements);
+            }
+            catch (RuntimeException e) {
+                failure = failure == null ? e : failure;
+            }
+            finally {
+                try {
+                    connection.close();
+                }
+                catch (SQLException e) {
+                    // Do nothing
+                }
+            }
+        }
+        this.connections.clear();
+        this.idle.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private Connection open() {
+        Connection connection;
+        try {
+            connection = this.dataSource.getConnection();
+        }
+        catch (SQLException e) {
+            throw propagate(e);
+        }
+        try {
+            execute(connection, this.sessionStatements);
+        }
+        catch (RuntimeException e) {
+            try {
+                connection.close();
+            }
+            catch (SQLException closeFailure) {
+                // Do nothing
+            }
+            throw e;
+        }
+        return connection;
+    }
+
+    private static void execute(Connection connection, final List<String> sql) {
+        if (sql.isEmpty()) {
+            return;
+        }
+        JdbcUtil.execute(connection, new JdbcUtil.StatementCallback<Void>() {
+            @Override
+            public Void doInStatement(Statement statement) throws SQLException {
+                for (String s : sql) {
+                    statement.execute(s);
+                }
+                return null;
+            }
+        });
+    }
+}
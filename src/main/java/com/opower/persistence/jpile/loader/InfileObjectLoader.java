@@ -1,15 +1,36 @@
 package com.opower.persistence.jpile.loader;
 
+import java.io.Closeable;
 import java.io.Flushable;
+import java.io.InputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.sql.Connection;
-import java.util.Collections;
+import java.util.ArrayDeque;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.opower.persistence.jpile.infile.ByteBufferInputStream;
 import com.opower.persistence.jpile.infile.InfileDataBuffer;
 import com.opower.persistence.jpile.infile.InfileRow;
+import com.opower.persistence.jpile.infile.InfileSpool;
 import com.opower.persistence.jpile.infile.InfileStatementCallback;
+import com.opower.persistence.jpile.infile.InfileWarnings;
 import com.opower.persistence.jpile.util.JdbcUtil;
 
+import static com.google.common.base.Throwables.propagate;
+
 /**
  * This class provides a convenient pattern for loading POJOs in batch to MySQL via tha 'LOAD DATA INFILE' protocol.
  * Given a configured data buffer, an infile SQL statement, and a connection, instances convert objects to rows
@@ -21,22 +42,59 @@ import com.opower.persistence.jpile.util.JdbcUtil;
  * {@link #add(Object)} method. This will ensure that any objects that were not auto-flushed as a result of a full buffer
  * are pushed as well.
  * <p/>
- * Instances of this class are not safe for use by multiple threads.
+ * Optionally, full buffers can be flushed on another thread while the next buffer is filled, see
+ * {@link #setAsyncFlushing(java.util.concurrent.Executor, int)}, and rows can be flushed once they have been buffered for
+ * some time, see {@link #setMaxLatency(ScheduledExecutorService, long, TimeUnit)}. Buffers of the same table can also be
+ * flushed at the same time on separate connections, see {@link #setConnectionPool(InfileConnectionPool)}.
+ * <p/>
+ * {@link #add(Object)}, {@link #flush()} and {@link #close()} synchronize on the loader, so they may be called from
+ * several threads, and the scheduler of {@link #setMaxLatency(ScheduledExecutorService, long, TimeUnit)} flushes on its
+ * own thread while they are in use. The other methods, which configure the loader, are not safe for use by multiple
+ * threads and must be called before rows are added.
  *
  * @param <E> entity to be converted to infile row
  * @author s-m
  * @see <a href="http://dev.mysql.com/doc/refman/5.1/en/load-data.html">LOAD DATA INFILE reference</a>
  * @since 1.0
  */
-public abstract class InfileObjectLoader<E> implements Flushable {
+public abstract class InfileObjectLoader<E> implements Flushable, Closeable {
 
     protected Connection connection;
     protected String loadInfileSql;
     protected InfileDataBuffer infileDataBuffer;
 
-    // Lazy initialized. Normally, there will be none. If there are any there could be a ton, so we just
-    // build a very large one if needed.
-    private List<Exception> warnings;
+    // Kept across flushes, see setInfileWarnings()
+    private InfileWarnings infileWarnings = new InfileWarnings();
+
+    // Asynchronous flushing, see setAsyncFlushing()
+    private Executor flushExecutor;
+    private BlockingQueue<InfileDataBuffer> freeBuffers;
+    private final Queue<Future<?>> pendingFlushes = new ArrayDeque<>();
+    private final AtomicReference<Throwable> asyncFailure = new AtomicReference<>();
+    // The number of rows in the current buffer, used to limit streaming statements
+    private int bufferRows = 0;
+    // Flush on connections of a pool instead of the connection, see setConnectionPool()
+    private InfileConnectionPool connectionPool;
+    // Retry transient failures, see setRetryPolicy()
+    private RetryPolicy retryPolicy;
+    // Write chunks to disk instead of loading them, see setSpool()
+    private InfileSpool spool;
+    // Flush before the buffer is full, see setAdaptiveFlushSize()
+    private AdaptiveFlushSize adaptiveFlushSize;
+    // Time based flushing, see setMaxLatency(). Null when disabled or after close.
+    private ScheduledFuture<?> latencyFlush;
+    private long oldestRowNanos;
+
+    // Streaming, see setStreaming()
+    private StreamingConnection streamingConnection = new StreamingConnection();
+    private boolean streaming = false;
+    private long maxStreamRows;
+    private long maxStreamBytes;
+    private long maxStreamNanos;
+    private InfileChunkStream stream;
+    private long streamRows;
+    private long streamBytes;
+    private long streamDeadline;
 
     /**
      * For subclasses to extend correctly
@@ -49,39 +107,531 @@ public abstract class InfileObjectLoader<E> implements Flushable {
      *
      * @param entity to be added to infile, cannot be null
      */
-    public void add(E entity) {
+    public synchronized void add(E entity) {
         Preconditions.checkNotNull(entity, "Entity to add cannot be null");
+        this.rethrowAsyncFailure();
 
-        this.convertToInfileRow(entity, this.infileDataBuffer.newRow());
-        if (!this.infileDataBuffer.addRowToInfile()) {
+        if (this.addRow(entity)) {
+            this.rowAdded();
+            if (this.adaptiveFlushSize != null && !this.streaming
+                && this.infileDataBuffer.size() >= this.adaptiveFlushSize.getFlushSize()) {
+                this.flushFullBuffer();
+            }
+            return;
+        }
+        if (!this.infileDataBuffer.isEmpty()) {
+            this.flushFullBuffer();
+            if (this.addRow(entity)) {
+                this.rowAdded();
+                return;
+            }
+        }
+        // This should be impossible unless rows are written in place, as the buffer asserts that an empty infile can
+        // accept any row that fits in the row buffer.
+        throw new IllegalStateException("Cannot add row to infile, even though infile has been flushed.");
+    }
+
+    private void rowAdded() {
+        if (this.bufferRows++ == 0) {
+            this.oldestRowNanos = System.nanoTime();
+        }
+    }
+
+    private void flushFullBuffer() {
+        if (this.flushExecutor == null) {
             this.flush();
-            if (!this.infileDataBuffer.addRowToInfile()) {
-                // This should be impossible, as the buffer asserts that an empty infile can accept
-                // any valid row.
-                throw new IllegalStateException("Cannot add row to infile, even though infile has been flushed.");
+        }
+        else {
+            this.flushAsync();
+        }
+    }
+
+    /**
+     * Converts an entity into a row of the infile buffer. When rows are written in place, a row that does not fit is
+     * rolled back, and written again if the infile buffer can grow.
+     *
+     * @return false if the row does not fit, in which case nothing has been added
+     */
+    private boolean addRow(E entity) {
+        InfileDataBuffer buffer = this.infileDataBuffer;
+        while (true) {
+            try {
+                this.convertToInfileRow(entity, buffer.newRow());
+                return buffer.addRowToInfile();
+            }
+            catch (BufferOverflowException e) {
+                if (!buffer.isWritingRowsInPlace()) {
+                    throw e;
+                }
+                buffer.rollbackRow();
+                if (!buffer.growInfileBuffer()) {
+                    return false;
+                }
             }
         }
     }
 
     /**
-     * Gets the complete list of exceptions returned from all flush operations invoked upon this loader.
+     * Gets the most recent warnings of all flush operations invoked upon this loader, as far as they are kept by
+     * {@link #getInfileWarnings()}.
      *
-     * @return errors that occurred during flushes
+     * @return warnings that occurred during flushes
      */
     public List<Exception> getWarnings() {
-        return this.warnings == null ? Collections.<Exception>emptyList() : this.warnings;
+        return ImmutableList.<Exception>copyOf(this.infileWarnings.getSamples());
     }
 
     /**
-     * Flushes the current contents of the infile buffer to the database, and then clears the buffer for writing.
+     * Gets the collector of the warnings of all flushes, which also counts them by code.
+     *
+     * @return the warnings
+     * @since 1.7.12
+     */
+    public InfileWarnings getInfileWarnings() {
+        return this.infileWarnings;
+    }
+
+    /**
+     * Sets what to keep of the warnings of flushes. By default the most recent
+     * {@value InfileWarnings#DEFAULT_SAMPLE_SIZE} warnings are kept. One collector can be shared by many loaders.
+     *
+     * @param infileWarnings the collector
+     * @since 1.7.12
+     */
+    public void setInfileWarnings(InfileWarnings infileWarnings) {
+        this.infileWarnings = Preconditions.checkNotNull(infileWarnings, "infileWarnings cannot be null");
+    }
+
+    /**
+     * Flushes the current contents of the infile buffer to the database, and then clears the buffer for writing. When
+     * flushing asynchronously this also waits for all buffers that are being flushed in the background.
      */
     @Override
-    public void flush() {
+    public synchronized void flush() {
+        if (this.flushExecutor == null) {
+            this.rethrowAsyncFailure();
+            this.load(this.infileDataBuffer, null);
+            this.infileDataBuffer.clear();
+            this.bufferRows = 0;
+            return;
+        }
+        if (!this.infileDataBuffer.isEmpty()) {
+            this.flushAsync();
+        }
+        this.awaitFlushes();
+    }
+
+    /**
+     * Flushes any rows that are left, waits for buffers that are being flushed in the background, and releases the
+     * buffers of this loader. The loader cannot be used afterwards.
+     *
+     * @since 1.7.12
+     */
+    @Override
+    public synchronized void close() {
+        if (this.latencyFlush != null) {
+            this.latencyFlush.cancel(false);
+            this.latencyFlush = null;
+        }
+        try {
+            if (!this.infileDataBuffer.isEmpty()) {
+                this.flush();
+            }
+            this.awaitFlushes();
+        }
+        finally {
+            this.infileDataBuffer.close();
+            if (this.freeBuffers != null) {
+                for (InfileDataBuffer buffer = this.freeBuffers.poll(); buffer != null; buffer = this.freeBuffers.poll()) {
+                    buffer.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Flushes full buffers on another thread while rows are written into the next buffer. Adding a row blocks when all
+     * other buffers are still being flushed. If a background flush fails, the rows of that buffer are lost and the failure
+     * is thrown by the next call to {@link #add(Object)}, {@link #flush()} or {@link #close()}.
+     * <p/>
+     * The executor must not run more than one flush at a time for loaders that share a connection, since JDBC
+     * connections are not safe for use by multiple threads.
+     *
+     * @param executor runs the flushes, typically a single thread executor for each connection
+     * @param bufferCount the number of buffers, including the current one, at least 2
+     * @since 1.7.12
+     */
+    public void setAsyncFlushing(Executor executor, int bufferCount) {
+        Preconditions.checkNotNull(executor, "executor cannot be null");
+        Preconditions.checkArgument(bufferCount >= 2, "bufferCount (%s) must be at least 2", bufferCount);
+        Preconditions.checkState(this.flushExecutor == null, "Asynchronous flushing is already enabled");
+        this.flushExecutor = executor;
+        // Room for every buffer, since a flush can finish before the buffer that replaces it has been taken
+        this.freeBuffers = new ArrayBlockingQueue<>(bufferCount);
+        for (int i = 1; i < bufferCount; i++) {
+            this.freeBuffers.add(this.infileDataBuffer.createSibling());
+        }
+    }
+
+    /**
+     * Loads all buffers of a table with a single {@code LOAD DATA} statement, until the statement has loaded a number of
+     * rows or bytes or has been running for some time. The statement reads each buffer as soon as it is full, which
+     * saves a round trip and statement for every buffer. Requires {@link #setAsyncFlushing(Executor, int) asynchronous
+     * flushing}, since the statement runs on the flush executor while rows are added.
+     * <p/>
+     * The statement is also ended by {@link #flush()} and when another loader that shares the connection needs it, so
+     * loading many tables at the same time gains little. The time limit should be lower than the
+     * {@code net_read_timeout} of the server, since the server waits for the next buffer for that long at most.
+     *
+     * @param maxRows the number of rows after which a statement is ended, or 0 for no limit
+     * @param maxBytes the number of bytes after which a statement is ended, or 0 for no limit
+     * @param maxTime the time after which a statement is ended
+     * @param unit the unit of {@code maxTime}
+     * @since 1.7.12
+     */
+    public void setStreaming(long maxRows, long maxBytes, long maxTime, TimeUnit unit) {
+        Preconditions.checkState(this.flushExecutor != null, "Streaming requires asynchronous flushing");
+        Preconditions.checkState(this.connectionPool == null, "Cannot stream with a connection pool");
+        Preconditions.checkState(this.spool == null, "Cannot stream to a spool");
+        Preconditions.checkArgument(maxRows >= 0, "maxRows (%s) cannot be negative", maxRows);
+        Preconditions.checkArgument(maxBytes >= 0, "maxBytes (%s) cannot be negative", maxBytes);
+        Preconditions.checkArgument(maxTime > 0, "maxTime (%s) must be positive", maxTime);
+        this.streaming = true;
+        this.maxStreamRows = maxRows;
+        this.maxStreamBytes = maxBytes;
+        this.maxStreamNanos = unit.toNanos(maxTime);
+    }
+
+    /**
+     * Flushes buffers on connections of a pool, so that as many buffers of this loader as there are connections are
+     * loaded at the same time, instead of one after the other on the connection of this loader. Buffers may be loaded in
+     * a different order than they were filled. Requires {@link #setAsyncFlushing(Executor, int) asynchronous flushing}
+     * with an executor that runs as many flushes at the same time as there are connections, and one more buffer than
+     * connections to keep all of them busy. The connection of this loader is then not used for flushing.
+     * <p/>
+     * A pool can be shared by many loaders, in which case the executor should be shared as well.
+     *
+     * @param connectionPool the connections to flush on, or null to flush on the connection of this loader
+     * @since 1.7.12
+     */
+    public void setConnectionPool(InfileConnectionPool connectionPool) {
+        Preconditions.checkState(connectionPool == null || this.flushExecutor != null,
+                                 "A connection pool requires asynchronous flushing");
+        Preconditions.checkState(connectionPool == null || !this.streaming, "Cannot stream with a connection pool");
+        this.connectionPool = connectionPool;
+    }
+
+    /**
+     * Loads a buffer again when its statement fails with a transient error, such as a deadlock, instead of losing its
+     * rows. The buffer is kept until it has been loaded or the policy gives up. With a
+     * {@link #setConnectionPool(InfileConnectionPool) connection pool}, a broken connection is replaced before the next
+     * attempt; otherwise every attempt uses the connection of this loader, so a broken connection fails every retry.
+     * Streaming statements are not retried, since their buffers are reused as soon as they have been read.
+     *
+     * @param retryPolicy which failures to retry, or null to fail on the first error
+     * @since 1.7.12
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Writes every flushed buffer to a spool on disk instead of loading it, so that no connection is used. The spool can
+     * be loaded later with an {@link com.opower.persistence.jpile.infile.InfileSpoolReplayer}.
+     *
+     * @param spool the spool to write to, or null to load into the database
+     * @since 1.7.12
+     */
+    public void setSpool(InfileSpool spool) {
+        Preconditions.checkState(!this.streaming, "Cannot spool a loader that streams");
+        this.spool = spool;
+    }
+
+    /**
+     * Flushes once the buffer holds as many bytes as the flush size decides, instead of only when it is full. The time
+     * each flush takes is fed back to the flush size. Flushes are not measured while streaming, so this has no effect on
+     * a loader that {@link #setStreaming(long, long, long, TimeUnit) streams}.
+     *
+     * @param adaptiveFlushSize the flush size of this loader, or null to flush only full buffers
+     * @since 1.7.12
+     */
+    public void setAdaptiveFlushSize(AdaptiveFlushSize adaptiveFlushSize) {
+        this.adaptiveFlushSize = adaptiveFlushSize;
+    }
+
+    public AdaptiveFlushSize getAdaptiveFlushSize() {
+        return this.adaptiveFlushSize;
+    }
+
+    /**
+     * Flushes the buffer once its oldest row has waited for {@code maxLatency}, so that rows that trickle in are not held
+     * back until the buffer is full. The scheduler checks the age of the oldest row and flushes on its own thread, so
+     * {@link #add(Object)}, {@link #flush()} and {@link #close()} synchronize on this loader while time based flushing is
+     * possible. A failed flush is thrown by the next call to one of those methods, the same as a failed background flush.
+     * <p/>
+     * Loaders that share a connection must not be flushed by separate schedulers, unless they flush asynchronously with
+     * the same single thread executor. See {@link HierarchicalInfileObjectLoader#setMaxLatency(long, TimeUnit)}.
+     *
+     * @param scheduler checks the age of the buffered rows, which is stopped by {@link #close()}
+     * @param maxLatency how long a row may stay in the buffer
+     * @param unit the unit of {@code maxLatency}
+     * @since 1.7.12
+     */
+    public synchronized void setMaxLatency(final ScheduledExecutorService scheduler, long maxLatency, TimeUnit unit) {
+        Preconditions.checkNotNull(scheduler, "scheduler cannot be null");
+        Preconditions.checkArgument(maxLatency > 0, "maxLatency (%s) must be positive", maxLatency);
+        Preconditions.checkState(this.latencyFlush == null, "Time based flushing is already enabled");
+        final long maxAgeNanos = unit.toNanos(maxLatency);
+        this.latencyFlush = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (InfileObjectLoader.this) {
+                    if (latencyFlush != null) {
+                        latencyFlush = scheduler.schedule(this, flushIfOlderThan(maxAgeNanos), TimeUnit.NANOSECONDS);
+                    }
+                }
+            }
+        }, maxAgeNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Starts flushing the buffer if its oldest row was added at least {@code maxAgeNanos} ago. A failure is not thrown,
+     * but by the next call to {@link #add(Object)}, {@link #flush()} or {@link #close()}.
+     *
+     * @param maxAgeNanos how long a row may stay in the buffer
+     * @return the time until the oldest row that is left reaches that age, or {@code maxAgeNanos} if there are no rows
+     */
+    synchronized long flushIfOlderThan(long maxAgeNanos) {
+        if (this.bufferRows > 0) {
+            long remaining = this.oldestRowNanos + maxAgeNanos - System.nanoTime();
+            if (remaining > 0) {
+                return remaining;
+            }
+            try {
+                this.startFlush();
+            }
+            catch (RuntimeException | Error e) {
+                this.asyncFailure.compareAndSet(null, e);
+            }
+        }
+        return maxAgeNanos;
+    }
+
+    /**
+     * Shares the connection with other loaders, so that a streaming statement is ended when another loader needs the
+     * connection.
+     */
+    void setStreamingConnection(StreamingConnection streamingConnection) {
+        this.streamingConnection = streamingConnection;
+    }
+
+    /**
+     * Ends the current streaming statement, if any, once it has read the buffers that have been handed to it.
+     */
+    void endStream() {
+        if (this.stream != null) {
+            this.stream.end();
+            this.stream = null;
+        }
+    }
+
+    /**
+     * Starts flushing the current buffer. When flushing asynchronously this returns without waiting for the flush, and
+     * {@link #awaitFlushes()} must be called to wait for it. Otherwise this is the same as {@link #flush()}.
+     */
+    void startFlush() {
+        if (this.flushExecutor == null) {
+            this.flush();
+        }
+        else if (!this.infileDataBuffer.isEmpty()) {
+            this.flushAsync();
+        }
+    }
+
+    /**
+     * Waits for all buffers that are being flushed in the background, and throws the first failure of any of them.
+     */
+    void awaitFlushes() {
+        this.endStream();
+        for (Future<?> flush = this.pendingFlushes.poll(); flush != null; flush = this.pendingFlushes.poll()) {
+            try {
+                flush.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw propagate(e);
+            }
+            catch (ExecutionException e) {
+                throw propagate(e.getCause());
+            }
+        }
+        this.rethrowAsyncFailure();
+    }
+
+    /**
+     * Hands the current buffer to the flush executor and continues with a free buffer, waiting for one if there are none.
+     */
+    private void flushAsync() {
+        InfileDataBuffer fullBuffer = this.infileDataBuffer;
+        int rows = this.bufferRows;
+        this.bufferRows = 0;
+        if (this.streaming) {
+            this.stream(fullBuffer, rows);
+        }
+        else {
+            this.loadAsync(fullBuffer);
+        }
+        try {
+            this.infileDataBuffer = this.freeBuffers.take();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw propagate(e);
+        }
+    }
+
+    private void loadAsync(final InfileDataBuffer fullBuffer) {
+        final InfileConnectionPool pool = this.spool == null ? this.connectionPool : null;
+        if (pool == null) {
+            this.streamingConnection.acquire(this, false);
+        }
+        this.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    load(fullBuffer, pool);
+                }
+                catch (RuntimeException | Error e) {
+                    asyncFailure.compareAndSet(null, e);
+                }
+                finally {
+                    fullBuffer.clear();
+                    freeBuffers.add(fullBuffer);
+                }
+            }
+        });
+    }
+
+    /**
+     * Hands a full buffer to the current streaming statement, or to a new one if there is none or it has ended.
+     */
+    private void stream(InfileDataBuffer fullBuffer, int rows) {
+        long bytes = fullBuffer.size();
+        if (this.stream == null || !this.stream.offer(fullBuffer)) {
+            this.startStream(fullBuffer);
+        }
+        this.streamRows += rows;
+        this.streamBytes += bytes;
+        if ((this.maxStreamRows > 0 && this.streamRows >= this.maxStreamRows)
+            || (this.maxStreamBytes > 0 && this.streamBytes >= this.maxStreamBytes)
+            || System.nanoTime() - this.streamDeadline >= 0) {
+            this.endStream();
+        }
+    }
+
+    private void startStream(InfileDataBuffer firstBuffer) {
+        this.streamingConnection.acquire(this, true);
+        this.streamRows = 0;
+        this.streamBytes = 0;
+        this.streamDeadline = System.nanoTime() + this.maxStreamNanos;
+        final InfileChunkStream chunkStream = new InfileChunkStream(
+                "\n".getBytes(firstBuffer.getCharset()), this.freeBuffers, this.streamDeadline);
+        chunkStream.offer(firstBuffer);
+        this.stream = chunkStream;
+        this.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    load(chunkStream, connection);
+                }
+                catch (RuntimeException | Error e) {
+                    asyncFailure.compareAndSet(null, e);
+                }
+                finally {
+                    chunkStream.abort();
+                }
+            }
+        });
+    }
+
+    private void execute(Runnable flush) {
+        FutureTask<Void> task = new FutureTask<>(flush, null);
+        while (!this.pendingFlushes.isEmpty() && this.pendingFlushes.peek().isDone()) {
+            this.pendingFlushes.poll();
+        }
+        this.pendingFlushes.add(task);
+        this.flushExecutor.execute(task);
+    }
+
+    /**
+     * Loads a buffer on the connection of this loader or on a connection of a pool, retrying transient failures as the
+     * retry policy allows. The buffer is read again from the start for every attempt.
+     */
+    private void load(InfileDataBuffer buffer, InfileConnectionPool pool) {
+        long bytes = buffer.size();
+        long start = System.nanoTime();
+        if (this.spool != null) {
+            this.spool.write(this.loadInfileSql, buffer);
+        }
+        else {
+            ByteBuffer contents = buffer.asReadOnlyBuffer();
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    this.load(contents.duplicate(), pool);
+                    break;
+                }
+                catch (RuntimeException e) {
+                    if (this.retryPolicy == null || !this.retryPolicy.shouldRetry(e, attempt)) {
+                        throw e;
+                    }
+                    this.retryPolicy.backoff(attempt);
+                    start = System.nanoTime();
+                }
+            }
+        }
+        if (this.adaptiveFlushSize != null) {
+            this.adaptiveFlushSize.recordFlush(bytes, System.nanoTime() - start);
+        }
+    }
+
+    private void load(ByteBuffer contents, InfileConnectionPool pool) {
+        if (pool == null) {
+            this.load(new ByteBufferInputStream(contents), this.connection);
+            return;
+        }
+        Connection pooledConnection = pool.acquire();
+        boolean broken = false;
+        try {
+            this.load(new ByteBufferInputStream(contents), pooledConnection);
+        }
+        catch (RuntimeException e) {
+            broken = this.retryPolicy == null
+                     ? RetryPolicy.isConnectionFailure(e)
+                     : this.retryPolicy.shouldReplaceConnection(e);
+            throw e;
+        }
+        finally {
+            if (broken) {
+                pool.discard(pooledConnection);
+            }
+            else {
+                pool.release(pooledConnection);
+            }
+        }
+    }
+
+    private void load(InputStream inputStream, Connection target) {
         JdbcUtil.StatementCallback<List<Exception>> statementCallback = new InfileStatementCallback(
-                this.loadInfileSql, this.infileDataBuffer.asInputStream()
+                this.loadInfileSql, inputStream, this.infileWarnings
         );
-        this.warnings = JdbcUtil.execute(this.connection, statementCallback);
-        this.infileDataBuffer.clear();
+        JdbcUtil.execute(target, statementCallback);
+    }
+
+    private void rethrowAsyncFailure() {
+        Throwable failure = this.asyncFailure.getAndSet(null);
+        if (failure != null) {
+            throw propagate(failure);
+        }
     }
 
     /**
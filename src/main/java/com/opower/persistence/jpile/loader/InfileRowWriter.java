@@ -0,0 +1,454 @@
+package com.opower.persistence.jpile.loader;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.primitives.Primitives;
+import com.opower.persistence.jpile.infile.FixedPointFormat;
+import com.opower.persistence.jpile.infile.InfileRow;
+import javassist.ClassClassPath;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtMethod;
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.Bytecode;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.persistence.TemporalType;
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Throwables.propagate;
+import static com.opower.persistence.jpile.reflection.PersistenceAnnotationInspector.memberType;
+
+/**
+ * Writes the columns of an entity into a row by calling its getters directly, instead of through
+ * {@link Method#invoke(Object, Object...)}. A subclass is generated with Javassist for each entity and list of columns,
+ * which calls each getter with its static type and appends the value with the matching typed append, so that
+ * primitives are not boxed and the JIT can inline the getters. Columns of types without a typed append, such as enums
+ * and related entities, are handed to the {@link ColumnConverter} of the column as objects.
+ * <p/>
+ * A writer can only be generated when the entity class and all of its column getters are public. Otherwise, or when the
+ * class cannot be generated at all, {@link #generate(SingleInfileObjectLoader)} returns null and the loader keeps using
+ * reflection. Entities with field access read public fields directly in the same way; when any of their fields is not
+ * public, a writer that reads the fields through cached method handles is returned instead. Generated classes are
+ * defined in the class loader of the entity and cached with the entity class, so that each entity gets one class for
+ * each list of columns however many loaders are built for it, and the cache does not keep the class loader of the entity
+ * alive. The first failure to generate or create a writer for each entity class is logged as a warning.
+ * <p/>
+ * This class is public only so that generated subclasses can extend it from the class loader of the entity.
+ *
+ * @author agent
+ * @since 1.7.12
+ */
+public abstract class InfileRowWriter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(InfileRowWriter.class);
+    private static final AtomicInteger GENERATED_CLASSES = new AtomicInteger();
+    private static final Map<Class<?>, Character> PRIMITIVE_DESCRIPTORS = ImmutableMap.<Class<?>, Character>builder()
+            .put(boolean.class, 'Z').put(byte.class, 'B').put(char.class, 'C').put(short.class, 'S').put(int.class, 'I')
+            .put(long.class, 'J').put(float.class, 'F').put(double.class, 'D').put(void.class, 'V').build();
+    // Primitives that are appended by calling the row directly, and the parameter type of that append
+    private static final Map<Class<?>, String> PRIMITIVE_APPENDS = ImmutableMap.<Class<?>, String>of(
+            long.class, "appendLong", int.class, "appendInt", short.class, "appendShort",
+            // Not append(byte) which would write the raw byte instead of the number
+            byte.class, "appendShort", boolean.class, "append");
+    private static final Map<Class<?>, Class<?>> PRIMITIVE_APPEND_TYPES = ImmutableMap.<Class<?>, Class<?>>of(
+            long.class, long.class, int.class, int.class, short.class, short.class, byte.class, short.class,
+            boolean.class, Boolean.class);
+    // Types that have an append method in this class, which for these also takes the column
+    private static final Set<Class<?>> COLUMN_APPEND_TYPES = ImmutableSet.<Class<?>>of(
+            double.class, float.class, Double.class, Date.class);
+    // Types that have an append method in this class without the column
+    private static final Set<Class<?>> APPEND_TYPES = ImmutableSet.<Class<?>>of(
+            Long.class, Integer.class, Short.class, Boolean.class, String.class, BigDecimal.class, Instant.class,
+            LocalDate.class, LocalDateTime.class);
+    // Kept with each entity class instead of in a static map, so that they do not keep its class loader alive
+    private static final ClassValue<WriterClasses> WRITER_CLASSES = new ClassValue<WriterClasses>() {
+        @Override
+        protected WriterClasses computeValue(Class<?> entityClass) {
+            return new WriterClasses();
+        }
+    };
+
+    private ColumnConverter[] converters;
+    private FixedPointFormat[] formats;
+    private TemporalType[] temporalTypes;
+
+    /**
+     * Writes the columns of an entity, in the order of the mappings of the loader the writer was generated for. Does not
+     * write embedded objects.
+     *
+     * @param entity the entity, not null
+     * @param infileRow the row to append to
+     */
+    public abstract void write(Object entity, InfileRow infileRow);
+
+    /**
+     * Appends a column with its converter, the same way as the loader does when it uses reflection.
+     *
+     * @param column the index of the column
+     * @param value the value of the column
+     * @param infileRow the row to append to
+     */
+    protected final void append(int column, Object value, InfileRow infileRow) {
+        this.converters[column].append(value, infileRow);
+    }
+
+    protected final void append(int column, double value, InfileRow infileRow) {
+        FixedPointFormat format = this.formats[column];
+        if (format != null) {
+            infileRow.append(value, format);
+        }
+        else {
+            infileRow.appendDouble(value);
+        }
+    }
+
+    protected final void append(int column, float value, InfileRow infileRow) {
+        FixedPointFormat format = this.formats[column];
+        if (format != null) {
+            infileRow.append(value, format);
+        }
+        else {
+            infileRow.append(Float.valueOf(value));
+        }
+    }
+
+    protected final void append(int column, Double value, InfileRow infileRow) {
+        if (value == null) {
+            infileRow.appendNull();
+        }
+        else {
+            this.append(column, value.doubleValue(), infileRow);
+        }
+    }
+
+    protected final void append(int column, Date value, InfileRow infileRow) {
+        TemporalType temporalType = this.temporalTypes[column];
+        if (value == null || temporalType == null) {
+            // Without @Temporal the loader fails with a descriptive message
+            this.append(column, (Object) value, infileRow);
+        }
+        else {
+            infileRow.append(value, temporalType);
+        }
+    }
+
+    protected final void append(Long value, InfileRow infileRow) {
+        if (value == null) {
+            infileRow.appendNull();
+        }
+        else {
+            infileRow.appendLong(value);
+        }
+    }
+
+    protected final void append(Integer value, InfileRow infileRow) {
+        if (value == null) {
+            infileRow.appendNull();
+        }
+        else {
+            infileRow.appendInt(value);
+        }
+    }
+
+    protected final void append(Short value, InfileRow infileRow) {
+        if (value == null) {
+            infileRow.appendNull();
+        }
+        else {
+            infileRow.appendShort(value);
+        }
+    }
+
+    protected final void append(Boolean value, InfileRow infileRow) {
+        if (value == null) {
+            infileRow.appendNull();
+        }
+        else {
+            infileRow.append(value);
+        }
+    }
+
+    protected final void append(String value, InfileRow infileRow) {
+        if (value == null) {
+            infileRow.appendNull();
+        }
+        else {
+            infileRow.append(value);
+        }
+    }
+
+    protected final void append(BigDecimal value, InfileRow infileRow) {
+        if (value == null) {
+            infileRow.appendNull();
+        }
+        else {
+            infileRow.append(value);
+        }
+    }
+
+    protected final void append(Instant value, InfileRow infileRow) {
+        if (value == null) {
+            infileRow.appendNull();
+        }
+        else {
+            infileRow.append(value);
+        }
+    }
+
+    protected final void append(LocalDate value, InfileRow infileRow) {
+        if (value == null) {
+            infileRow.appendNull();
+        }
+        else {
+            infileRow.append(value);
+        }
+    }
+
+    protected final void append(LocalDateTime value, InfileRow infileRow) {
+        if (value == null) {
+            infileRow.appendNull();
+        }
+        else {
+            infileRow.append(value);
+        }
+    }
+
+    /**
+     * Creates a writer for the columns of a loader.
+     *
+     * @param loader the loader, whose mappings have been found
+     * @return a new writer, or null if none can be generated for the entity
+     */
+    static InfileRowWriter generate(SingleInfileObjectLoader<?> loader) {
+        AccessibleObject[] members = loader.mappings.values().toArray(new AccessibleObject[loader.mappings.size()]);
+        boolean[] byConverter = new boolean[members.length];
+        for (int i = 0; i < members.length; i++) {
+            byConverter[i] = loader.converters[i].replacesTypedAppend();
+        }
+        Class<?> writerClass = writerClass(loader.aClass, members, byConverter);
+        InfileRowWriter writer;
+        if (writerClass != null) {
+            try {
+                writer = (InfileRowWriter) writerClass.newInstance();
+            }
+            catch (InstantiationException | IllegalAccessException e) {
+                logFailure(loader.aClass, "Cannot create a row writer for [{}], using reflection instead.", e);
+                return null;
+            }
+        }
+        else if (loader.persistenceAnnotationInspector.isFieldAccess(loader.aClass)) {
+            MethodHandle[] getters = new MethodHandle[members.length];
+            for (int i = 0; i < members.length; i++) {
+                getters[i] = loader.persistenceAnnotationInspector.fieldGetter((Field) members[i]);
+            }
+            writer = new FieldHandleRowWriter(getters);
+        }
+        else {
+            return null;
+        }
+        writer.converters = loader.converters;
+        writer.formats = new FixedPointFormat[members.length];
+        writer.temporalTypes = new TemporalType[members.length];
+        for (int i = 0; i < members.length; i++) {
+            writer.formats[i] = loader.fixedPointFormats.get(members[i]);
+            writer.temporalTypes[i] = loader.temporalTypes.get(members[i]);
+        }
+        return writer;
+    }
+
+    private static Class<?> writerClass(Class<?> entityClass, AccessibleObject[] members, boolean[] byConverter) {
+        List<Object> key = ImmutableList.builder().add((Object[]) members).add(Arrays.toString(byConverter)).build();
+        WriterClasses writerClasses = WRITER_CLASSES.get(entityClass);
+        synchronized (writerClasses) {
+            if (!writerClasses.classes.containsKey(key)) {
+                Class<?> writerClass = null;
+                if (isAccessible(entityClass, members)) {
+                    try {
+                        writerClass = defineClass(entityClass, members, byConverter);
+                    }
+                    catch (Exception | LinkageError e) {
+                        logFailure(entityClass, "Cannot generate a row writer for [{}], using reflection instead.", e);
+                    }
+                }
+                writerClasses.classes.put(key, writerClass);
+            }
+            return writerClasses.classes.get(key);
+        }
+    }
+
+    /**
+     * Logs why a writer could not be used for an entity class, only for the first failure of each class.
+     */
+    private static void logFailure(Class<?> entityClass, String message, Throwable e) {
+        WriterClasses writerClasses = WRITER_CLASSES.get(entityClass);
+        synchronized (writerClasses) {
+            if (writerClasses.failureLogged) {
+                return;
+            }
+            writerClasses.failureLogged = true;
+        }
+        LOGGER.warn(message, entityClass, e);
+    }
+
+    private static boolean isAccessible(Class<?> entityClass, AccessibleObject[] members) {
+        if (!Modifier.isPublic(entityClass.getModifiers()) || entityClass.getClassLoader() == null) {
+            return false;
+        }
+        for (AccessibleObject member : members) {
+            Member m = (Member) member;
+            if (!Modifier.isPublic(m.getModifiers()) || !Modifier.isPublic(m.getDeclaringClass().getModifiers())
+                || member instanceof Method && ((Method) member).getParameterTypes().length > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Class<?> defineClass(Class<?> entityClass, AccessibleObject[] members, boolean[] byConverter)
+            throws Exception {
+        ClassPool classPool = new ClassPool(true);
+        classPool.insertClassPath(new ClassClassPath(InfileRowWriter.class));
+        String name = String.format("%s$$InfileRowWriter$$%d", entityClass.getName(), GENERATED_CLASSES.incrementAndGet());
+        CtClass ctClass = classPool.makeClass(name, classPool.get(InfileRowWriter.class.getName()));
+        MethodInfo writeMethod = writeMethod(ctClass.getClassFile().getConstPool(), entityClass, members, byConverter);
+        ctClass.addMethod(CtMethod.make(writeMethod, ctClass));
+        return ctClass.toClass(entityClass.getClassLoader(), entityClass.getProtectionDomain());
+    }
+
+    /**
+     * Generates {@link #write(Object, InfileRow)} as bytecode. The Javassist compiler is not used since the version this
+     * project depends on cannot read class files that use {@code invokedynamic}, which includes most of the JDK. For each
+     * column the getter is called on the entity, or its field is read, and the value is appended directly for primitives
+     * that have a typed append, or passed to one of the append methods of this class. Columns whose converter replaces
+     * the typed append of their type, such as columns with a value writer or a dictionary, are always passed to their
+     * converter.
+     */
+    private static MethodInfo writeMethod(ConstPool constPool, Class<?> entityClass, AccessibleObject[] members,
+                                          boolean[] byConverter) {
+        String entity = entityClass.getName();
+        String writer = InfileRowWriter.class.getName();
+        String row = InfileRow.class.getName();
+        String rowDescriptor = descriptor(InfileRow.class);
+        Bytecode code = new Bytecode(constPool);
+        code.addAload(1);
+        code.addCheckcast(entity);
+        code.addAstore(3);
+        for (int i = 0; i < members.length; i++) {
+            Class<?> type = memberType(members[i]);
+            String append = byConverter[i] ? null : PRIMITIVE_APPENDS.get(type);
+            if (append != null) {
+                // row.appendLong(e.getValue()), and the like
+                code.addAload(2);
+                code.addAload(3);
+                addGet(code, entity, members[i]);
+                if (type == boolean.class) {
+                    code.addInvokestatic(Boolean.class.getName(), "valueOf", "(Z)Ljava/lang/Boolean;");
+                }
+                code.addInvokeinterface(row, append, "(" + descriptor(PRIMITIVE_APPEND_TYPES.get(type)) + ")" + rowDescriptor,
+                                        type == long.class ? 3 : 2);
+                code.addOpcode(Opcode.POP);
+                continue;
+            }
+            // this.append(column, e.getValue(), row) or this.append(e.getValue(), row)
+            boolean byColumn = byConverter[i] || !APPEND_TYPES.contains(type);
+            Class<?> valueType = !byConverter[i] && (COLUMN_APPEND_TYPES.contains(type) || APPEND_TYPES.contains(type))
+                                 ? type : Object.class;
+            code.addAload(0);
+            if (byColumn) {
+                code.addIconst(i);
+            }
+            code.addAload(3);
+            addGet(code, entity, members[i]);
+            if (type.isPrimitive() && valueType == Object.class) {
+                Class<?> wrapper = Primitives.wrap(type);
+                code.addInvokestatic(wrapper.getName(), "valueOf", "(" + descriptor(type) + ")" + descriptor(wrapper));
+            }
+            code.addAload(2);
+            code.addInvokevirtual(writer, "append",
+                                  "(" + (byColumn ? "I" : "") + descriptor(valueType) + rowDescriptor + ")V");
+        }
+        code.addOpcode(Opcode.RETURN);
+        code.setMaxLocals(4);
+        code.setMaxStack(5);
+        MethodInfo method = new MethodInfo(constPool, "write", "(Ljava/lang/Object;" + rowDescriptor + ")V");
+        method.setAccessFlags(AccessFlag.PUBLIC);
+        method.setCodeAttribute(code.toCodeAttribute());
+        return method;
+    }
+
+    /**
+     * Adds the bytecode that replaces the entity on top of the stack with the value of a column.
+     */
+    private static void addGet(Bytecode code, String entity, AccessibleObject member) {
+        if (member instanceof Method) {
+            code.addInvokevirtual(entity, ((Method) member).getName(), "()" + descriptor(memberType(member)));
+        }
+        else {
+            code.addGetfield(entity, ((Field) member).getName(), descriptor(memberType(member)));
+        }
+    }
+
+    private static String descriptor(Class<?> type) {
+        if (type.isPrimitive()) {
+            return String.valueOf(PRIMITIVE_DESCRIPTORS.get(type));
+        }
+        String name = type.getName().replace('.', '/');
+        return type.isArray() ? name : "L" + name + ";";
+    }
+
+    /**
+     * The writer classes generated for an entity class.
+     */
+    private static final class WriterClasses {
+        // Keyed by the column getters or fields followed by the columns that are appended by their converter, null values
+        // for classes that could not be generated
+        private final Map<List<Object>, Class<?>> classes = new HashMap<>();
+        private boolean failureLogged;
+    }
+
+    /**
+     * Reads the fields of an entity through method handles, for entities with field access whose fields are not public.
+     */
+    private static final class FieldHandleRowWriter extends InfileRowWriter {
+        private final MethodHandle[] getters;
+
+        private FieldHandleRowWriter(MethodHandle[] getters) {
+            this.getters = getters;
+        }
+
+        @Override
+        public void write(Object entity, InfileRow infileRow) {
+            for (int i = 0; i < this.getters.length; i++) {
+                Object value;
+                try {
+                    value = (Object) this.getters[i].invokeExact(entity);
+                }
+                catch (Throwable e) {
+                    throw propagate(e);
+                }
+                this.append(i, value, infileRow);
+            }
+        }
+    }
+}
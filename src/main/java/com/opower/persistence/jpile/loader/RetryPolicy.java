@@ -0,0 +1,172 @@
+package com.opower.persistence.jpile.loader;
+
+import com.google.common.base.Preconditions;
+
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Throwables.propagate;
+
+/**
+ * Decides which failed {@code LOAD DATA} statements are loaded again, and how long to wait before that. Deadlocks, lock
+ * wait timeouts and broken connections are retried, since loading the same rows again is likely to succeed; any other
+ * failure, such as a syntax error or a full disk, is not. The wait doubles with every attempt up to a maximum, and is
+ * shortened by a random amount of up to half so that statements that deadlocked each other do not retry in lockstep.
+ * <p/>
+ * MySQL rolls back a statement that fails with a deadlock or lock wait timeout, so loading its rows again does not
+ * duplicate them as long as the connection is in autocommit mode. When a connection breaks, the server may have loaded
+ * the rows before the failure reached the client, so tables that are loaded with retries should have a unique key, or
+ * be loaded with {@code REPLACE}.
+ * <p/>
+ * Instances of this class are safe for use by multiple threads once they have been configured.
+ *
+ * @author agent
+ * @see InfileObjectLoader#setRetryPolicy(RetryPolicy)
+ * @since 1.7.12
+ */
+public final class RetryPolicy {
+    private static final int ER_LOCK_WAIT_TIMEOUT = 1205;
+    private static final int ER_LOCK_DEADLOCK = 1213;
+    private static final String CONNECTION_EXCEPTION_CLASS = "08";
+
+    private final int maxAttempts;
+    private final long initialBackoffNanos;
+    private final long maxBackoffNanos;
+    private boolean freshConnection = false;
+
+    /**
+     * Creates a new policy.
+     *
+     * @param maxAttempts the number of times a statement is run at most, including the first time
+     * @param initialBackoff how long to wait before the first retry
+     * @param maxBackoff how long to wait at most before a retry
+     * @param unit the unit of {@code initialBackoff} and {@code maxBackoff}
+     */
+    public RetryPolicy(int maxAttempts, long initialBackoff, long maxBackoff, TimeUnit unit) {
+        Preconditions.checkArgument(maxAttempts >= 1, "maxAttempts (%s) must be at least 1", maxAttempts);
+        Preconditions.checkArgument(initialBackoff >= 0, "initialBackoff (%s) cannot be negative", initialBackoff);
+        Preconditions.checkArgument(maxBackoff >= initialBackoff,
+                                    "maxBackoff (%s) must be at least initialBackoff (%s)", maxBackoff, initialBackoff);
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffNanos = unit.toNanos(initialBackoff);
+        this.maxBackoffNanos = unit.toNanos(maxBackoff);
+    }
+
+    public int getMaxAttempts() {
+        return this.maxAttempts;
+    }
+
+    /**
+     * Retries on a new connection after any failure, instead of only after the connection broke. This only applies to
+     * loaders that flush on a {@link InfileConnectionPool}, since other loaders have a single connection.
+     *
+     * @param freshConnection true to discard the connection of every failed statement
+     */
+    public void setFreshConnection(boolean freshConnection) {
+        this.freshConnection = freshConnection;
+    }
+
+    public boolean isFreshConnection() {
+        return this.freshConnection;
+    }
+
+    /**
+     * Checks whether a statement should be run again.
+     *
+     * @param failure why the statement failed
+     * @param attempt the number of times the statement has been run
+     * @return true if the failure is transient and there are attempts left
+     */
+    public boolean shouldRetry(Throwable failure, int attempt) {
+        return attempt < this.maxAttempts && isTransient(failure);
+    }
+
+    /**
+     * Checks whether the connection a statement failed on should be replaced before the statement is run again.
+     *
+     * @param failure why the statement failed
+     * @return true if the connection broke, or if every retry should use a fresh connection
+     */
+    public boolean shouldReplaceConnection(Throwable failure) {
+        return this.freshConnection || isConnectionFailure(failure);
+    }
+
+    /**
+     * Gets the longest time to wait before a retry.
+     *
+     * @param attempt the number of times the statement has been run
+     * @return the wait in nanoseconds, before it is shortened by a random amount
+     */
+    public long getBackoffNanos(int attempt) {
+        long backoff = this.initialBackoffNanos;
+        for (int i = 1; i < attempt && backoff < this.maxBackoffNanos; i++) {
+            backoff *= 2;
+        }
+        return Math.min(backoff, this.maxBackoffNanos);
+    }
+
+    /**
+     * Waits before a retry.
+     *
+     * @param attempt the number of times the statement has been run
+     */
+    void backoff(int attempt) {
+        long backoff = this.getBackoffNanos(attempt);
+        if (backoff == 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(backoff - ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw propagate(e);
+        }
+    }
+
+    /**
+     * Checks whether a failure is a deadlock, a lock wait timeout or a broken connection.
+     *
+     * @param failure the failure, or an exception that wraps it
+     * @return true if running the statement again may succeed
+     */
+    public static boolean isTransient(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLTransientException || cause instanceof SQLRecoverableException) {
+                return true;
+            }
+            if (cause instanceof SQLException) {
+                int errorCode = ((SQLException) cause).getErrorCode();
+                if (errorCode == ER_LOCK_DEADLOCK || errorCode == ER_LOCK_WAIT_TIMEOUT || isConnectionFailure(cause)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether a failure means that the connection is no longer usable, which MySQL reports with a SQLState of
+     * class {@code 08}.
+     *
+     * @param failure the failure, or an exception that wraps it
+     * @return true if the connection broke
+     */
+    public static boolean isConnectionFailure(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLRecoverableException) {
+                return true;
+            }
+            if (cause instanceof SQLException) {
+                String sqlState = ((SQLException) cause).getSQLState();
+                if (sqlState != null && sqlState.startsWith(CONNECTION_EXCEPTION_CLASS)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
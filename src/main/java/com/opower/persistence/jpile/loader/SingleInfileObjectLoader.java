@@ -1,19 +1,27 @@
 package com.opower.persistence.jpile.loader;
 
 import com.google.common.base.Preconditions;
+import com.opower.persistence.jpile.infile.FixedPointFormat;
 import com.opower.persistence.jpile.infile.InfileDataBuffer;
 import com.opower.persistence.jpile.infile.InfileRow;
+import com.opower.persistence.jpile.infile.InfileValueWriters;
 import com.opower.persistence.jpile.reflection.PersistenceAnnotationInspector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.persistence.Column;
 import javax.persistence.EnumType;
 import javax.persistence.Enumerated;
-import java.lang.reflect.InvocationTargetException;
+import javax.persistence.TemporalType;
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.Map;
@@ -23,7 +31,6 @@ import java.util.concurrent.TimeUnit;
 
 import static com.google.common.base.Throwables.propagate;
 import static com.opower.persistence.jpile.reflection.PersistenceAnnotationInspector.getIdValue;
-import static com.opower.persistence.jpile.reflection.PersistenceAnnotationInspector.setIdValue;
 import static com.opower.persistence.jpile.util.Hex.encodeHexString;
 
 /**
@@ -37,14 +44,33 @@ public class SingleInfileObjectLoader<E> extends InfileObjectLoader<E> {
 
     // @TODO we may need to make this atomic to be thread safe
     protected long autoGeneratedId = 0;
-    protected final Map<String, Method> mappings = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
-    protected final Map<Method, SingleInfileObjectLoader<Object>> embeds = new LinkedHashMap<>();
+    // Getters, or fields for classes with field access
+    protected final Map<String, AccessibleObject> mappings = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    protected final Map<AccessibleObject, SingleInfileObjectLoader<Object>> embeds = new LinkedHashMap<>();
+    // Resolved once from @Column for floating point columns with a precision and scale
+    protected final Map<AccessibleObject, FixedPointFormat> fixedPointFormats = new HashMap<>();
+    // Resolved once from @Temporal for date columns
+    protected final Map<AccessibleObject, TemporalType> temporalTypes = new HashMap<>();
+    // The known values of string columns, which are encoded once
+    protected final Map<String, Set<String>> dictionaries = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    // Writers of custom column types, see InfileValueWriters
+    protected InfileValueWriters valueWriters = InfileValueWriters.defaults();
 
     protected final Class<? extends E> aClass;
     protected PersistenceAnnotationInspector persistenceAnnotationInspector;
     protected boolean allowNull = false;
     protected boolean autoGenerateId = false;
     protected boolean embedChild = false;
+    protected boolean useRawBinary = false;
+    // Read and write the id when ids are generated, resolved once instead of looking up the id getter for every row
+    protected MethodHandle idGetter;
+    protected MethodHandle idSetter;
+    // Resolved once for each column in the order of the mappings, see ColumnConverter
+    protected ColumnConverter[] converters;
+    // Generated when possible, see InfileRowWriter
+    protected InfileRowWriter rowWriter;
+    // The columns of the entity and its embedded objects, see FlattenedColumns
+    protected FlattenedColumns columns;
 
     SingleInfileObjectLoader(Class<? extends E> aClass) {
         this.aClass = aClass;
@@ -56,61 +82,100 @@ public class SingleInfileObjectLoader<E> extends InfileObjectLoader<E> {
     @Override
     public void convertToInfileRow(E entity, InfileRow infileRow) {
         if (entity == null && this.allowNull) {
-            for (int i = 0; i < this.mappings.size(); i++) {
-                infileRow.appendNull();
-            }
-            for (SingleInfileObjectLoader<Object> loader : this.embeds.values()) {
-                loader.convertToInfileRow(null, infileRow);
-            }
+            this.columns.write(null, infileRow);
         }
         else {
-            if (!this.embedChild && getIdValue(this.persistenceAnnotationInspector, entity) == null) {
+            Preconditions.checkNotNull(entity, "Cannot write a null entity");
+            if (this.autoGenerateId && readId(entity) == null) {
                 generateAndSetId(entity);
             }
-            for (Method m : this.mappings.values()) {
-                Object object = invoke(m, entity);
-                if (object == null) {
-                    infileRow.appendNull();
-                    continue;
-                }
-                if (this.persistenceAnnotationInspector.hasTableAnnotation(object.getClass())) {
-                    Long id = (Long) getIdValue(this.persistenceAnnotationInspector, object);
-                    Preconditions.checkState(id != null, "@Id for [%s] is null", object);
-                    assert id != null;
-                    object = id;
-                }
-                if (object instanceof Date) {
-                    infileRow.append((Date) object, m);
-                }
-                else if (object instanceof Boolean) {
-                    infileRow.append((Boolean) object);
-                }
-                else if (object instanceof byte[]) {
-                    infileRow.append(encodeHexString((byte[]) object));
-                }
-                else if (object instanceof Enum) {
-                    infileRow.append(getEnumValueToAppend(m, (Enum <?>) object));
-                }
-                else if (object instanceof Float) {
-                    Column column = this.persistenceAnnotationInspector.findAnnotation(m, Column.class);
-                    if (column != null) {
-                        int precision = column.precision();
-                        int scale = column.scale();
-                        if (precision > 0 && scale > 0) {
-                            infileRow.append((Float) object, precision, scale);
-                            continue;
-                        }
-                    }
-                    infileRow.append(object);
-                }
-                else {
-                    infileRow.append(object);
-                }
+            this.columns.write(entity, infileRow);
+        }
+    }
+
+    /**
+     * Appends the value of a column with the append that matches its type. Only used for columns whose converter cannot
+     * be resolved from their declared type.
+     *
+     * @param m the getter or field of the column
+     * @param object the value of the column
+     * @param infileRow the row to append to
+     */
+    void appendValue(AccessibleObject m, Object object, InfileRow infileRow) {
+        if (object == null) {
+            infileRow.appendNull();
+            return;
+        }
+        if (this.persistenceAnnotationInspector.hasTableAnnotation(object.getClass())) {
+            Long id = (Long) getIdValue(this.persistenceAnnotationInspector, object);
+            Preconditions.checkState(id != null, "@Id for [%s] is null", object);
+            assert id != null;
+            object = id;
+        }
+        if (object instanceof Long) {
+            infileRow.appendLong((Long) object);
+        }
+        else if (object instanceof Integer) {
+            infileRow.appendInt((Integer) object);
+        }
+        else if (object instanceof Short) {
+            infileRow.appendShort((Short) object);
+        }
+        else if (object instanceof Byte) {
+            // Not append(byte) which would write the raw byte instead of the number
+            infileRow.appendShort((Byte) object);
+        }
+        else if (object instanceof Double || object instanceof Float) {
+            FixedPointFormat format = this.fixedPointFormats.get(m);
+            if (format != null) {
+                infileRow.append(((Number) object).doubleValue(), format);
+            }
+            else if (object instanceof Double) {
+                infileRow.appendDouble((Double) object);
+            }
+            else {
+                infileRow.append(object);
+            }
+        }
+        else if (object instanceof BigDecimal) {
+            infileRow.append((BigDecimal) object);
+        }
+        else if (object instanceof Date) {
+            TemporalType temporalType = this.temporalTypes.get(m);
+            if (temporalType == null && m instanceof Method) {
+                // Fails with a descriptive message if @Temporal is missing
+                infileRow.append((Date) object, (Method) m);
+            }
+            else {
+                Preconditions.checkNotNull(temporalType, "A temporal annotation must be provided on field [%s]", m);
+                infileRow.append((Date) object, temporalType);
             }
-            for (Map.Entry<Method, SingleInfileObjectLoader<Object>> entry : this.embeds.entrySet()) {
-                Object object = invoke(entry.getKey(), entity);
-                entry.getValue().convertToInfileRow(object, infileRow);
+        }
+        else if (object instanceof LocalDateTime) {
+            infileRow.append((LocalDateTime) object);
+        }
+        else if (object instanceof LocalDate) {
+            infileRow.append((LocalDate) object);
+        }
+        else if (object instanceof Instant) {
+            infileRow.append((Instant) object);
+        }
+        else if (object instanceof Boolean) {
+            infileRow.append((Boolean) object);
+        }
+        else if (object instanceof byte[]) {
+            if (this.useRawBinary) {
+                infileRow.append((byte[]) object);
             }
+            else {
+                infileRow.append(encodeHexString((byte[]) object));
+            }
+        }
+        else if (object instanceof Enum) {
+            infileRow.append(getEnumValueToAppend(m, (Enum <?>) object));
+        }
+        else if (!this.valueWriters.write(object, infileRow)) {
+            infileRow.append(object);
         }
     }
 
@@ -121,11 +186,11 @@ public class SingleInfileObjectLoader<E> extends InfileObjectLoader<E> {
      *
      * Visible for testing.
      *
-     * @param method the method that returned the {@code enumObject}
+     * @param method the getter or field that returned the {@code enumObject}
      * @param enumObject the enum object that is being appended
      * @return the enum value to append
      */
-    Object getEnumValueToAppend(Method method, Enum<?> enumObject) {
+    Object getEnumValueToAppend(AccessibleObject method, Enum<?> enumObject) {
         Enumerated enumerated = method.getAnnotation(Enumerated.class);
         if (enumerated != null && enumerated.value() == EnumType.STRING) {
             return enumObject.name();
@@ -142,19 +207,24 @@ public class SingleInfileObjectLoader<E> extends InfileObjectLoader<E> {
                 this.aClass, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
     }
 
-    private void generateAndSetId(E e) {
-        if (this.autoGenerateId) {
-            this.autoGeneratedId++;
-            setIdValue(this.persistenceAnnotationInspector, e, this.autoGeneratedId);
+    private Object readId(E e) {
+        try {
+            return (Object) this.idGetter.invokeExact((Object) e);
+        }
+        catch (Throwable t) {
+            throw propagate(t);
         }
     }
 
-    private Object invoke(Method method, Object target) {
-        try {
-            return method.invoke(target);
-        }
-        catch (InvocationTargetException | IllegalAccessException e) {
-            throw propagate(e);
+    private void generateAndSetId(E e) {
+        this.autoGeneratedId++;
+        if (this.idSetter != null) {
+            try {
+                this.idSetter.invokeExact((Object) e, (Object) this.autoGeneratedId);
+            }
+            catch (Throwable t) {
+                throw propagate(t);
+            }
         }
     }
 
@@ -174,7 +244,7 @@ public class SingleInfileObjectLoader<E> extends InfileObjectLoader<E> {
      * Visible for testing.
      * @return the mappings for this object loader
      */
-    Map<String, Method> getMappings() {
+    Map<String, AccessibleObject> getMappings() {
         return this.mappings;
     }
 
@@ -182,7 +252,7 @@ public class SingleInfileObjectLoader<E> extends InfileObjectLoader<E> {
      * Visible for testing.
      * @return the embeds for this object loader
      */
-    Map<Method, SingleInfileObjectLoader<Object>> getEmbeds() {
+    Map<AccessibleObject, SingleInfileObjectLoader<Object>> getEmbeds() {
         return this.embeds;
     }
 
@@ -3,8 +3,13 @@ package com.opower.persistence.jpile.loader;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.opower.persistence.jpile.infile.FixedPointFormat;
 import com.opower.persistence.jpile.infile.InfileDataBuffer;
+import com.opower.persistence.jpile.infile.InfileSpool;
+import com.opower.persistence.jpile.infile.InfileValueWriter;
+import com.opower.persistence.jpile.infile.InfileValueWriters;
 import com.opower.persistence.jpile.reflection.PersistenceAnnotationInspector;
 import com.opower.persistence.jpile.util.JdbcUtil;
 
@@ -18,14 +23,22 @@ import javax.persistence.ManyToOne;
 import javax.persistence.OneToOne;
 import javax.persistence.PrimaryKeyJoinColumn;
 import javax.persistence.SecondaryTable;
+import javax.persistence.Temporal;
 import java.lang.annotation.Annotation;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Collection;
+import java.util.Date;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static com.opower.persistence.jpile.reflection.PersistenceAnnotationInspector.memberType;
 
 /**
  * The builder for creating a SingleInfileObjectLoader. This class does the building and parsing of the annotations.
@@ -44,7 +57,12 @@ public class SingleInfileObjectLoaderBuilder<E> {
     private boolean allowNull = false;
     private boolean embedded = false;
     private boolean useReplace = false;
+    private boolean useRawBinary = false;
+    private boolean generateRowWriter = true;
     private SecondaryTable secondaryTable;
+    private InfileSpool spool;
+    private Map<String, Set<String>> dictionaries = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    private InfileValueWriters valueWriters = InfileValueWriters.defaults();
 
     public SingleInfileObjectLoaderBuilder(Class<? extends E> aClass) {
         Preconditions.checkNotNull(aClass, "Class cannot be null");
@@ -92,6 +110,107 @@ public class SingleInfileObjectLoaderBuilder<E> {
         return this;
     }
 
+    /**
+     * Toggles writing {@code byte[]} columns as escaped raw bytes instead of hex strings that are decoded by an
+     * {@code unhex()} set clause. This halves the size of binary data sent to the server, but relies on the server not
+     * converting the bytes from the database character set, so it should only be used when binary columns are loaded
+     * unchanged, for example with a {@code latin1} or {@code binary} database character set.
+     *
+     * @param useRawBinary true to write raw bytes
+     * @return this builder
+     * @since 1.7.12
+     */
+    public SingleInfileObjectLoaderBuilder<E> useRawBinary(boolean useRawBinary) {
+        this.useRawBinary = useRawBinary;
+        return this;
+    }
+
+    /**
+     * Writes the rows to a spool on disk instead of loading them. The connection is then optional: without one, generated
+     * ids start at 1 as if the table were empty.
+     *
+     * @param spool the spool to write to
+     * @return this builder
+     * @since 1.7.12
+     */
+    public SingleInfileObjectLoaderBuilder<E> spoolTo(InfileSpool spool) {
+        this.spool = spool;
+        return this;
+    }
+
+    /**
+     * Toggles generating a class that calls the getters of the entity directly instead of through reflection, see
+     * {@link InfileRowWriter}. Enabled by default; reflection is used anyway when no class can be generated, except for
+     * entities with field access, whose fields are then read through cached method handles.
+     *
+     * @param generateRowWriter true to generate a row writer
+     * @return this builder
+     * @since 1.7.12
+     */
+    public SingleInfileObjectLoaderBuilder<E> generateRowWriter(boolean generateRowWriter) {
+        this.generateRowWriter = generateRowWriter;
+        return this;
+    }
+
+    /**
+     * Registers the known values of a string column, for example the statuses of a status column. Each value is escaped and
+     * encoded once, and copied into the rows it occurs in. Other values of the column are written as usual. Enum and
+     * boolean columns are always written this way. Dictionaries of columns that the entity does not map are ignored.
+     *
+     * @param column the name of the column
+     * @param values the known values
+     * @return this builder
+     * @since 1.7.12
+     */
+    public SingleInfileObjectLoaderBuilder<E> withDictionary(String column, Collection<String> values) {
+        Preconditions.checkNotNull(column, "column cannot be null");
+        this.dictionaries.put(column, ImmutableSet.copyOf(values));
+        return this;
+    }
+
+    /**
+     * Registers the known values of several string columns, see {@link #withDictionary(String, Collection)}.
+     *
+     * @param dictionaries the known values keyed by the name of their column
+     * @return this builder
+     * @since 1.7.12
+     */
+    public SingleInfileObjectLoaderBuilder<E> withDictionaries(Map<String, ? extends Collection<String>> dictionaries) {
+        for (Map.Entry<String, ? extends Collection<String>> entry : dictionaries.entrySet()) {
+            this.withDictionary(entry.getKey(), entry.getValue());
+        }
+        return this;
+    }
+
+    /**
+     * Registers the writer for the columns of a type, for example a money or other value type that would otherwise be
+     * written as the String returned by its {@code toString()}. The writer of the declared type of each column is found
+     * once, when the loader is built, and replaces the conversion this loader would use for that type. Writers for UUIDs
+     * and Joda types are registered by default, see {@link InfileValueWriters#defaults()}.
+     *
+     * @param type the type
+     * @param writer the writer for values of the type and its subtypes
+     * @param <T> the type
+     * @return this builder
+     * @since 1.7.12
+     */
+    public <T> SingleInfileObjectLoaderBuilder<E> withValueWriter(Class<T> type, InfileValueWriter<? super T> writer) {
+        this.valueWriters.register(type, writer);
+        return this;
+    }
+
+    /**
+     * Registers all writers of a registry, see {@link #withValueWriter(Class, InfileValueWriter)}.
+     *
+     * @param valueWriters the writers
+     * @return this builder
+     * @since 1.7.12
+     */
+    public SingleInfileObjectLoaderBuilder<E> withValueWriters(InfileValueWriters valueWriters) {
+        this.valueWriters.registerAll(valueWriters);
+        return this;
+    }
+
     public SingleInfileObjectLoaderBuilder<E> usingSecondaryTable(SecondaryTable secondaryTable) {
         this.secondaryTable = secondaryTable;
         return this;
@@ -108,7 +227,7 @@ public class SingleInfileObjectLoaderBuilder<E> {
      * @return a new instance of object loader
      */
     public SingleInfileObjectLoader<E> build() {
-        Preconditions.checkNotNull(this.connection, "connection cannot be null");
+        Preconditions.checkState(this.connection != null || this.spool != null, "connection cannot be null");
         Preconditions.checkNotNull(this.annotationInspector, "persistenceAnnotationInspector cannot be null");
         Preconditions.checkNotNull(this.infileDataBuffer, "infileDataBuffer cannot be null");
 
@@ -118,6 +237,10 @@ public class SingleInfileObjectLoaderBuilder<E> {
         objectLoader.persistenceAnnotationInspector = this.annotationInspector;
         objectLoader.allowNull = this.allowNull;
         objectLoader.embedChild = this.embedded;
+        objectLoader.useRawBinary = this.useRawBinary;
+        objectLoader.setSpool(this.spool);
+        objectLoader.dictionaries.putAll(this.dictionaries);
+        objectLoader.valueWriters = new InfileValueWriters().registerAll(this.valueWriters);
         if (this.defaultTableName) {
             if (this.secondaryTable == null) {
                 this.tableName = this.annotationInspector.tableName(this.aClass);
@@ -130,9 +253,14 @@ public class SingleInfileObjectLoaderBuilder<E> {
         this.findAnnotations(objectLoader);
         if (!this.embedded) {
             String idColumnName = findPrimaryIdColumnName(objectLoader);
-            objectLoader.setAutoGeneratedId(findMaxId(idColumnName, this.tableName, this.connection));
+            objectLoader.setAutoGeneratedId(this.connection == null ? 0 : findMaxId(idColumnName, this.tableName, this.connection));
             this.generateLoadInfileSql(objectLoader);
         }
+        objectLoader.converters = ColumnConverter.forColumns(objectLoader);
+        if (this.generateRowWriter) {
+            objectLoader.rowWriter = InfileRowWriter.generate(objectLoader);
+        }
+        objectLoader.columns = FlattenedColumns.of(objectLoader);
 
         return objectLoader;
     }
@@ -142,20 +270,28 @@ public class SingleInfileObjectLoaderBuilder<E> {
      */
     private void findAnnotations(SingleInfileObjectLoader<E> objectLoader) {
         // Finds all columns that are annotated with @Column
-        for (PersistenceAnnotationInspector.AnnotatedMethod<Column> annotatedMethod
-                : this.annotationInspector.annotatedMethodsWith(this.aClass, Column.class)) {
-
-            Preconditions.checkState(!annotatedMethod.getAnnotation().name().isEmpty(),
-                                     "@Column.name is not found on method [%s]",
-                                     annotatedMethod.getMethod());
-            Column column = annotatedMethod.getAnnotation();
+        for (PersistenceAnnotationInspector.AnnotatedMember<Column> annotatedMember
+                : this.annotationInspector.annotatedMembersWith(this.aClass, Column.class)) {
+
+            Preconditions.checkState(!annotatedMember.getAnnotation().name().isEmpty(),
+                                     "@Column.name is not found on member [%s]",
+                                     annotatedMember.getMember());
+            Column column = annotatedMember.getAnnotation();
+            AccessibleObject member = annotatedMember.getMember();
             if (this.secondaryTable != null) {
                 if (column.table().equals(this.tableName)) {
-                    objectLoader.mappings.put(annotatedMethod.getAnnotation().name(), annotatedMethod.getMethod());
+                    objectLoader.mappings.put(column.name(), member);
                 }
             }
             else if (column.table().isEmpty() || column.table().equals(this.tableName)) {
-                objectLoader.mappings.put(annotatedMethod.getAnnotation().name(), annotatedMethod.getMethod());
+                objectLoader.mappings.put(column.name(), member);
+            }
+            if (isFloatingPoint(memberType(member)) && column.precision() > 0 && column.scale() > 0) {
+                objectLoader.fixedPointFormats.put(member, FixedPointFormat.of(column.precision(), column.scale()));
+            }
+            Temporal temporal = this.annotationInspector.findAnnotation(member, Temporal.class);
+            if (temporal != null && temporal.value() != null && Date.class.isAssignableFrom(memberType(member))) {
+                objectLoader.temporalTypes.put(member, temporal.value());
             }
         }
 
@@ -164,38 +300,49 @@ public class SingleInfileObjectLoaderBuilder<E> {
             // Finds all one to one columns with @OneToOne
             // Finds all columns with @ManyToOne
             // If @JoinColumn is not there then there is nothing to write
-            for (PersistenceAnnotationInspector.AnnotatedMethod<JoinColumn> annotatedMethod
-                    : this.annotationInspector.annotatedMethodsWith(this.aClass, JoinColumn.class)) {
-                if (this.annotationInspector.hasAnnotation(annotatedMethod.getMethod(), ManyToOne.class)
-                    || this.annotationInspector.hasAnnotation(annotatedMethod.getMethod(), OneToOne.class)) {
-                    objectLoader.mappings.put(annotatedMethod.getAnnotation().name(), annotatedMethod.getMethod());
+            for (PersistenceAnnotationInspector.AnnotatedMember<JoinColumn> annotatedMember
+                    : this.annotationInspector.annotatedMembersWith(this.aClass, JoinColumn.class)) {
+                if (this.annotationInspector.hasAnnotation(annotatedMember.getMember(), ManyToOne.class)
+                    || this.annotationInspector.hasAnnotation(annotatedMember.getMember(), OneToOne.class)) {
+                    objectLoader.mappings.put(annotatedMember.getAnnotation().name(), annotatedMember.getMember());
                 }
             }
             // Finds all columns with @Embedded or @EmbeddedId
-            for (PersistenceAnnotationInspector.AnnotatedMethod<? extends Annotation> annotatedMethod
-                    : Iterables.concat(this.annotationInspector.annotatedMethodsWith(this.aClass, Embedded.class),
-                    this.annotationInspector.annotatedMethodsWith(this.aClass, EmbeddedId.class))) {
-                Method method = annotatedMethod.getMethod();
+            for (PersistenceAnnotationInspector.AnnotatedMember<? extends Annotation> annotatedMember
+                    : Iterables.concat(this.annotationInspector.annotatedMembersWith(this.aClass, Embedded.class),
+                    this.annotationInspector.annotatedMembersWith(this.aClass, EmbeddedId.class))) {
+                AccessibleObject member = annotatedMember.getMember();
                 SingleInfileObjectLoader<Object> embeddedObjectLoader
-                        = new SingleInfileObjectLoaderBuilder<>(method.getReturnType())
+                        = new SingleInfileObjectLoaderBuilder<Object>(memberType(member))
                         .withBuffer(this.infileDataBuffer)
                         .withDefaultTableName()
                         .withJdbcConnection(this.connection)
+                        .spoolTo(this.spool)
                         .withTableName(this.tableName)
                         .usingAnnotationInspector(this.annotationInspector)
                         .allowNull()
+                        .useRawBinary(this.useRawBinary)
+                        .generateRowWriter(this.generateRowWriter)
+                        .withDictionaries(this.dictionaries)
+                        .withValueWriters(this.valueWriters)
                         .isEmbedded()
                         .build();
-                objectLoader.embeds.put(method, embeddedObjectLoader);
+                objectLoader.embeds.put(member, embeddedObjectLoader);
             }
         }
     }
 
+    private static boolean isFloatingPoint(Class<?> type) {
+        return type == float.class || type == Float.class || type == double.class || type == Double.class;
+    }
+
     private String findPrimaryIdColumnName(SingleInfileObjectLoader<E> objectLoader) {
-        Method primaryIdGetter = this.annotationInspector.idGetter(this.aClass);
-        if (primaryIdGetter != null) {
-            Column column = this.annotationInspector.findAnnotation(primaryIdGetter, Column.class);
-            String name = this.annotationInspector.fieldFromGetter(primaryIdGetter).getName();
+        AccessibleObject primaryId = this.annotationInspector.idMember(this.aClass);
+        if (primaryId != null) {
+            Column column = this.annotationInspector.findAnnotation(primaryId, Column.class);
+            String name = primaryId instanceof Field
+                          ? ((Field) primaryId).getName()
+                          : this.annotationInspector.fieldFromGetter((Method) primaryId).getName();
             if (this.secondaryTable != null) {
                 PrimaryKeyJoinColumn[] primaryKeyJoinColumns = this.secondaryTable.pkJoinColumns();
                 Preconditions.checkState(primaryKeyJoinColumns.length == 1, "There needs to be one pkJoinColumns");
@@ -204,11 +351,15 @@ public class SingleInfileObjectLoaderBuilder<E> {
             else if (column != null && !column.name().isEmpty()) {
                 name = column.name();
             }
-            objectLoader.mappings.put(name, primaryIdGetter);
-            GeneratedValue generatedValue = this.annotationInspector.findAnnotation(primaryIdGetter, GeneratedValue.class);
+            objectLoader.mappings.put(name, primaryId);
+            GeneratedValue generatedValue = this.annotationInspector.findAnnotation(primaryId, GeneratedValue.class);
             objectLoader.autoGenerateId = this.secondaryTable == null
                                           && generatedValue != null
                                           && generatedValue.strategy() == GenerationType.AUTO;
+            if (objectLoader.autoGenerateId) {
+                objectLoader.idGetter = this.annotationInspector.getter(primaryId);
+                objectLoader.idSetter = this.annotationInspector.setter(primaryId);
+            }
             return name;
         }
         return null;
@@ -242,7 +393,8 @@ public class SingleInfileObjectLoaderBuilder<E> {
 
     /**
      * Find and populate the columns to be inserted. Columns that need to be set are {@code byte[]} fields because they need to
-     * be unhexed which is not done when calling {@link InfileDataBuffer#append(byte[])}.
+     * be unhexed which is not done when calling {@link InfileDataBuffer#append(byte[])}. There are no set clauses when the
+     * loader writes raw binary.
      * <br/>
      * {@link com.opower.persistence.jpile.loader.SingleInfileObjectLoader#getAllColumns()} can not be used since the type
      * of the column is needed to determine if it needs be unhexed.
@@ -261,13 +413,12 @@ public class SingleInfileObjectLoaderBuilder<E> {
     private static <E> void populateColumns(SingleInfileObjectLoader<E> objectLoader, ImmutableList.Builder<String> columns,
             ImmutableList.Builder<String> setClauses) {
 
-        for (Map.Entry<String, Method> entry : objectLoader.getMappings().entrySet()) {
+        for (Map.Entry<String, AccessibleObject> entry : objectLoader.getMappings().entrySet()) {
             String column = entry.getKey();
 
-            Method method = entry.getValue();
-            Class<?> type = method.getReturnType();
+            Class<?> type = memberType(entry.getValue());
 
-            if (type.isArray() && type.getComponentType() == byte.class) {
+            if (!objectLoader.useRawBinary && type.isArray() && type.getComponentType() == byte.class) {
                 setClauses.add(String.format("%1$s=unhex(@hex%1$s)", column));
                 column = "@hex" + column;
             }
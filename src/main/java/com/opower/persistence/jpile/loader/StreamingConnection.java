@@ -0,0 +1,29 @@
+package com.opower.persistence.jpile.loader;
+
+/**
+ * Keeps track of the loader that has a streaming {@code LOAD DATA} statement open on a connection. A connection runs one
+ * statement at a time, so a loader that needs the connection first ends the stream of the loader that has it, which
+ * would otherwise keep waiting for more rows.
+ * <p/>
+ * Instances of this class are not safe for use by multiple threads. Loaders that share a connection are expected to be
+ * used by the same thread.
+ *
+ * @author agent
+ * @since 1.7.12
+ */
+final class StreamingConnection {
+    private InfileObjectLoader<?> streamingLoader;
+
+    /**
+     * Ends the stream of any other loader, and records that a loader is about to use the connection.
+     *
+     * @param loader the loader that needs the connection
+     * @param streaming whether the loader keeps a stream open
+     */
+    void acquire(InfileObjectLoader<?> loader, boolean streaming) {
+        if (this.streamingLoader != null && this.streamingLoader != loader) {
+            this.streamingLoader.endStream();
+        }
+        this.streamingLoader = streaming ? loader : null;
+    }
+}
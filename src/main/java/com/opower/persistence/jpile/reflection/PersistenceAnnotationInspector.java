@@ -1,10 +1,17 @@
 package com.opower.persistence.jpile.reflection;
 
 import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
 import java.util.List;
+import javax.persistence.Access;
+import javax.persistence.AccessType;
 import javax.persistence.Id;
 import javax.persistence.SecondaryTable;
 import javax.persistence.SecondaryTables;
@@ -22,6 +29,9 @@ import static com.google.common.collect.Lists.newArrayList;
 /**
  * The default implementation which parses the annotations. This class should be used with {@link CachedProxy} to cache
  * the reflection calls. Without caching, there is a huge performance loss.
+ * <p/>
+ * Mappings are read from the getters of a class, unless it uses field access (see {@link #isFieldAccess(Class)}), in
+ * which case they are read from its fields. The methods that work with members return getters or fields accordingly.
  *
  * @author amir.raminfar
  * @since 1.0
@@ -30,6 +40,9 @@ public class PersistenceAnnotationInspector {
     private static final String SETTER_PREFIX = "set";
     private static final String GETTER_PREFIX = "get";
     private static final String IS_PREFIX = "is";
+    private static final String PERSISTENCE_PACKAGE = "javax.persistence";
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
 
     /**
      * Finds the annotation on a class or subclasses.
@@ -68,6 +81,34 @@ public class PersistenceAnnotationInspector {
         return findAnnotation(method, annotationType) != null;
     }
 
+    /**
+     * Finds the annotation on a getter or a field. Getters are searched like {@link #findAnnotation(Method, Class)}.
+     *
+     * @param member         the getter or field
+     * @param annotationType the annotation class
+     * @param <A>            the annotation type
+     * @return the annotation on the member or null if it doesn't exist
+     * @since 1.7.12
+     */
+    public <A extends Annotation> A findAnnotation(AccessibleObject member, Class<A> annotationType) {
+        if (member instanceof Method) {
+            return findAnnotation((Method) member, annotationType);
+        }
+        return member.getAnnotation(annotationType);
+    }
+
+    /**
+     * Checks to see if an annotation exists on a getter or a field.
+     *
+     * @param member         the getter or field
+     * @param annotationType the annotation to look for
+     * @return true if it exists
+     * @since 1.7.12
+     */
+    public boolean hasAnnotation(AccessibleObject member, Class<? extends Annotation> annotationType) {
+        return findAnnotation(member, annotationType) != null;
+    }
+
     /**
      * Checks to see if an annotation exists on a class.
      *
@@ -153,6 +194,81 @@ public class PersistenceAnnotationInspector {
         return methods.size() > 0 ? methods.get(0).getMethod() : null;
     }
 
+    /**
+     * Looks for {@link javax.persistence.Id &#064;Id} on all fields and returns the field.
+     *
+     * @param aClass the class to look for
+     * @return the field or null
+     * @since 1.7.12
+     */
+    public Field idField(Class<?> aClass) {
+        List<AnnotatedField<Id>> fields = annotatedFieldsWith(aClass, Id.class);
+        return fields.size() > 0 ? fields.get(0).getField() : null;
+    }
+
+    /**
+     * Returns the id getter of a class, or its id field if the class uses field access.
+     *
+     * @param aClass the class to look for
+     * @return the getter or field, null if there is no {@link javax.persistence.Id &#064;Id}
+     * @since 1.7.12
+     */
+    public AccessibleObject idMember(Class<?> aClass) {
+        return isFieldAccess(aClass) ? idField(aClass) : idGetter(aClass);
+    }
+
+    /**
+     * Checks whether the mappings of a class are read from its fields instead of its getters. This is the case when the
+     * class is annotated with {@link Access &#064;Access(AccessType.FIELD)}, or when it has no {@link Access &#064;Access}
+     * and only its fields have persistence annotations, which also covers embeddable classes whose fields are annotated.
+     * Mixing access types within a class is not supported.
+     *
+     * @param aClass the class to check
+     * @return true if the class uses field access
+     * @since 1.7.12
+     */
+    public boolean isFieldAccess(Class<?> aClass) {
+        Access access = findAnnotation(aClass, Access.class);
+        if (access != null) {
+            return access.value() == AccessType.FIELD;
+        }
+        for (Method m : ReflectionUtils.getAllDeclaredMethods(aClass)) {
+            if (hasPersistenceAnnotation(m)) {
+                return false;
+            }
+        }
+        for (Field f : allDeclaredFields(aClass)) {
+            if (hasPersistenceAnnotation(f)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasPersistenceAnnotation(AccessibleObject member) {
+        for (Annotation annotation : member.getAnnotations()) {
+            if (annotation.annotationType().getName().startsWith(PERSISTENCE_PACKAGE)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the instance fields of a class and its superclasses, the class's own fields first.
+     */
+    private static List<Field> allDeclaredFields(Class<?> aClass) {
+        List<Field> fields = newArrayList();
+        for (Class<?> c = aClass; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field f : c.getDeclaredFields()) {
+                if (!Modifier.isStatic(f.getModifiers()) && !f.isSynthetic()) {
+                    fields.add(f);
+                }
+            }
+        }
+        return fields;
+    }
+
     /**
      * Check if a class is a boolean type.
      *
@@ -278,6 +394,41 @@ public class PersistenceAnnotationInspector {
         return methods;
     }
 
+    /**
+     * Looks for all fields with an annotation and returns the annotation with the field.
+     *
+     * @param aClass     the class
+     * @param annotation the annotation class
+     * @param <A>        the annotation type
+     * @return list of annotations and fields together
+     * @since 1.7.12
+     */
+    public <A extends Annotation> List<AnnotatedField<A>> annotatedFieldsWith(Class<?> aClass, Class<A> annotation) {
+        List<AnnotatedField<A>> fields = newArrayList();
+        for (Field f : allDeclaredFields(aClass)) {
+            A a = f.getAnnotation(annotation);
+            if (a != null) {
+                fields.add(new AnnotatedField<>(f, a));
+            }
+        }
+
+        return fields;
+    }
+
+    /**
+     * Looks for all getters, or all fields if the class uses field access, with an annotation.
+     *
+     * @param aClass     the class
+     * @param annotation the annotation class
+     * @param <A>        the annotation type
+     * @return list of annotations and members together
+     * @since 1.7.12
+     */
+    public <A extends Annotation> List<? extends AnnotatedMember<A>> annotatedMembersWith(Class<?> aClass,
+                                                                                          Class<A> annotation) {
+        return isFieldAccess(aClass) ? annotatedFieldsWith(aClass, annotation) : annotatedMethodsWith(aClass, annotation);
+    }
+
     /**
      * Returns all methods that are annotated with multiple annotations.
      *
@@ -311,6 +462,171 @@ public class PersistenceAnnotationInspector {
         return newArrayList(Iterables.filter(ImmutableList.copyOf(ReflectionUtils.getAllDeclaredMethods(aClass)), predicate));
     }
 
+    /**
+     * Returns all methods, or all fields if the class uses field access, that are annotated with multiple annotations.
+     *
+     * @param aClass      the class to search
+     * @param annotations all annotations
+     * @return the list of members
+     * @since 1.7.12
+     */
+    @SafeVarargs
+    public final List<AccessibleObject> membersAnnotatedWith(Class<?> aClass,
+                                                             final Class<? extends Annotation>... annotations) {
+        return membersAnnotatedWith(aClass, new Predicate<AccessibleObject>() {
+
+            public boolean apply(AccessibleObject m) {
+                for (Class<? extends Annotation> annotation : annotations) {
+                    if (m.getAnnotation(annotation) == null) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Returns all methods, or all fields if the class uses field access, filtered by a predicate.
+     *
+     * @param aClass    the class to search
+     * @param predicate using this predicate to filter
+     * @return the list of members
+     * @since 1.7.12
+     */
+    public List<AccessibleObject> membersAnnotatedWith(Class<?> aClass, Predicate<AccessibleObject> predicate) {
+        List<AccessibleObject> members = isFieldAccess(aClass)
+                                         ? ImmutableList.<AccessibleObject>copyOf(allDeclaredFields(aClass))
+                                         : ImmutableList.<AccessibleObject>copyOf(ReflectionUtils.getAllDeclaredMethods(aClass));
+        return newArrayList(Iterables.filter(members, predicate));
+    }
+
+    /**
+     * Creates a method handle that reads a field of any object of its class, with the type {@code (Object)Object} so that
+     * it can be called with {@link MethodHandle#invokeExact(Object...)}. Handles are meant to be cached, which
+     * {@link CachedProxy} does.
+     *
+     * @param field the field, which is made accessible
+     * @return the getter handle
+     * @since 1.7.12
+     */
+    public MethodHandle fieldGetter(Field field) {
+        ReflectionUtils.makeAccessible(field);
+        try {
+            return MethodHandles.lookup().unreflectGetter(field).asType(GETTER_TYPE);
+        }
+        catch (IllegalAccessException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /**
+     * Creates a method handle that calls a getter or reads a field, with the type {@code (Object)Object}.
+     *
+     * @param member the getter or field, which is made accessible
+     * @return the getter handle
+     * @since 1.7.12
+     */
+    public MethodHandle getter(AccessibleObject member) {
+        if (member instanceof Field) {
+            return fieldGetter((Field) member);
+        }
+        ReflectionUtils.makeAccessible((Method) member);
+        try {
+            return MethodHandles.lookup().unreflect((Method) member).asType(GETTER_TYPE);
+        }
+        catch (IllegalAccessException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /**
+     * Creates a method handle that writes the value of a getter or field, with the type {@code (Object,Object)void}. The
+     * value of a getter is written with its setter, or with its field if there is no setter, like
+     * {@link #setIdValue(PersistenceAnnotationInspector, Object, Object)} does.
+     *
+     * @param member the getter or field
+     * @return the setter handle, or null if a getter has neither a setter nor a field
+     * @since 1.7.12
+     */
+    public MethodHandle setter(AccessibleObject member) {
+        if (member instanceof Field) {
+            return fieldSetter((Field) member);
+        }
+        Method setter = setterFromGetter((Method) member);
+        if (setter == null) {
+            Field field = fieldFromGetter((Method) member);
+            return field == null ? null : fieldSetter(field);
+        }
+        ReflectionUtils.makeAccessible(setter);
+        try {
+            return MethodHandles.lookup().unreflect(setter).asType(SETTER_TYPE);
+        }
+        catch (IllegalAccessException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /**
+     * Creates a method handle that writes a field of any object of its class, with the type {@code (Object,Object)void}.
+     *
+     * @param field the field, which is made accessible
+     * @return the setter handle
+     * @since 1.7.12
+     */
+    public MethodHandle fieldSetter(Field field) {
+        ReflectionUtils.makeAccessible(field);
+        try {
+            return MethodHandles.lookup().unreflectSetter(field).asType(SETTER_TYPE);
+        }
+        catch (IllegalAccessException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /**
+     * Returns the type of a getter or field.
+     *
+     * @param member the getter or field
+     * @return the return type of the getter or the type of the field
+     * @since 1.7.12
+     */
+    public static Class<?> memberType(AccessibleObject member) {
+        return member instanceof Method ? ((Method) member).getReturnType() : ((Field) member).getType();
+    }
+
+    /**
+     * Returns the generic type of a getter or field, for example {@code List<Contact>}.
+     *
+     * @param member the getter or field
+     * @return the generic return type of the getter or the generic type of the field
+     * @since 1.7.12
+     */
+    public static Type genericMemberType(AccessibleObject member) {
+        return member instanceof Method ? ((Method) member).getGenericReturnType() : ((Field) member).getGenericType();
+    }
+
+    /**
+     * Reads a value by calling a getter, or by reading a field through a handle from {@link #fieldGetter(Field)}.
+     *
+     * @param utils  an instance of this class or sub-class
+     * @param member the getter or field
+     * @param o      the object
+     * @return the value
+     * @since 1.7.12
+     */
+    public static Object getValue(PersistenceAnnotationInspector utils, AccessibleObject member, Object o) {
+        try {
+            if (member instanceof Method) {
+                return ((Method) member).invoke(o);
+            }
+            return (Object) utils.fieldGetter((Field) member).invokeExact(o);
+        }
+        catch (Throwable e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
     /**
      * A helper method for getting an id from a persist object with annotated @Id.
      * <p/>
@@ -324,14 +640,9 @@ public class PersistenceAnnotationInspector {
     public static Object getIdValue(PersistenceAnnotationInspector utils, Object o) {
         Preconditions.checkNotNull(o, "Cannot get id on a null object");
         if (utils.hasTableAnnotation(o.getClass())) {
-            Method getter = utils.idGetter(o.getClass());
-            if (getter != null) {
-                try {
-                    return getter.invoke(o);
-                }
-                catch (InvocationTargetException | IllegalAccessException e) {
-                    throw Throwables.propagate(e);
-                }
+            AccessibleObject id = utils.idMember(o.getClass());
+            if (id != null) {
+                return getValue(utils, id, o);
             }
         }
 
@@ -340,7 +651,8 @@ public class PersistenceAnnotationInspector {
 
     /**
      * Sets the value by find a getter with @Id and the setter that goes with that field. If a setter doesn't exist
-     * then it falls back looking for the field.
+     * then it falls back looking for the field. Classes with field access have the @Id field set directly. Fields are
+     * written through a handle from {@link #fieldSetter(Field)}.
      *
      * The reason is static and takes an instance of self for caching reasons. @Cacheable does not work when calling
      * <code>this.someCachedMethod()</code> so I am passing the object instead which caches everything.
@@ -351,9 +663,16 @@ public class PersistenceAnnotationInspector {
      */
     public static void setIdValue(PersistenceAnnotationInspector utils, Object entity, Object id) {
         Preconditions.checkNotNull(entity, "Cannot update id on a null object");
-        Method getter = utils.idGetter(entity.getClass());
-        Method setter = utils.setterFromGetter(getter);
-        Field field = utils.fieldFromGetter(getter);
+        Method setter = null;
+        Field field;
+        if (utils.isFieldAccess(entity.getClass())) {
+            field = utils.idField(entity.getClass());
+        }
+        else {
+            Method getter = utils.idGetter(entity.getClass());
+            setter = utils.setterFromGetter(getter);
+            field = utils.fieldFromGetter(getter);
+        }
 
         try {
             if (setter != null) {
@@ -361,35 +680,72 @@ public class PersistenceAnnotationInspector {
                 setter.invoke(entity, id);
             }
             else if (field != null) {
-                ReflectionUtils.makeAccessible(field);
-                field.set(entity, id);
+                utils.fieldSetter(field).invokeExact(entity, id);
             }
         }
-        catch (InvocationTargetException | IllegalAccessException e) {
+        catch (Throwable e) {
             throw Throwables.propagate(e);
         }
     }
 
+    /**
+     * For paring annotations and getters or fields.
+     *
+     * @param <E> the annotation type
+     * @since 1.7.12
+     */
+    public static class AnnotatedMember<E extends Annotation> {
+        private final AccessibleObject member;
+        private final E annotation;
+
+        public AnnotatedMember(AccessibleObject member, E annotation) {
+            this.member = member;
+            this.annotation = annotation;
+        }
+
+        public AccessibleObject getMember() {
+            return this.member;
+        }
+
+        public E getAnnotation() {
+            return this.annotation;
+        }
+    }
+
     /**
      * For paring annotations and methods.
      *
      * @param <E> the annotation type
      */
-    public static class AnnotatedMethod<E extends Annotation> {
+    public static class AnnotatedMethod<E extends Annotation> extends AnnotatedMember<E> {
         private final Method method;
-        private final E annotation;
 
         public AnnotatedMethod(Method method, E annotation) {
+            super(method, annotation);
             this.method = method;
-            this.annotation = annotation;
         }
 
         public Method getMethod() {
             return this.method;
         }
+    }
 
-        public E getAnnotation() {
-            return this.annotation;
+    /**
+     * For paring annotations and fields.
+     *
+     * @param <E> the annotation type
+     * @since 1.7.12
+     */
+    public static class AnnotatedField<E extends Annotation> extends AnnotatedMember<E> {
+        private final Field field;
+
+        public AnnotatedField(Field field, E annotation) {
+            super(field, annotation);
+            this.field = field;
+        }
+
+        public Field getField() {
+            return this.field;
         }
     }
 }
@@ -10,11 +10,13 @@ import org.junit.BeforeClass;
 import org.junit.runner.RunWith;
 import org.springframework.core.io.InputStreamResource;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
 import org.springframework.jdbc.datasource.SingleConnectionDataSource;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.test.jdbc.JdbcTestUtils;
 
+import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.util.List;
@@ -29,7 +31,7 @@ import java.util.List;
 public abstract class AbstractIntTestForJPile {
     private static final String JDBC_URL = "jdbc:mysql://localhost/jpile?useUnicode=true&characterEncoding=utf-8";
     private static final List<String> TABLES =
-            ImmutableList.of("customer", "product", "contact", "contact_phone", "binary_data", "supplier");
+            ImmutableList.of("customer", "product", "contact", "contact_phone", "binary_data", "supplier", "reading");
     private static final String DB_USER = "root";
     private static final String DB_PASSWORD = "";
 
@@ -64,6 +66,15 @@ public abstract class AbstractIntTestForJPile {
         this.jdbcTemplate = new JdbcTemplate(new SingleConnectionDataSource(this.connection, true));
     }
 
+    /**
+     * Creates a data source that opens a new connection to the test database each time.
+     *
+     * @return the data source
+     */
+    protected static DataSource newDataSource() {
+        return new DriverManagerDataSource(JDBC_URL, DB_USER, DB_PASSWORD);
+    }
+
     @After
     public void tearDown() throws Exception {
         this.hierarchicalInfileObjectLoader.close();
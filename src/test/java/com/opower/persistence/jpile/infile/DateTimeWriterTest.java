@@ -0,0 +1,84 @@
+package com.opower.persistence.jpile.infile;
+
+import com.google.common.base.Charsets;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.junit.Test;
+
+import javax.persistence.TemporalType;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Tests for {@link DateTimeWriter}.
+ *
+ * @author agent
+ */
+public class DateTimeWriterTest {
+    private static final DateTimeZone NEW_YORK = DateTimeZone.forID("America/New_York");
+    private static final DateTimeFormatter TIMESTAMP_FORMATTER =
+            DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss").withZone(DateTimeZone.UTC);
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(100);
+
+    @Test
+    public void testOffsetAcrossDaylightSavingTransitions() {
+        DateTimeWriter writer = new DateTimeWriter(NEW_YORK);
+        long transition = NEW_YORK.nextTransition(new DateTime(2013, 1, 1, 0, 0, NEW_YORK).getMillis());
+        for (long instant : new long[] {transition - 1, transition, transition + 1, transition - 1, transition - 60000}) {
+            assertEquals(instant + NEW_YORK.getOffset(instant), writer.toLocalMillis(instant));
+        }
+        long fallBack = NEW_YORK.nextTransition(transition);
+        for (long instant : new long[] {fallBack, fallBack - 1, transition, fallBack + 1}) {
+            assertEquals(instant + NEW_YORK.getOffset(instant), writer.toLocalMillis(instant));
+        }
+    }
+
+    @Test
+    public void testFixedOffsetZone() {
+        DateTimeWriter writer = new DateTimeWriter(DateTimeZone.forOffsetHours(2));
+        assertEquals(Long.MIN_VALUE / 2 + 7200000, writer.toLocalMillis(Long.MIN_VALUE / 2));
+        assertEquals(7200000, writer.toLocalMillis(0));
+    }
+
+    @Test
+    public void testWriteMatchesFormatter() {
+        Random random = new Random(7);
+        long min = new DateTime(0, 1, 1, 0, 0, DateTimeZone.UTC).getMillis();
+        long max = new DateTime(9999, 12, 31, 23, 59, 59, 999, DateTimeZone.UTC).getMillis();
+        for (long millis : new long[] {min, max, 0, -1, 951782400000L, 951868800000L}) {
+            assertEquals(TIMESTAMP_FORMATTER.print(millis), write(millis, TemporalType.TIMESTAMP));
+        }
+        for (int i = 0; i < 100000; i++) {
+            long millis = min + (long) (random.nextDouble() * (max - min));
+            assertEquals(TIMESTAMP_FORMATTER.print(millis), write(millis, TemporalType.TIMESTAMP));
+        }
+    }
+
+    @Test
+    public void testWriteDateAndTime() {
+        long millis = new DateTime(2000, 2, 29, 23, 5, 9, DateTimeZone.UTC).getMillis();
+        assertEquals("2000-02-29", write(millis, TemporalType.DATE));
+        assertEquals("23:05:09", write(millis, TemporalType.TIME));
+    }
+
+    @Test
+    public void testUnsupportedYears() {
+        assertFalse(DateTimeWriter.write(this.buffer, new DateTime(10000, 1, 1, 0, 0, DateTimeZone.UTC).getMillis(),
+                                         TemporalType.DATE));
+        assertFalse(DateTimeWriter.write(this.buffer, new DateTime(-1, 12, 31, 0, 0, DateTimeZone.UTC).getMillis(),
+                                         TemporalType.TIMESTAMP));
+        assertEquals(0, this.buffer.position());
+    }
+
+    private String write(long millis, TemporalType temporalType) {
+        this.buffer.clear();
+        DateTimeWriter.write(this.buffer, millis, temporalType);
+        return new String(this.buffer.array(), 0, this.buffer.position(), Charsets.US_ASCII);
+    }
+}
@@ -0,0 +1,153 @@
+package com.opower.persistence.jpile.infile;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Compares {@link InfileDataBuffer#append(String)} with the regex based escaping it replaced, and
+ * {@link InfileDataBuffer#append(byte[])} with escaping one boxed byte at a time. This benchmark is disabled by
+ * default because it takes a while to run. Run it with {@code mvn test -Dperformance -Dtest=InfileDataBufferEscapingBenchmark}.
+ *
+ * @author agent
+ */
+public class InfileDataBufferEscapingBenchmark {
+    private static final Pattern ESCAPE_PATTERN = Pattern.compile("[\b\n\r\t\f\0\u001A\\\\]");
+    private static final String[] VALUES = {
+            "Title of an awesome product",
+            "This is a short description about this product",
+            "C:\\windows\\bluescreen.png",
+            "D\ba\nv\ri\td\0D\\D\u001A",
+            "\u304C\u3126 \u304C\u304C\u304C\u304C\u3126",
+            Strings.repeat("A much longer text column that is mostly plain ascii. ", 20)
+    };
+    private static final byte[] BINARY_VALUE = new byte[4096];
+    private static final int WARM_UP_ITERATIONS = 50000;
+    private static final int ITERATIONS = 500000;
+
+    private final ByteBuffer regexRow = ByteBuffer.allocate(InfileDataBuffer.DEFAULT_ROW_BUFFER_SIZE);
+    private final CharsetEncoder encoder = Charsets.UTF_8.newEncoder();
+    private final InfileDataBuffer infileDataBuffer = new InfileDataBuffer();
+
+    @Before
+    public void checkEnabled() {
+        assumeTrue(Boolean.getBoolean("performance"));
+    }
+
+    static {
+        new Random(1).nextBytes(BINARY_VALUE);
+    }
+
+    @Test
+    public void testAppendString() throws IOException {
+        for (String value : VALUES) {
+            assertArrayEquals(value, appendWithRegex(value), appendWithBuffer(value));
+        }
+
+        runRegex(WARM_UP_ITERATIONS);
+        runBuffer(WARM_UP_ITERATIONS);
+
+        long regexElapsed = runRegex(ITERATIONS);
+        long bufferElapsed = runBuffer(ITERATIONS);
+
+        System.out.println(Strings.repeat("=", 100));
+        System.out.printf("Regex escaping took %dms for %d values%n",
+                TimeUnit.NANOSECONDS.toMillis(regexElapsed), ITERATIONS * VALUES.length);
+        System.out.printf("Single pass escaping took %dms for %d values%n",
+                TimeUnit.NANOSECONDS.toMillis(bufferElapsed), ITERATIONS * VALUES.length);
+        System.out.printf("Speed up was %.2fx%n", (double) regexElapsed / bufferElapsed);
+        System.out.println(Strings.repeat("=", 100));
+        System.out.println();
+    }
+
+    @Test
+    public void testAppendBytes() {
+        runBoxedBytes(WARM_UP_ITERATIONS / 10);
+        runBufferBytes(WARM_UP_ITERATIONS / 10);
+
+        long boxedElapsed = runBoxedBytes(ITERATIONS / 10);
+        long bufferElapsed = runBufferBytes(ITERATIONS / 10);
+
+        System.out.println(Strings.repeat("=", 100));
+        System.out.printf("Escaping boxed bytes took %dms for %d values%n",
+                TimeUnit.NANOSECONDS.toMillis(boxedElapsed), ITERATIONS / 10);
+        System.out.printf("Escaping byte runs took %dms for %d values%n",
+                TimeUnit.NANOSECONDS.toMillis(bufferElapsed), ITERATIONS / 10);
+        System.out.printf("Speed up was %.2fx%n", (double) boxedElapsed / bufferElapsed);
+        System.out.println(Strings.repeat("=", 100));
+        System.out.println();
+    }
+
+    private long runBoxedBytes(int iterations) {
+        ByteBuffer row = ByteBuffer.allocate(BINARY_VALUE.length * 2);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            row.clear();
+            for (byte b : BINARY_VALUE) {
+                if (InfileDataBuffer.BYTES_NEEDING_ESCAPING.contains(b)) {
+                    row.put((byte) InfileDataBuffer.MYSQL_ESCAPE_CHAR);
+                }
+                row.put(b);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private long runBufferBytes(int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            this.infileDataBuffer.newRow().append(BINARY_VALUE);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private long runRegex(int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            for (String value : VALUES) {
+                this.regexRow.clear();
+                this.encoder.encode(CharBuffer.wrap(ESCAPE_PATTERN.matcher(value).replaceAll("\\\\$0")), this.regexRow, false);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private long runBuffer(int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            for (String value : VALUES) {
+                this.infileDataBuffer.newRow().append(value);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private byte[] appendWithRegex(String value) {
+        this.regexRow.clear();
+        this.encoder.encode(CharBuffer.wrap(ESCAPE_PATTERN.matcher(value).replaceAll("\\\\$0")), this.regexRow, false);
+        this.regexRow.flip();
+        byte[] bytes = new byte[this.regexRow.remaining()];
+        this.regexRow.get(bytes);
+        return bytes;
+    }
+
+    private byte[] appendWithBuffer(String value) throws IOException {
+        this.infileDataBuffer.reset();
+        this.infileDataBuffer.newRow().append(value);
+        this.infileDataBuffer.addRowToInfile();
+        return ByteStreams.toByteArray(this.infileDataBuffer.asInputStream());
+    }
+}
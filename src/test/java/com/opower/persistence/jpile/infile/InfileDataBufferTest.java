@@ -1,8 +1,13 @@
 package com.opower.persistence.jpile.infile;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.CharStreams;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -11,11 +16,29 @@ import javax.persistence.Entity;
 import javax.persistence.Table;
 import javax.persistence.Temporal;
 import javax.persistence.TemporalType;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.text.DecimalFormat;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.UUID;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * Test cases for the InfileDataBuffer
@@ -74,6 +97,33 @@ public class InfileDataBufferTest {
         addRowAndAssertContents(expected);
     }
 
+    /**
+     * Verify that Strings longer than the internal char buffer are encoded completely, including a surrogate pair that
+     * straddles the chunk boundary and escaped characters on both sides of it.
+     */
+    @Test
+    public void testAppendLongStringWithSurrogatePair() {
+        String input = Strings.repeat("a", 1023) + "\uD83D\uDE00\\" + Strings.repeat("b\t", 1000);
+        String expected = Strings.repeat("a", 1023) + "\uD83D\uDE00\\\\" + Strings.repeat("b\\\t", 1000);
+
+        this.infileDataBuffer.append(input);
+        addRowAndAssertContents(expected);
+    }
+
+    @Test
+    public void testAppendMultipleStrings() {
+        this.infileDataBuffer.append("\\a").append("b\n").append("");
+        addRowAndAssertContents("\\\\a\tb\\\n\t");
+    }
+
+    @Test
+    public void testAppendEncoded() {
+        byte[] encoded = this.infileDataBuffer.encodeValue("D\ba\nv\\\u00e9");
+        this.infileDataBuffer.appendEncoded(encoded).append("x");
+        this.infileDataBuffer.appendEncoded(encoded);
+        addRowAndAssertContents("D\\\ba\\\nv\\\\\u00e9\tx\tD\\\ba\\\nv\\\\\u00e9");
+    }
+
     @Test
     public void testAppendByte() {
         this.infileDataBuffer.append((byte) 65);
@@ -100,6 +150,70 @@ public class InfileDataBufferTest {
         addRowAndAssertContents("C:\\\\");
     }
 
+    @Test
+    public void testAppendAllByteValues() throws IOException {
+        byte[] bytes = new byte[512];
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+            if (InfileDataBuffer.BYTES_NEEDING_ESCAPING.contains(bytes[i])) {
+                expected.write(InfileDataBuffer.MYSQL_ESCAPE_CHAR);
+            }
+            expected.write(bytes[i]);
+        }
+        this.infileDataBuffer.append(bytes);
+        this.infileDataBuffer.addRowToInfile();
+        this.infileDataBuffer.newRow();
+        for (byte b : bytes) {
+            this.infileDataBuffer.append(b);
+        }
+        this.infileDataBuffer.addRowToInfile();
+
+        byte[] actual = ByteStreams.toByteArray(this.infileDataBuffer.asInputStream());
+        byte[] row = expected.toByteArray();
+        assertArrayEquals(row, Arrays.copyOfRange(actual, 0, row.length));
+        assertEquals('\n', actual[row.length]);
+        // The second row has a tab between every value
+        assertEquals(row.length * 2 + 1 + bytes.length - 1, actual.length);
+    }
+
+    @Test
+    public void testAppendLong() {
+        this.infileDataBuffer.appendLong(0L).appendLong(1234567890123L).appendLong(-42L)
+                             .appendLong(Long.MAX_VALUE).appendLong(Long.MIN_VALUE);
+        addRowAndAssertContents("0\t1234567890123\t-42\t" + Long.MAX_VALUE + "\t" + Long.MIN_VALUE);
+    }
+
+    @Test
+    public void testAppendIntAndShort() {
+        this.infileDataBuffer.appendInt(Integer.MIN_VALUE).appendShort((short) -7).appendInt(10);
+        addRowAndAssertContents(Integer.MIN_VALUE + "\t-7\t10");
+    }
+
+    @Test
+    public void testAppendDouble() {
+        this.infileDataBuffer.appendDouble(2.0).appendDouble(-1.25).appendDouble(1e20).appendDouble(0.1);
+        addRowAndAssertContents("2\t-1.25\t1.0E20\t0.1");
+    }
+
+    @Test
+    public void testAppendBoolean() {
+        this.infileDataBuffer.append(Boolean.TRUE).append(Boolean.FALSE).append((Boolean) null);
+        addRowAndAssertContents("1\t0\t\\N");
+    }
+
+    /**
+     * Verify that numbers are still encoded with the charset when it does not use ASCII bytes for digits.
+     */
+    @Test
+    public void testAppendLongWithNonAsciiCharset() throws IOException {
+        this.infileDataBuffer = new InfileDataBuffer(Charsets.UTF_16BE);
+        this.infileDataBuffer.appendLong(-12L);
+        this.infileDataBuffer.addRowToInfile();
+        assertEquals("-12", CharStreams.toString(new InputStreamReader(this.infileDataBuffer.asInputStream(),
+                                                                       Charsets.UTF_16BE)));
+    }
+
     /**
      * Attempt to insert a row of empty data in between two rows of good data. We should not
      * have a row in the infile buffer for the empty row in the middle.
@@ -156,6 +270,88 @@ public class InfileDataBufferTest {
         addRowAndAssertContents("\\N");
     }
 
+    @Test
+    public void testAppendDateWithTemporalType() {
+        this.infileDataBuffer.append(TEST_DATE, TemporalType.DATE)
+                .append(TEST_DATE, TemporalType.TIME)
+                .append(TEST_DATE, TemporalType.TIMESTAMP)
+                .append((Date) null, TemporalType.TIMESTAMP);
+        addRowAndAssertContents("2000-01-10\t08:00:01\t2000-01-10 08:00:01\t\\N");
+    }
+
+    @Test
+    public void testAppendJavaTime() {
+        this.infileDataBuffer.append(LocalDate.of(2000, 1, 10))
+                .append(LocalDateTime.of(2000, 1, 10, 8, 0, 1, 500000000))
+                .append(TEST_DATE.toInstant())
+                .append((LocalDate) null);
+        addRowAndAssertContents("2000-01-10\t2000-01-10 08:00:01\t2000-01-10 08:00:01\t\\N");
+    }
+
+    @Test
+    public void testAppendInstantUsesCurrentDefaultZone() {
+        DateTimeZone defaultZone = DateTimeZone.getDefault();
+        long instant = new DateTime(2000, 1, 10, 8, 0, 1, DateTimeZone.UTC).getMillis();
+        try {
+            DateTimeZone.setDefault(DateTimeZone.UTC);
+            this.infileDataBuffer.appendInstant(instant, TemporalType.TIMESTAMP);
+            DateTimeZone.setDefault(DateTimeZone.forOffsetHours(2));
+            this.infileDataBuffer.appendInstant(instant, TemporalType.TIMESTAMP);
+        }
+        finally {
+            DateTimeZone.setDefault(defaultZone);
+        }
+        addRowAndAssertContents("2000-01-10 08:00:01\t2000-01-10 10:00:01");
+    }
+
+    @Test
+    public void testAppendDateFields() {
+        this.infileDataBuffer.appendDate(2000, 1, 10)
+                .appendDateTime(2000, 1, 10, 8, 0, 1)
+                .appendInstant(TEST_DATE.getTime(), TemporalType.TIMESTAMP)
+                .appendDateTime(10000, 1, 2, 3, 4, 5);
+        addRowAndAssertContents("2000-01-10\t2000-01-10 08:00:01\t2000-01-10 08:00:01\t+10000-01-02 03:04:05");
+    }
+
+    @Test
+    public void testAppendUuid() {
+        UUID uuid = UUID.fromString("0123e456-789a-bcde-f012-3456789abcde");
+        this.infileDataBuffer.append(uuid).append(new UUID(0, -1)).append((UUID) null);
+        addRowAndAssertContents(uuid + "\t00000000-0000-0000-ffff-ffffffffffff\t\\N");
+    }
+
+    @Test
+    public void testAppendUuidWithNonAsciiCharset() throws IOException {
+        UUID uuid = UUID.randomUUID();
+        this.infileDataBuffer = new InfileDataBuffer(Charsets.UTF_16BE);
+        this.infileDataBuffer.append(uuid);
+        this.infileDataBuffer.addRowToInfile();
+        assertEquals(uuid.toString(), CharStreams.toString(new InputStreamReader(this.infileDataBuffer.asInputStream(),
+                                                                                 Charsets.UTF_16BE)));
+    }
+
+    @Test
+    public void testAppendBinaryUuid() throws IOException {
+        UUID uuid = new UUID(0x0102030405060708L, 0x090A0B0C0D0E0F10L);
+        this.infileDataBuffer.appendBinary(uuid);
+        this.infileDataBuffer.addRowToInfile();
+        byte[] expected = new byte[20];
+        for (int i = 0, b = 1; i < expected.length; i++, b++) {
+            if (b == '\b' || b == '\t' || b == '\n' || b == '\r') {
+                expected[i++] = '\\';
+            }
+            expected[i] = (byte) b;
+        }
+        assertArrayEquals(expected, ByteStreams.toByteArray(this.infileDataBuffer.asInputStream()));
+    }
+
+    @Test
+    public void testAppendDateOutsideOfSupportedYears() {
+        this.infileDataBuffer.append(new DateTime(10000, 1, 2, 3, 4, 5).toDate(), TemporalType.TIMESTAMP)
+                .append(LocalDate.of(10000, 1, 2));
+        addRowAndAssertContents("10000-01-02 03:04:05\t+10000-01-02");
+    }
+
     @Test
     public void testFloatWithPrecisionAndScale1() {
         this.infileDataBuffer.append(84009.469f, 12, 3);
@@ -174,10 +370,281 @@ public class InfileDataBufferTest {
         addRowAndAssertContents("16725.617");
     }
 
+    @Test
+    public void testDoubleWithFixedPointFormat() {
+        FixedPointFormat format = FixedPointFormat.of(12, 2);
+        this.infileDataBuffer.append(0.125, format).append(0.375, format).append(-0.5, format).append(2.50, format)
+                             .append(3.0, format).append(1e20, format).append(-0.001, format);
+        addRowAndAssertContents("0.12\t0.38\t-0.5\t2.5\t3\t100000000000000000000\t0");
+    }
+
+    /**
+     * Verify that the fixed-point writer rounds the same way as the {@link DecimalFormat} it replaced. DecimalFormat leaves
+     * out the leading zero of values below one and keeps the sign of negative values that round to zero, so those are
+     * normalized before comparing.
+     */
+    @Test
+    public void testDoubleWithFixedPointFormatMatchesDecimalFormat() {
+        Random random = new Random(42);
+        for (int scale = 1; scale <= 6; scale++) {
+            FixedPointFormat format = FixedPointFormat.of(20, scale);
+            DecimalFormat decimalFormat = new DecimalFormat("#." + Strings.repeat("#", scale),
+                                                            DecimalFormatSymbols.getInstance(Locale.US));
+            decimalFormat.setGroupingUsed(false);
+            for (int i = 0; i < 10000; i++) {
+                double value = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(12));
+                if (i % 2 == 0) {
+                    // Land on or near ties as well
+                    value = Math.round(value * Math.pow(10, scale + 1)) / Math.pow(10, scale + 1);
+                }
+                String expected = decimalFormat.format(value).replaceFirst("^(-?)\\.", "$10.").replaceFirst("^-0$", "0");
+
+                this.infileDataBuffer.reset();
+                this.infileDataBuffer.append(value, format);
+                addRowAndAssertContents(expected);
+            }
+        }
+    }
+
+    @Test
+    public void testAppendBigDecimal() {
+        this.infileDataBuffer.append(new BigDecimal("1.23")).append(new BigDecimal("1.50")).append(new BigDecimal("1E+3"))
+                             .append(new BigDecimal("-0.05")).append(new BigDecimal("12345678901234567890.123"))
+                             .append((BigDecimal) null);
+        addRowAndAssertContents("1.23\t1.50\t1000\t-0.05\t12345678901234567890.123\t\\N");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFixedPointFormatScaleLargerThanPrecision() {
+        FixedPointFormat.of(3, 3);
+    }
+
+    @Test
+    public void testWriteRowsInPlace() throws IOException {
+        this.infileDataBuffer.setWriteRowsInPlace(true);
+        this.infileDataBuffer.newRow().append("a\tb").appendLong(1);
+        assertTrue(this.infileDataBuffer.addRowToInfile());
+        // Empty rows are skipped just like when copying rows
+        this.infileDataBuffer.newRow();
+        assertTrue(this.infileDataBuffer.addRowToInfile());
+        this.infileDataBuffer.newRow().append(TEST_DATE, TemporalType.DATE).appendNull();
+        assertTrue(this.infileDataBuffer.addRowToInfile());
+        assertEquals("a\\\tb\t1\n2000-01-10\t\\N", CharStreams.toString(
+                new InputStreamReader(this.infileDataBuffer.asInputStream(), Charsets.UTF_8)));
+    }
+
+    @Test
+    public void testRollbackRowWrittenInPlace() throws IOException {
+        InfileDataBuffer buffer = new InfileDataBuffer(Charsets.UTF_8, 16, 16);
+        buffer.setWriteRowsInPlace(true);
+        buffer.newRow().append("0123456789");
+        buffer.addRowToInfile();
+        try {
+            buffer.newRow().append("abc").append("defgh");
+            fail("The second row should not fit");
+        }
+        catch (BufferOverflowException e) {
+            buffer.rollbackRow();
+        }
+        assertEquals("0123456789", CharStreams.toString(new InputStreamReader(buffer.asInputStream(), Charsets.UTF_8)));
+
+        buffer.clear();
+        buffer.newRow().append("abc").append("defgh");
+        buffer.addRowToInfile();
+        assertEquals("abc\tdefgh", CharStreams.toString(new InputStreamReader(buffer.asInputStream(), Charsets.UTF_8)));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testCannotStopWritingInPlaceDuringRow() {
+        this.infileDataBuffer.setWriteRowsInPlace(true);
+        this.infileDataBuffer.newRow().append("a");
+        this.infileDataBuffer.setWriteRowsInPlace(false);
+    }
+
+    @Test
+    public void testDirectBuffers() throws IOException {
+        InfileDataBuffer buffer = new InfileDataBuffer(Charsets.UTF_8, 100, 50, BufferAllocator.DIRECT);
+        buffer.newRow().append("a\tb").append("\u304C").appendLong(-12);
+        buffer.addRowToInfile();
+        buffer.newRow().append(new byte[] {1, 0, 2});
+        buffer.addRowToInfile();
+        assertArrayEquals("a\\\tb\t\u304C\t-12\n\u0001\\\u0000\u0002".getBytes(Charsets.UTF_8),
+                          ByteStreams.toByteArray(buffer.asInputStream()));
+        buffer.close();
+    }
+
+    @Test
+    public void testPooledBuffersAreReused() throws IOException {
+        PooledBufferAllocator allocator = new PooledBufferAllocator(BufferAllocator.DIRECT, 2);
+        InfileDataBuffer first = new InfileDataBuffer(Charsets.UTF_8, 100, 50, allocator);
+        first.newRow().append("first");
+        first.addRowToInfile();
+        first.close();
+        first.close();
+        assertEquals(2, allocator.getPooledBufferCount());
+
+        InfileDataBuffer second = new InfileDataBuffer(Charsets.UTF_8, 100, 50, allocator);
+        assertEquals(0, allocator.getPooledBufferCount());
+        second.newRow().append("second");
+        second.addRowToInfile();
+        assertEquals("second", CharStreams.toString(new InputStreamReader(second.asInputStream(), Charsets.UTF_8)));
+    }
+
+    @Test
+    public void testAllocateOnDemand() throws IOException {
+        BufferPool pool = new BufferPool(BufferAllocator.HEAP, 1000);
+        InfileDataBuffer buffer = new InfileDataBuffer(Charsets.UTF_8, 100, 50, pool, 100, true);
+        // Only the row buffer is held while there are no rows, and the infile buffer was never taken from the pool
+        assertEquals(50, pool.getUsedBytes());
+        assertEquals(0, pool.getPooledBytes());
+        assertTrue(buffer.isEmpty());
+
+        buffer.newRow().append("first");
+        buffer.addRowToInfile();
+        assertEquals(150, pool.getUsedBytes());
+        assertEquals("first", CharStreams.toString(new InputStreamReader(buffer.asInputStream(), Charsets.UTF_8)));
+
+        buffer.clear();
+        assertEquals(50, pool.getUsedBytes());
+        assertEquals(100, pool.getPooledBytes());
+
+        // Rows written in place also allocate the infile buffer when the row is started
+        buffer.setWriteRowsInPlace(true);
+        buffer.newRow().append("second");
+        buffer.addRowToInfile();
+        assertEquals(0, pool.getPooledBytes());
+        assertEquals("second", CharStreams.toString(new InputStreamReader(buffer.asInputStream(), Charsets.UTF_8)));
+        buffer.close();
+        assertEquals(0, pool.getUsedBytes());
+        assertEquals(150, pool.getPooledBytes());
+    }
+
+    @Test
+    public void testBufferPoolBudget() {
+        BufferPool pool = new BufferPool(BufferAllocator.HEAP, 250);
+        ByteBuffer first = pool.allocate(100);
+        ByteBuffer second = pool.allocate(100);
+        assertFalse(pool.isExceeded());
+        ByteBuffer third = pool.allocate(100);
+        assertTrue(pool.isExceeded());
+        assertEquals(300, pool.getUsedBytes());
+
+        pool.release(first);
+        assertFalse(pool.isExceeded());
+        // Pooling the buffer would keep more memory than the budget
+        assertEquals(0, pool.getPooledBytes());
+        pool.release(second);
+        assertEquals(100, pool.getPooledBytes());
+        pool.release(third);
+        assertEquals(200, pool.getPooledBytes());
+        assertEquals(0, pool.getUsedBytes());
+
+        pool.allocate(100);
+        assertEquals(100, pool.getPooledBytes());
+        assertEquals(100, pool.getUsedBytes());
+    }
+
+    @Test
+    public void testGrowth() throws IOException {
+        BufferPool pool = new BufferPool(BufferAllocator.HEAP, 1000);
+        InfileDataBuffer buffer = new InfileDataBuffer(Charsets.UTF_8, 100, 50, pool);
+        buffer.setGrowth(10, true);
+        assertEquals(10, buffer.getCapacity());
+        assertEquals(60, pool.getUsedBytes());
+
+        for (int i = 0; i < 5; i++) {
+            buffer.newRow().append("row" + i);
+            assertTrue(buffer.addRowToInfile());
+        }
+        // 24 bytes of rows needed two doublings
+        assertEquals(40, buffer.getCapacity());
+        assertEquals(90, pool.getUsedBytes());
+        assertEquals("row0\nrow1\nrow2\nrow3\nrow4",
+                     CharStreams.toString(new InputStreamReader(buffer.asInputStream(), Charsets.UTF_8)));
+
+        buffer.clear();
+        assertEquals(10, buffer.getCapacity());
+        assertEquals(60, pool.getUsedBytes());
+    }
+
+    @Test
+    public void testCreateAtInitialCapacity() throws IOException {
+        final List<Integer> allocations = new ArrayList<>();
+        BufferAllocator allocator = new BufferAllocator() {
+            @Override
+            public ByteBuffer allocate(int capacity) {
+                allocations.add(capacity);
+                return ByteBuffer.allocate(capacity);
+            }
+
+            @Override
+            public void release(ByteBuffer buffer) {
+            }
+        };
+        InfileDataBuffer buffer = new InfileDataBuffer(Charsets.UTF_8, 100, 50, allocator, 10, false);
+        buffer.setGrowth(10, true);
+        InfileDataBuffer sibling = buffer.createSibling();
+        assertEquals(ImmutableList.of(50, 10, 50, 10), allocations);
+        assertEquals(10, sibling.getCapacity());
+
+        allocations.clear();
+        InfileDataBuffer onDemand = new InfileDataBuffer(Charsets.UTF_8, 100, 50, allocator, 10, true);
+        onDemand.createSibling();
+        assertEquals(ImmutableList.of(50, 50), allocations);
+        onDemand.newRow().append("row");
+        onDemand.addRowToInfile();
+        assertEquals(ImmutableList.of(50, 50, 10), allocations);
+        assertEquals("row", CharStreams.toString(new InputStreamReader(onDemand.asInputStream(), Charsets.UTF_8)));
+    }
+
+    @Test
+    public void testGrowthStopsAtMaxCapacity() {
+        InfileDataBuffer buffer = new InfileDataBuffer(Charsets.UTF_8, 30, 20);
+        buffer.setGrowth(8, false);
+        buffer.newRow().append(Strings.repeat("a", 20));
+        assertTrue(buffer.addRowToInfile());
+        assertEquals(20, buffer.size());
+        buffer.newRow().append("bbbbbbbbbb");
+        assertFalse(buffer.addRowToInfile());
+        assertEquals(30, buffer.getCapacity());
+        assertFalse(buffer.growInfileBuffer());
+
+        // The capacity is kept after a flush unless the buffer shrinks
+        buffer.clear();
+        assertEquals(30, buffer.getCapacity());
+    }
+
+    @Test
+    public void testGrowthWhenWritingRowsInPlace() throws IOException {
+        InfileDataBuffer buffer = new InfileDataBuffer(Charsets.UTF_8, 100, 50);
+        buffer.setWriteRowsInPlace(true);
+        buffer.setGrowth(6, false);
+        buffer.newRow().append("first");
+        buffer.addRowToInfile();
+        try {
+            buffer.newRow().append("second");
+            fail("The row should not fit");
+        }
+        catch (BufferOverflowException expected) {
+            buffer.rollbackRow();
+        }
+        assertTrue(buffer.growInfileBuffer());
+        buffer.newRow().append("second");
+        buffer.addRowToInfile();
+        assertEquals("first\nsecond", CharStreams.toString(new InputStreamReader(buffer.asInputStream(), Charsets.UTF_8)));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testClosedBufferCannotBeUsed() {
+        this.infileDataBuffer.close();
+        this.infileDataBuffer.newRow();
+    }
+
     private void addRowAndAssertContents(String expected) {
         try {
             this.infileDataBuffer.addRowToInfile();
-            assertEquals(expected, CharStreams.toString(new InputStreamReader(this.infileDataBuffer.asInputStream())));
+            assertEquals(expected, CharStreams.toString(
+                    new InputStreamReader(this.infileDataBuffer.asInputStream(), Charsets.UTF_8)));
         }
         catch (IOException ex) {
             throw Throwables.propagate(ex);
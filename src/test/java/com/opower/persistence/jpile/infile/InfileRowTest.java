@@ -0,0 +1,120 @@
+package com.opower.persistence.jpile.infile;
+
+import com.google.common.base.Joiner;
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import javax.persistence.TemporalType;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests the default implementations of the typed appends of {@link InfileRow}, which rows that only implement the
+ * original appends rely on.
+ *
+ * @author agent
+ * @since 1.7.12
+ */
+public class InfileRowTest {
+    private final StringRow row = new StringRow();
+
+    @Test
+    public void testNumbers() {
+        this.row.appendLong(-12L).appendInt(3).appendShort((short) 4).appendDouble(5.0).appendDouble(0.25)
+                .append(1.2345, FixedPointFormat.of(10, 3)).append(new BigDecimal("1E+3")).append((BigDecimal) null);
+        assertEquals("-12\t3\t4\t5\t0.25\t1.234\t1000\t\\N", this.row.toString());
+    }
+
+    @Test
+    public void testDates() {
+        Date date = DateTime.parse("2000-01-10T08:00:01").toDate();
+        this.row.append(date, TemporalType.DATE).append(date, TemporalType.TIME).append(date, TemporalType.TIMESTAMP)
+                .append(date.toInstant()).append(LocalDate.of(2000, 1, 10))
+                .append(LocalDateTime.of(2000, 1, 10, 8, 0, 1, 500000000)).append((LocalDate) null);
+        assertEquals("2000-01-10\t08:00:01\t2000-01-10 08:00:01\t2000-01-10 08:00:01\t2000-01-10\t2000-01-10 08:00:01\t\\N",
+                     this.row.toString());
+    }
+
+    @Test
+    public void testUuid() {
+        UUID uuid = UUID.randomUUID();
+        this.row.append(uuid).appendBinary(new UUID(0, 0x61));
+        assertEquals(uuid + "\t" + new String(new char[15]) + "a", this.row.toString());
+    }
+
+    /**
+     * A row that only implements the appends that every implementation had before the typed appends were added.
+     */
+    private static class StringRow implements InfileRow {
+        private final List<String> values = new ArrayList<>();
+
+        @Override
+        public InfileRow newRow() {
+            this.values.clear();
+            return this;
+        }
+
+        @Override
+        public InfileRow append(byte b) {
+            return this.append(new byte[] {b});
+        }
+
+        @Override
+        public InfileRow append(byte[] bytes) {
+            StringBuilder value = new StringBuilder();
+            for (byte b : bytes) {
+                value.append((char) b);
+            }
+            return this.append(value.toString());
+        }
+
+        @Override
+        public InfileRow append(Float number, int precision, int scale) {
+            return this.append(number, FixedPointFormat.of(precision, scale));
+        }
+
+        @Override
+        public InfileRow append(String s) {
+            this.values.add(s);
+            return this;
+        }
+
+        @Override
+        public InfileRow append(Date d, Method method) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public InfileRow append(Boolean b) {
+            return this.append(b ? "1" : "0");
+        }
+
+        @Override
+        public InfileRow append(Object o) {
+            return this.append(o.toString());
+        }
+
+        @Override
+        public InfileRow appendNull() {
+            return this.append("\\N");
+        }
+
+        @Override
+        public InfileRow appendEscaped(String s) {
+            return this.append(s.replace('\t', ','));
+        }
+
+        @Override
+        public String toString() {
+            return Joiner.on('\t').join(this.values);
+        }
+    }
+}
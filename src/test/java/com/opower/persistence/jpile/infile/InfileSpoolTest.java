@@ -0,0 +1,179 @@
+package com.opower.persistence.jpile.infile;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.mysql.jdbc.Statement;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import javax.sql.DataSource;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests writing and replaying an {@link InfileSpool}.
+ *
+ * @author agent
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class InfileSpoolTest {
+    private static final String CUSTOMER_SQL = "LOAD DATA LOCAL INFILE 'stream' INTO TABLE customer (id,name)";
+    private static final String PRODUCT_SQL = "LOAD DATA LOCAL INFILE 'stream' INTO TABLE product (id,title)";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Mock
+    private Connection connection;
+
+    @Mock
+    private Statement statement;
+
+    @Mock
+    private ResultSet foreignKeyChecks;
+
+    private final List<String> loads = Collections.synchronizedList(new ArrayList<String>());
+    private InfileSpool spool;
+
+    @Before
+    public void setUp() throws Exception {
+        when(this.connection.createStatement()).thenReturn(this.statement);
+        when(this.statement.executeQuery("SELECT @@FOREIGN_KEY_CHECKS")).thenReturn(this.foreignKeyChecks);
+        when(this.foreignKeyChecks.next()).thenReturn(true);
+        when(this.foreignKeyChecks.getInt(1)).thenReturn(1);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                InputStream inputStream = (InputStream) invocation.getArguments()[0];
+                loads.add(new String(ByteStreams.toByteArray(inputStream), Charsets.UTF_8));
+                return null;
+            }
+        }).when(this.statement).setLocalInfileInputStream(any(InputStream.class));
+        this.spool = new InfileSpool(new File(this.temporaryFolder.getRoot(), "spool"));
+    }
+
+    @Test
+    public void testWriteChunks() throws IOException {
+        write(CUSTOMER_SQL, "1", "John");
+        write(PRODUCT_SQL, "1", "TV");
+        write(CUSTOMER_SQL, "2", "Jane");
+
+        File customer = new File(this.spool.getDirectory(), "table-001");
+        assertEquals(CUSTOMER_SQL, Files.toString(new File(customer, InfileSpool.SQL_FILE_NAME), Charsets.UTF_8));
+        assertEquals("1\tJohn", Files.toString(new File(customer, "chunk-000001.infile"), Charsets.UTF_8));
+        assertEquals("2\tJane", Files.toString(new File(customer, "chunk-000002.infile"), Charsets.UTF_8));
+        File product = new File(this.spool.getDirectory(), "table-002");
+        assertEquals(PRODUCT_SQL, Files.toString(new File(product, InfileSpool.SQL_FILE_NAME), Charsets.UTF_8));
+        assertEquals(2, product.list().length);
+    }
+
+    @Test
+    public void testReplayLoadsEachChunkOnce() throws Exception {
+        write(CUSTOMER_SQL, "1", "John");
+        write(CUSTOMER_SQL, "2", "Jane");
+        write(PRODUCT_SQL, "1", "TV");
+
+        InfileSpoolReplayer replayer = new InfileSpoolReplayer(this.spool.getDirectory());
+        assertTrue(replayer.replay(this.connection).isEmpty());
+        assertEquals(ImmutableList.of("1\tJohn", "2\tJane", "1\tTV"), this.loads);
+        verify(this.statement).execute("SET FOREIGN_KEY_CHECKS = 0");
+        verify(this.statement).execute("SET FOREIGN_KEY_CHECKS = 1");
+
+        File loaded = new File(this.spool.getDirectory(), "table-001/chunk-000001.infile" + InfileSpoolReplayer.LOADED_SUFFIX);
+        assertTrue(loaded.isFile());
+        assertFalse(new File(this.spool.getDirectory(), "table-001/chunk-000001.infile").exists());
+
+        replayer.replay(this.connection);
+        assertEquals(3, this.loads.size());
+    }
+
+    @Test
+    public void testReplayKeepsForeignKeyChecksDisabled() throws Exception {
+        write(CUSTOMER_SQL, "1", "John");
+        when(this.foreignKeyChecks.getInt(1)).thenReturn(0);
+
+        new InfileSpoolReplayer(this.spool.getDirectory()).replay(this.connection);
+        assertEquals(1, this.loads.size());
+        verify(this.statement, times(2)).execute("SET FOREIGN_KEY_CHECKS = 0");
+        verify(this.statement, never()).execute("SET FOREIGN_KEY_CHECKS = 1");
+    }
+
+    @Test
+    public void testReplayDeletedDirectory() throws Exception {
+        write(CUSTOMER_SQL, "1", "John");
+        InfileSpoolReplayer replayer = new InfileSpoolReplayer(this.spool.getDirectory());
+        File customer = new File(this.spool.getDirectory(), "table-001");
+        for (File file : customer.listFiles()) {
+            assertTrue(file.delete());
+        }
+        assertTrue(customer.delete());
+        assertTrue(this.spool.getDirectory().delete());
+        try {
+            replayer.replay(this.connection);
+            fail();
+        }
+        catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof IOException);
+            assertTrue(e.getMessage().contains(this.spool.getDirectory().getPath()));
+        }
+        verify(this.statement, never()).execute("SET FOREIGN_KEY_CHECKS = 0");
+    }
+
+    @Test
+    public void testParallelReplay() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            write(CUSTOMER_SQL, "customer" + i);
+            write(PRODUCT_SQL, "product" + i);
+        }
+        DataSource dataSource = mock(DataSource.class);
+        when(dataSource.getConnection()).thenReturn(this.connection);
+
+        new InfileSpoolReplayer(this.spool.getDirectory()).replay(dataSource, 2);
+        assertEquals(10, this.loads.size());
+        // Each table is loaded in the order it was written
+        List<String> customers = new ArrayList<>();
+        for (String load : this.loads) {
+            if (load.startsWith("customer")) {
+                customers.add(load);
+            }
+        }
+        assertEquals(ImmutableList.of("customer0", "customer1", "customer2", "customer3", "customer4"), customers);
+    }
+
+    private void write(String sql, String... columns) {
+        InfileDataBuffer buffer = new InfileDataBuffer(Charsets.UTF_8, 100, 50);
+        InfileRow row = buffer.newRow();
+        for (String column : columns) {
+            row.append(column);
+        }
+        buffer.addRowToInfile();
+        this.spool.write(sql, buffer);
+    }
+}
@@ -0,0 +1,120 @@
+package com.opower.persistence.jpile.infile;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.io.CharStreams;
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+import org.joda.time.LocalDateTime;
+import org.joda.time.MutableDateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests finding and using value writers.
+ *
+ * @author agent
+ * @since 1.7.12
+ */
+public class InfileValueWritersTest {
+    private InfileDataBuffer infileDataBuffer;
+
+    @Before
+    public void setUp() {
+        this.infileDataBuffer = new InfileDataBuffer();
+    }
+
+    @Test
+    public void testFindDefaults() {
+        InfileValueWriters writers = InfileValueWriters.defaults();
+        assertSame(InfileValueWriter.UUID_TEXT, writers.find(UUID.class));
+        // DateTime and MutableDateTime implement ReadableInstant
+        assertSame(InfileValueWriter.JODA_INSTANT, writers.find(DateTime.class));
+        assertSame(InfileValueWriter.JODA_INSTANT, writers.find(MutableDateTime.class));
+        assertSame(InfileValueWriter.JODA_LOCAL_DATE, writers.find(LocalDate.class));
+        assertNull(writers.find(String.class));
+        assertNull(writers.find(Object.class));
+    }
+
+    @Test
+    public void testFindClosestType() {
+        InfileValueWriter<Object> objectWriter = newWriter("object");
+        InfileValueWriter<Object> numberWriter = newWriter("number");
+        InfileValueWriter<Object> serializableWriter = newWriter("serializable");
+        InfileValueWriters writers = new InfileValueWriters()
+                .register(Object.class, objectWriter)
+                .register(Serializable.class, serializableWriter)
+                .register(Number.class, numberWriter);
+        assertSame(numberWriter, writers.find(BigDecimal.class));
+        // Primitives use the writer of their wrapper
+        assertSame(numberWriter, writers.find(long.class));
+        // Superclasses come before interfaces
+        assertSame(objectWriter, writers.find(String.class));
+
+        writers.register(long.class, serializableWriter);
+        assertSame(serializableWriter, writers.find(Long.class));
+    }
+
+    @Test
+    public void testWrite() throws IOException {
+        InfileValueWriters writers = InfileValueWriters.defaults().register(Number.class, newWriter("number"));
+        UUID uuid = UUID.randomUUID();
+        assertTrue(writers.write(uuid, this.infileDataBuffer));
+        assertTrue(writers.write(1, this.infileDataBuffer));
+        assertFalse(writers.write("a", this.infileDataBuffer));
+        assertRowContents(uuid + "\tnumber");
+    }
+
+    @Test
+    public void testJodaWriters() throws IOException {
+        InfileValueWriter.JODA_INSTANT.write(new DateTime(2000, 1, 10, 8, 0, 1, 500), this.infileDataBuffer);
+        InfileValueWriter.JODA_LOCAL_DATE.write(new LocalDate(2000, 1, 10), this.infileDataBuffer);
+        InfileValueWriter.JODA_LOCAL_DATE_TIME.write(new LocalDateTime(2000, 1, 10, 8, 0, 1, 500), this.infileDataBuffer);
+        assertRowContents("2000-01-10 08:00:01\t2000-01-10\t2000-01-10 08:00:01");
+    }
+
+    @Test
+    public void testConverting() throws IOException {
+        InfileValueWriter<BigDecimal> cents = InfileValueWriters.converting(new Function<BigDecimal, Long>() {
+            @Override
+            public Long apply(BigDecimal amount) {
+                return amount.signum() == 0 ? null : amount.movePointRight(2).longValueExact();
+            }
+        }, new InfileValueWriter<Long>() {
+            @Override
+            public void write(Long value, InfileRow infileRow) {
+                infileRow.appendLong(value);
+            }
+        });
+        cents.write(new BigDecimal("12.34"), this.infileDataBuffer);
+        cents.write(BigDecimal.ZERO, this.infileDataBuffer);
+        assertRowContents("1234\t\\N");
+    }
+
+    private void assertRowContents(String expected) throws IOException {
+        this.infileDataBuffer.addRowToInfile();
+        assertEquals(expected, CharStreams.toString(new InputStreamReader(this.infileDataBuffer.asInputStream(),
+                                                                          Charsets.UTF_8)));
+    }
+
+    private static InfileValueWriter<Object> newWriter(final String s) {
+        return new InfileValueWriter<Object>() {
+            @Override
+            public void write(Object value, InfileRow infileRow) {
+                infileRow.append(s);
+            }
+        };
+    }
+}
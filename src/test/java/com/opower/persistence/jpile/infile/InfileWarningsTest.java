@@ -0,0 +1,82 @@
+package com.opower.persistence.jpile.infile;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import java.sql.SQLWarning;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link InfileWarnings}.
+ *
+ * @author agent
+ */
+public class InfileWarningsTest {
+    @Test
+    public void testCountsByCode() {
+        InfileWarnings warnings = new InfileWarnings();
+        warnings.record(chain(truncated("a"), truncated("b"), incorrect("c")));
+        warnings.record(null);
+        warnings.record(chain(truncated("d")));
+        assertEquals(4, warnings.getCount());
+        assertEquals(ImmutableMap.of("01000:1265", 3L, "01000:1366", 1L), warnings.getCountsByCode());
+        assertEquals("4 warnings [01000:1265=3, 01000:1366=1]", warnings.toString());
+    }
+
+    @Test
+    public void testKeepsMostRecentSamples() {
+        InfileWarnings warnings = new InfileWarnings(InfileWarnings.Mode.SAMPLES, 2);
+        SQLWarning b = truncated("b");
+        SQLWarning c = truncated("c");
+        warnings.record(chain(truncated("a"), b));
+        warnings.record(chain(c));
+        assertEquals(ImmutableList.of(b, c), warnings.getSamples());
+        assertEquals(3, warnings.getCount());
+    }
+
+    @Test
+    public void testCountsWithoutSamples() {
+        InfileWarnings warnings = new InfileWarnings(InfileWarnings.Mode.COUNTS, 10);
+        warnings.record(chain(truncated("a")));
+        assertEquals(1, warnings.getCount());
+        assertTrue(warnings.getSamples().isEmpty());
+    }
+
+    @Test
+    public void testOff() {
+        InfileWarnings warnings = new InfileWarnings(InfileWarnings.Mode.OFF, 10);
+        assertFalse(warnings.isEnabled());
+        warnings.record(chain(truncated("a")));
+        assertEquals(0, warnings.getCount());
+        assertTrue(warnings.getCountsByCode().isEmpty());
+    }
+
+    @Test
+    public void testClear() {
+        InfileWarnings warnings = new InfileWarnings();
+        warnings.record(chain(truncated("a")));
+        warnings.clear();
+        assertEquals(0, warnings.getCount());
+        assertTrue(warnings.getCountsByCode().isEmpty());
+        assertTrue(warnings.getSamples().isEmpty());
+    }
+
+    private static SQLWarning truncated(String column) {
+        return new SQLWarning("Data truncated for column '" + column + "'", "01000", 1265);
+    }
+
+    private static SQLWarning incorrect(String column) {
+        return new SQLWarning("Incorrect integer value for column '" + column + "'", "01000", 1366);
+    }
+
+    private static SQLWarning chain(SQLWarning first, SQLWarning... more) {
+        for (SQLWarning warning : more) {
+            first.setNextWarning(warning);
+        }
+        return first;
+    }
+}
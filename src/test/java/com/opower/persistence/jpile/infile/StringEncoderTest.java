@@ -0,0 +1,135 @@
+package com.opower.persistence.jpile.infile;
+
+import com.google.common.base.Charsets;
+import org.junit.Test;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link StringEncoder}.
+ *
+ * @author agent
+ */
+public class StringEncoderTest {
+    private static final String[] VALUES = {
+            "",
+            "plain ascii",
+            "café crème brûlée",
+            "がㄦ ががががㄦ",
+            "emoji 😀 and more 🙏!",
+            "\u007f\u0080߿ࠀ￿"
+    };
+
+    @Test
+    public void testUtf8() {
+        for (String value : VALUES) {
+            assertEncodes(Charsets.UTF_8, value);
+        }
+        assertEncodesRandomStrings(Charsets.UTF_8, Character.MAX_CODE_POINT);
+    }
+
+    @Test
+    public void testLatin1() {
+        for (String value : new String[] {"", "plain ascii", "café crème brûlée ÿ"}) {
+            assertEncodes(Charsets.ISO_8859_1, value);
+        }
+        assertEncodesRandomStrings(Charsets.ISO_8859_1, 0xFF);
+    }
+
+    @Test
+    public void testAscii() {
+        assertEncodes(Charsets.US_ASCII, "plain ascii\u007f");
+        assertEncodesRandomStrings(Charsets.US_ASCII, 0x7F);
+    }
+
+    @Test
+    public void testOtherCharsets() {
+        for (String value : VALUES) {
+            assertEncodes(Charsets.UTF_16BE, value);
+        }
+    }
+
+    @Test
+    public void testEncodeRange() {
+        ByteBuffer buffer = ByteBuffer.allocate(100);
+        StringEncoder.forCharset(Charsets.UTF_8).encode("abécd", 1, 4, buffer);
+        assertEquals("béc", new String(buffer.array(), 0, buffer.position(), Charsets.UTF_8));
+    }
+
+    /**
+     * Characters that cannot be encoded are reported the same way as by a {@link java.nio.charset.CharsetEncoder}.
+     */
+    @Test
+    public void testUnencodableCharacters() {
+        assertSameFailure(Charsets.US_ASCII, "abcé");
+        assertSameFailure(Charsets.ISO_8859_1, "abcĀ");
+        assertSameFailure(Charsets.UTF_8, "abc\uD83Dx");
+        assertSameFailure(Charsets.UTF_8, "abc\uDE00x");
+    }
+
+    @Test
+    public void testBufferOverflow() {
+        for (Charset charset : new Charset[] {Charsets.US_ASCII, Charsets.ISO_8859_1, Charsets.UTF_8}) {
+            for (ByteBuffer buffer : new ByteBuffer[] {ByteBuffer.allocate(5), ByteBuffer.allocateDirect(5)}) {
+                try {
+                    StringEncoder.forCharset(charset).encode("more than five", 0, 14, buffer);
+                    fail("Should not fit in " + buffer);
+                }
+                catch (BufferOverflowException expected) {
+                    assertEquals(5, buffer.position());
+                }
+            }
+        }
+    }
+
+    private static void assertEncodesRandomStrings(Charset charset, int maxCodePoint) {
+        Random random = new Random(11);
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            builder.setLength(0);
+            for (int length = random.nextInt(50); length > 0; length--) {
+                int codePoint = random.nextBoolean() ? random.nextInt(0x80) : random.nextInt(maxCodePoint + 1);
+                if (codePoint < Character.MIN_SURROGATE || codePoint > Character.MAX_SURROGATE) {
+                    builder.appendCodePoint(codePoint);
+                }
+            }
+            assertEncodes(charset, builder.toString());
+        }
+    }
+
+    private static void assertEncodes(Charset charset, String value) {
+        byte[] expected = value.getBytes(charset);
+        assertArrayEquals(value, expected, encode(StringEncoder.forCharset(charset), value, ByteBuffer.allocate(1000)));
+        assertArrayEquals(value, expected, encode(StringEncoder.forCharset(charset), value, ByteBuffer.allocateDirect(1000)));
+    }
+
+    private static void assertSameFailure(Charset charset, String value) {
+        String expected = failure(StringEncoder.generic(charset), value);
+        assertEquals(value, expected, failure(StringEncoder.forCharset(charset), value));
+    }
+
+    private static String failure(StringEncoder encoder, String value) {
+        try {
+            encoder.encode(value, 0, value.length(), ByteBuffer.allocate(100));
+            return null;
+        }
+        catch (Error e) {
+            return e.getCause().getClass().getName();
+        }
+    }
+
+    private static byte[] encode(StringEncoder encoder, String value, ByteBuffer buffer) {
+        encoder.encode(value, 0, value.length(), buffer);
+        buffer.flip();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,71 @@
+package com.opower.persistence.jpile.loader;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for {@link AdaptiveFlushSize}.
+ *
+ * @author agent
+ */
+public class AdaptiveFlushSizeTest {
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final AdaptiveFlushSize flushSize = new AdaptiveFlushSize(1000, 100000, 100, TimeUnit.MILLISECONDS);
+
+    @Test
+    public void testStartsAtMinimum() {
+        assertEquals(1000, this.flushSize.getFlushSize());
+        assertEquals(0, this.flushSize.getBytesPerSecond(), 0);
+    }
+
+    @Test
+    public void testGrowsAtMostTwofoldPerFlush() {
+        // 1000 bytes per millisecond would allow 100000 bytes per flush
+        this.flushSize.recordFlush(1000, MILLIS);
+        assertEquals(2000, this.flushSize.getFlushSize());
+        this.flushSize.recordFlush(2000, 2 * MILLIS);
+        assertEquals(4000, this.flushSize.getFlushSize());
+        assertEquals(1000000, this.flushSize.getBytesPerSecond(), 1);
+    }
+
+    @Test
+    public void testStaysWithinBounds() {
+        recordFlushes(50, 100000, MILLIS);
+        assertEquals(100000, this.flushSize.getFlushSize());
+        recordFlushes(50, 1000, TimeUnit.SECONDS.toNanos(1));
+        assertEquals(1000, this.flushSize.getFlushSize());
+    }
+
+    @Test
+    public void testShrinksAfterSlowFlushes() {
+        recordFlushes(50, 100000, MILLIS);
+        // A single slow flush barely moves the average
+        this.flushSize.recordFlush(100000, 1000 * MILLIS);
+        assertEquals(100000, this.flushSize.getFlushSize());
+        // A table that keeps loading at 100 bytes per millisecond should aim for 10000 bytes per flush
+        recordFlushes(50, 100000, 1000 * MILLIS);
+        assertEquals(10000, this.flushSize.getFlushSize(), 10);
+    }
+
+    @Test
+    public void testIgnoresEmptyFlushes() {
+        this.flushSize.recordFlush(0, MILLIS);
+        assertEquals(1000, this.flushSize.getFlushSize());
+        assertEquals(0, this.flushSize.getBytesPerSecond(), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMaxBelowMin() {
+        new AdaptiveFlushSize(1000, 999, 1, TimeUnit.SECONDS);
+    }
+
+    private void recordFlushes(int count, long bytes, long nanos) {
+        for (int i = 0; i < count; i++) {
+            this.flushSize.recordFlush(bytes, nanos);
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.opower.persistence.jpile.loader;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.CharStreams;
+import com.mysql.jdbc.Statement;
+import com.opower.persistence.jpile.infile.InfileDataBuffer;
+import com.opower.persistence.jpile.infile.InfileRow;
+import com.opower.persistence.jpile.infile.InfileValueWriter;
+import com.opower.persistence.jpile.reflection.PersistenceAnnotationInspector;
+import com.opower.persistence.jpile.sample.Contact;
+import com.opower.persistence.jpile.sample.Customer;
+import com.opower.persistence.jpile.sample.ObjectFactory;
+import com.opower.persistence.jpile.sample.Product;
+import com.opower.persistence.jpile.sample.Reading;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.AccessibleObject;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static com.opower.persistence.jpile.reflection.PersistenceAnnotationInspector.getValue;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests the converters that are resolved for each column.
+ *
+ * @author agent
+ * @since 1.7.12
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ColumnConverterTest {
+    @Mock
+    Connection connection;
+
+    @Mock
+    Statement statement;
+
+    @Before
+    public void setUp() throws Exception {
+        ResultSet resultSet = mock(ResultSet.class);
+        when(resultSet.first()).thenReturn(true);
+        when(statement.executeQuery(anyString())).thenReturn(resultSet);
+        when(connection.createStatement()).thenReturn(statement);
+    }
+
+    @Test
+    public void testConvertersAppendLikeAppendValue() throws Exception {
+        Customer customer = ObjectFactory.newCustomer();
+        customer.setId(1L);
+        Product product = customer.getProducts().get(0);
+        product.setId(2L);
+        product.getSupplier().setId(3L);
+        product.setTitle("Title\twith a tab");
+        Contact contact = customer.getContacts().get(0);
+        contact.getContactPK().setCustomer(customer);
+
+        assertConvertersAppendLikeAppendValue(Customer.class, customer);
+        assertConvertersAppendLikeAppendValue(Product.class, product);
+        assertConvertersAppendLikeAppendValue(Contact.class, contact);
+        assertConvertersAppendLikeAppendValue(Reading.class, new Reading(customer, new Date(), 1.23456, true));
+        assertConvertersAppendLikeAppendValue(Product.class, new Product());
+    }
+
+    @Test
+    public void testDictionary() throws Exception {
+        SingleInfileObjectLoader<Product> loader = new SingleInfileObjectLoaderBuilder<Product>(Product.class)
+                .withDefaultTableName()
+                .withJdbcConnection(this.connection)
+                .usingAnnotationInspector(new PersistenceAnnotationInspector())
+                .withBuffer(new InfileDataBuffer())
+                .withDictionary("TITLE", ImmutableList.of("Known\ttitle", "Other"))
+                .build();
+        ColumnConverter converter = loader.converters[ImmutableList.copyOf(loader.getMappings().keySet()).indexOf("title")];
+
+        InfileDataBuffer buffer = new InfileDataBuffer();
+        converter.append("Known\ttitle", buffer);
+        converter.append("Unknown\ttitle", buffer);
+        converter.append(null, buffer);
+        buffer.addRowToInfile();
+        assertEquals("Known\\\ttitle\tUnknown\\\ttitle\t\\N",
+                     CharStreams.toString(new InputStreamReader(buffer.asInputStream())));
+    }
+
+    /**
+     * Verify that generated row writers append string columns that have a dictionary with their converter.
+     */
+    @Test
+    public void testDictionaryWithGeneratedRowWriter() throws Exception {
+        Customer customer = ObjectFactory.newCustomer();
+        customer.setId(1L);
+        Product product = customer.getProducts().get(0);
+        product.setId(2L);
+        product.getSupplier().setId(3L);
+        product.setTitle("Known");
+        InfileDataBuffer buffer = new InfileDataBuffer();
+        SingleInfileObjectLoader<Product> loader = new SingleInfileObjectLoaderBuilder<Product>(Product.class)
+                .withDefaultTableName()
+                .withJdbcConnection(this.connection)
+                .usingAnnotationInspector(new PersistenceAnnotationInspector())
+                .withBuffer(buffer)
+                .generateRowWriter(true)
+                .withDictionary("title", ImmutableList.of("Known"))
+                .build();
+        assertNotNull(loader.rowWriter);
+
+        int title = ImmutableList.copyOf(loader.getMappings().keySet()).indexOf("title");
+        final ColumnConverter dictionary = loader.converters[title];
+        final List<Object> converted = new ArrayList<>();
+        loader.converters[title] = new ColumnConverter() {
+            @Override
+            void appendValue(Object value, InfileRow infileRow) {
+                converted.add(value);
+                dictionary.appendValue(value, infileRow);
+            }
+        };
+        loader.convertToInfileRow(product, buffer);
+        buffer.addRowToInfile();
+        assertEquals(ImmutableList.of("Known"), converted);
+        assertTrue(CharStreams.toString(new InputStreamReader(buffer.asInputStream())).contains("Known"));
+    }
+
+    /**
+     * Verify that rows that are not an {@link InfileDataBuffer} get the typed appends of booleans, enums and dictionary
+     * values instead of their encoded bytes.
+     */
+    @Test
+    public void testRowThatIsNotABuffer() throws Exception {
+        Customer customer = ObjectFactory.newCustomer();
+        customer.setId(1L);
+        Product product = customer.getProducts().get(0);
+        product.setId(2L);
+        product.getSupplier().setId(3L);
+        product.setTitle("Known");
+        Contact contact = customer.getContacts().get(0);
+        contact.getContactPK().setCustomer(customer);
+
+        for (boolean generateRowWriter : new boolean[] {false, true}) {
+            InfileRow infileRow = mock(InfileRow.class);
+            newLoader(Customer.class, new PersistenceAnnotationInspector(), generateRowWriter)
+                    .convertToInfileRow(customer, infileRow);
+            verify(infileRow).append((Object) Customer.Type.RESIDENTIAL.ordinal());
+            newLoader(Contact.class, new PersistenceAnnotationInspector(), generateRowWriter)
+                    .convertToInfileRow(contact, infileRow);
+            verify(infileRow).append((Object) Contact.Type.PRIMARY.name());
+            newLoader(Reading.class, new PersistenceAnnotationInspector(), generateRowWriter)
+                    .convertToInfileRow(new Reading(customer, new Date(), 1.5, true), infileRow);
+            verify(infileRow).append(Boolean.TRUE);
+            new SingleInfileObjectLoaderBuilder<Product>(Product.class)
+                    .withDefaultTableName()
+                    .withJdbcConnection(this.connection)
+                    .usingAnnotationInspector(new PersistenceAnnotationInspector())
+                    .withBuffer(new InfileDataBuffer())
+                    .generateRowWriter(generateRowWriter)
+                    .withDictionary("title", ImmutableList.of("Known"))
+                    .build()
+                    .convertToInfileRow(product, infileRow);
+            verify(infileRow).append("Known");
+        }
+    }
+
+    /**
+     * Verify that a value writer replaces the typed append of its type, including in generated row writers.
+     */
+    @Test
+    public void testValueWriter() throws Exception {
+        Customer customer = ObjectFactory.newCustomer();
+        customer.setId(1L);
+        Product product = customer.getProducts().get(0);
+        product.setId(2L);
+        product.getSupplier().setId(3L);
+        product.setTitle("title");
+        product.setDescription("DESCRIPTION");
+        InfileValueWriter<String> upperCase = new InfileValueWriter<String>() {
+            @Override
+            public void write(String value, InfileRow infileRow) {
+                infileRow.append(value.toUpperCase());
+            }
+        };
+        InfileDataBuffer reflected = new InfileDataBuffer();
+        newLoader(Product.class, new PersistenceAnnotationInspector(), false).convertToInfileRow(product, reflected);
+        reflected.addRowToInfile();
+        String expected = CharStreams.toString(new InputStreamReader(reflected.asInputStream())).replace("title", "TITLE");
+
+        for (boolean generateRowWriter : new boolean[] {false, true}) {
+            SingleInfileObjectLoader<Product> loader = new SingleInfileObjectLoaderBuilder<Product>(Product.class)
+                    .withDefaultTableName()
+                    .withJdbcConnection(this.connection)
+                    .usingAnnotationInspector(new PersistenceAnnotationInspector())
+                    .withBuffer(new InfileDataBuffer())
+                    .generateRowWriter(generateRowWriter)
+                    .withValueWriter(String.class, upperCase)
+                    .build();
+            assertEquals(generateRowWriter, loader.rowWriter != null);
+            InfileDataBuffer buffer = new InfileDataBuffer();
+            loader.convertToInfileRow(product, buffer);
+            buffer.addRowToInfile();
+            assertEquals(expected, CharStreams.toString(new InputStreamReader(buffer.asInputStream())));
+        }
+    }
+
+    @Test
+    public void testRowsDoNotUseTheAnnotationInspector() throws Exception {
+        PersistenceAnnotationInspector inspector = spy(new PersistenceAnnotationInspector());
+        Customer customer = ObjectFactory.newCustomer();
+        customer.setId(1L);
+        customer.getProducts().get(0).getSupplier().setId(3L);
+        SingleInfileObjectLoader<Product> reflectionLoader = newLoader(Product.class, inspector, false);
+        SingleInfileObjectLoader<Product> generatedLoader = newLoader(Product.class, inspector, true);
+        reset(inspector);
+
+        for (Product product : customer.getProducts()) {
+            reflectionLoader.add(product);
+            generatedLoader.add(product);
+        }
+        verifyZeroInteractions(inspector);
+    }
+
+    private <T> void assertConvertersAppendLikeAppendValue(Class<T> type, T entity) throws IOException {
+        SingleInfileObjectLoader<T> loader = newLoader(type, new PersistenceAnnotationInspector(), false);
+        InfileDataBuffer converted = new InfileDataBuffer();
+        InfileDataBuffer appended = new InfileDataBuffer();
+        int column = 0;
+        for (AccessibleObject member : loader.getMappings().values()) {
+            Object value = getValue(loader.persistenceAnnotationInspector, member, entity);
+            loader.converters[column++].append(value, converted);
+            loader.appendValue(member, value, appended);
+        }
+        converted.addRowToInfile();
+        appended.addRowToInfile();
+        assertEquals(CharStreams.toString(new InputStreamReader(appended.asInputStream())),
+                     CharStreams.toString(new InputStreamReader(converted.asInputStream())));
+    }
+
+    private <T> SingleInfileObjectLoader<T> newLoader(Class<T> type, PersistenceAnnotationInspector inspector,
+                                                      boolean generateRowWriter) {
+        return new SingleInfileObjectLoaderBuilder<T>(type)
+                .withDefaultTableName()
+                .withJdbcConnection(this.connection)
+                .usingAnnotationInspector(inspector)
+                .withBuffer(new InfileDataBuffer())
+                .generateRowWriter(generateRowWriter)
+                .build();
+    }
+}
@@ -0,0 +1,161 @@
+package com.opower.persistence.jpile.loader;
+
+import com.google.common.io.CharStreams;
+import com.mysql.jdbc.Statement;
+import com.opower.persistence.jpile.infile.InfileDataBuffer;
+import com.opower.persistence.jpile.reflection.PersistenceAnnotationInspector;
+import com.opower.persistence.jpile.sample.Contact;
+import com.opower.persistence.jpile.sample.Customer;
+import com.opower.persistence.jpile.sample.ObjectFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import javax.persistence.Column;
+import javax.persistence.Embeddable;
+import javax.persistence.Embedded;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.sql.Connection;
+import java.sql.ResultSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests writing the flattened columns of entities with embedded objects.
+ *
+ * @author agent
+ * @since 1.7.12
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class FlattenedColumnsTest {
+    @Mock
+    Connection connection;
+
+    @Mock
+    Statement statement;
+
+    @Before
+    public void setUp() throws Exception {
+        ResultSet resultSet = mock(ResultSet.class);
+        when(resultSet.first()).thenReturn(true);
+        when(statement.executeQuery(anyString())).thenReturn(resultSet);
+        when(connection.createStatement()).thenReturn(statement);
+    }
+
+    @Test
+    public void testEmbeddedColumns() throws Exception {
+        Customer customer = ObjectFactory.newCustomer();
+        customer.setId(1L);
+        Contact contact = ObjectFactory.newContact();
+        contact.getContactPK().setCustomer(customer);
+
+        for (boolean generateRowWriter : new boolean[] {false, true}) {
+            SingleInfileObjectLoader<Contact> loader = newLoader(Contact.class, generateRowWriter);
+            contact.setAddress(ObjectFactory.newAddress());
+            assertEquals("Smith\tPRIMARY\tArlington\tVA\tN Courthouse Rd\t1515\t22201\t1\tJohn", write(loader, contact));
+            contact.setAddress(null);
+            assertEquals("Smith\tPRIMARY\t\\N\t\\N\t\\N\t\\N\t\\N\t1\tJohn", write(loader, contact));
+        }
+    }
+
+    @Test
+    public void testDeeplyEmbeddedColumns() throws Exception {
+        for (boolean generateRowWriter : new boolean[] {false, true}) {
+            SingleInfileObjectLoader<Outer> loader = newLoader(Outer.class, generateRowWriter);
+            assertEquals(generateRowWriter, loader.getEmbeds().values().iterator().next().rowWriter != null);
+            Outer outer = new Outer();
+            assertEquals("1\touter\tmiddle\tinner", write(loader, outer));
+            outer.middle.inner = null;
+            assertEquals("1\touter\tmiddle\t\\N", write(loader, outer));
+            outer.middle = null;
+            assertEquals("1\touter\t\\N\t\\N", write(loader, outer));
+        }
+    }
+
+    @Test
+    public void testNullEmbeddedObject() throws Exception {
+        SingleInfileObjectLoader<Object> loader = newLoader(Outer.class, true).getEmbeds().values().iterator().next();
+        assertEquals("\\N\t\\N", write(loader, null));
+    }
+
+    private <T> SingleInfileObjectLoader<T> newLoader(Class<T> type, boolean generateRowWriter) {
+        return new SingleInfileObjectLoaderBuilder<T>(type)
+                .withDefaultTableName()
+                .withJdbcConnection(this.connection)
+                .usingAnnotationInspector(new PersistenceAnnotationInspector())
+                .withBuffer(new InfileDataBuffer())
+                .generateRowWriter(generateRowWriter)
+                .build();
+    }
+
+    private static <T> String write(SingleInfileObjectLoader<T> loader, T entity) throws IOException {
+        InfileDataBuffer buffer = new InfileDataBuffer();
+        loader.convertToInfileRow(entity, buffer);
+        buffer.addRowToInfile();
+        return CharStreams.toString(new InputStreamReader(buffer.asInputStream()));
+    }
+
+    /**
+     * An entity with an embedded object that has an embedded object itself.
+     */
+    @Entity
+    @Table(name = "outer")
+    public static class Outer {
+        private Long id = 1L;
+        private Middle middle = new Middle();
+
+        @Id
+        @Column(name = "id")
+        public Long getId() {
+            return this.id;
+        }
+
+        @Column(name = "name")
+        public String getName() {
+            return "outer";
+        }
+
+        @Embedded
+        public Middle getMiddle() {
+            return this.middle;
+        }
+    }
+
+    /**
+     * An embedded object with an embedded object.
+     */
+    @Embeddable
+    public static class Middle {
+        private Inner inner = new Inner();
+
+        @Column(name = "middle_name")
+        public String getName() {
+            return "middle";
+        }
+
+        @Embedded
+        public Inner getInner() {
+            return this.inner;
+        }
+    }
+
+    /**
+     * An embedded object with a single column.
+     */
+    @Embeddable
+    public static class Inner {
+        @Column(name = "inner_name")
+        public String getName() {
+            return "inner";
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.opower.persistence.jpile.loader;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for {@link InfileConnectionPool}.
+ *
+ * @author agent
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class InfileConnectionPoolTest {
+    @Mock
+    private DataSource dataSource;
+
+    @Mock
+    private Connection first;
+
+    @Mock
+    private Connection second;
+
+    @Mock
+    private Statement statement;
+
+    private InfileConnectionPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        when(this.dataSource.getConnection()).thenReturn(this.first, this.second);
+        when(this.first.createStatement()).thenReturn(this.statement);
+        when(this.second.createStatement()).thenReturn(this.statement);
+        this.pool = new InfileConnectionPool(this.dataSource, 2, ImmutableList.of("SET FOREIGN_KEY_CHECKS = 0"),
+                                             ImmutableList.of("SET FOREIGN_KEY_CHECKS = 1"));
+    }
+
+    @Test
+    public void testPreparesEachConnectionOnce() throws Exception {
+        Connection connection = this.pool.acquire();
+        this.pool.release(connection);
+        assertSame(connection, this.pool.acquire());
+        assertSame(this.second, this.pool.acquire());
+        verify(this.dataSource, times(2)).getConnection();
+        verify(this.statement, times(2)).execute("SET FOREIGN_KEY_CHECKS = 0");
+    }
+
+    @Test
+    public void testWaitsForReleasedConnection() throws Exception {
+        final Connection connection = this.pool.acquire();
+        this.pool.acquire();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Connection> waiting = executor.submit(new Callable<Connection>() {
+                @Override
+                public Connection call() {
+                    return pool.acquire();
+                }
+            });
+            try {
+                waiting.get(100, TimeUnit.MILLISECONDS);
+                fail("All connections are in use");
+            }
+            catch (TimeoutException e) {
+                // Expected
+            }
+            this.pool.release(connection);
+            assertSame(connection, waiting.get(5, TimeUnit.SECONDS));
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCloseResetsAndClosesConnections() throws Exception {
+        Connection connection = this.pool.acquire();
+        this.pool.release(connection);
+        this.pool.close();
+        verify(this.statement).execute("SET FOREIGN_KEY_CHECKS = 1");
+        verify(this.first).close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testCannotCloseWithConnectionsInUse() {
+        this.pool.acquire();
+        this.pool.close();
+    }
+}
@@ -0,0 +1,418 @@
+package com.opower.persistence.jpile.loader;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import com.mysql.jdbc.Statement;
+import com.opower.persistence.jpile.infile.InfileDataBuffer;
+import com.opower.persistence.jpile.infile.InfileRow;
+import com.opower.persistence.jpile.infile.InfileWarnings;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import javax.sql.DataSource;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests flushing and streaming of {@link InfileObjectLoader}.
+ *
+ * @author agent
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class InfileObjectLoaderTest {
+    private static final List<String> ROWS = ImmutableList.of("aaaaaaa", "bbbbbbb", "ccccccc", "ddddddd", "eeeeeee");
+
+    @Mock
+    private Connection connection;
+
+    @Mock
+    private Statement statement;
+
+    private final List<String> loads = Collections.synchronizedList(new ArrayList<String>());
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private StringLoader loader;
+
+    @Before
+    public void setUp() throws Exception {
+        when(this.connection.createStatement()).thenReturn(this.statement);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                InputStream inputStream = (InputStream) invocation.getArguments()[0];
+                loads.add(new String(ByteStreams.toByteArray(inputStream), Charsets.UTF_8));
+                return null;
+            }
+        }).when(this.statement).setLocalInfileInputStream(any(InputStream.class));
+        // Room for two rows of seven characters and a newline
+        this.loader = new StringLoader(new InfileDataBuffer(Charsets.UTF_8, 16, 16), this.connection);
+    }
+
+    @After
+    public void tearDown() {
+        this.executor.shutdownNow();
+    }
+
+    @Test
+    public void testSynchronousFlush() {
+        addAll(ROWS);
+        assertEquals(ImmutableList.of("aaaaaaa\nbbbbbbb", "ccccccc\nddddddd"), this.loads);
+        this.loader.flush();
+        assertEquals("eeeeeee", this.loads.get(2));
+    }
+
+    @Test
+    public void testGrowingBufferWithRowsInPlace() {
+        this.loader.getInfileDataBuffer().setWriteRowsInPlace(true);
+        this.loader.getInfileDataBuffer().setGrowth(4, false);
+        addAll(ROWS);
+        // The buffer grows to its maximum for the second row, and is flushed once that is full
+        assertEquals(ImmutableList.of("aaaaaaa\nbbbbbbb", "ccccccc\nddddddd"), this.loads);
+        assertEquals(16, this.loader.getInfileDataBuffer().getCapacity());
+    }
+
+    @Test
+    public void testAsyncFlush() {
+        this.loader.setAsyncFlushing(this.executor, 3);
+        addAll(ROWS);
+        this.loader.flush();
+        assertEquals(ImmutableList.of("aaaaaaa\nbbbbbbb", "ccccccc\nddddddd", "eeeeeee"), this.loads);
+
+        // Buffers are reused after they have been flushed
+        addAll(ROWS);
+        this.loader.close();
+        assertEquals(6, this.loads.size());
+    }
+
+    @Test
+    public void testAsyncFlushBlocksWhenAllBuffersAreFull() throws Exception {
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        when(this.statement.execute(anyString())).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                loading.countDown();
+                release.await();
+                return false;
+            }
+        });
+        this.loader.setAsyncFlushing(this.executor, 2);
+
+        // The first buffer is being loaded while the second one is filled
+        addAll(ROWS.subList(0, 4));
+        loading.await();
+
+        // Another row needs a third buffer
+        Future<?> blocked = Executors.newSingleThreadExecutor().submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                loader.add("fffffff");
+                return null;
+            }
+        });
+        try {
+            blocked.get(200, TimeUnit.MILLISECONDS);
+            fail("Adding a row should block until a buffer is free");
+        }
+        catch (TimeoutException expected) {
+            assertFalse(blocked.isDone());
+        }
+        release.countDown();
+        blocked.get(5, TimeUnit.SECONDS);
+        this.loader.flush();
+        assertEquals(ImmutableList.of("aaaaaaa\nbbbbbbb", "ccccccc\nddddddd", "fffffff"), this.loads);
+    }
+
+    @Test
+    public void testAsyncFailureIsThrownOnNextAdd() throws Exception {
+        when(this.statement.execute(anyString())).thenThrow(new SQLException("Deadlock found"));
+        this.loader.setAsyncFlushing(this.executor, 2);
+        addAll(ROWS.subList(0, 3));
+        // Wait for the failed flush
+        this.executor.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+
+        try {
+            this.loader.add("fffffff");
+            fail("The failed flush should have been thrown");
+        }
+        catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof SQLException);
+        }
+        // The failure is only thrown once
+        this.loader.add("fffffff");
+    }
+
+    @Test
+    public void testAdaptiveFlushSizeGrowsAfterFastFlushes() {
+        this.loader.setAdaptiveFlushSize(new AdaptiveFlushSize(1, 16, 1, TimeUnit.SECONDS));
+        addAll(ROWS);
+        // The flush size doubles after each flush until it no longer fits a single row
+        assertEquals(ImmutableList.of("aaaaaaa", "bbbbbbb", "ccccccc", "ddddddd\neeeeeee"), this.loads);
+        assertEquals(16, this.loader.getAdaptiveFlushSize().getFlushSize());
+    }
+
+    @Test
+    public void testFlushIfOlderThan() {
+        assertEquals(1000, this.loader.flushIfOlderThan(1000));
+        this.loader.add("aaaaaaa");
+        long remaining = this.loader.flushIfOlderThan(TimeUnit.HOURS.toNanos(1));
+        assertTrue(remaining > 0 && remaining <= TimeUnit.HOURS.toNanos(1));
+        assertTrue(this.loads.isEmpty());
+
+        assertEquals(1, this.loader.flushIfOlderThan(1));
+        assertEquals(ImmutableList.of("aaaaaaa"), this.loads);
+        // Nothing is left to flush
+        this.loader.flushIfOlderThan(0);
+        assertEquals(1, this.loads.size());
+    }
+
+    @Test
+    public void testMaxLatencyFlushesRowsThatTrickleIn() throws Exception {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            this.loader.setMaxLatency(scheduler, 50, TimeUnit.MILLISECONDS);
+            this.loader.add("aaaaaaa");
+            waitForLoads(1);
+            this.loader.add("bbbbbbb");
+            waitForLoads(2);
+            assertEquals(ImmutableList.of("aaaaaaa", "bbbbbbb"), this.loads);
+            this.loader.close();
+        }
+        finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testStreamingLoadsAllBuffersWithOneStatement() throws Exception {
+        this.loader.setAsyncFlushing(this.executor, 2);
+        this.loader.setStreaming(0, 0, 1, TimeUnit.MINUTES);
+        addAll(ROWS);
+        this.loader.flush();
+        assertEquals(ImmutableList.of("aaaaaaa\nbbbbbbb\nccccccc\nddddddd\neeeeeee"), this.loads);
+        verify(this.statement, times(1)).execute(anyString());
+    }
+
+    @Test
+    public void testStreamingEndsStatementAfterMaxRows() {
+        this.loader.setAsyncFlushing(this.executor, 3);
+        this.loader.setStreaming(4, 0, 1, TimeUnit.MINUTES);
+        addAll(ROWS);
+        this.loader.flush();
+        assertEquals(ImmutableList.of("aaaaaaa\nbbbbbbb\nccccccc\nddddddd", "eeeeeee"), this.loads);
+    }
+
+    @Test
+    public void testStreamingEndsIdleStatement() throws Exception {
+        this.loader.setAsyncFlushing(this.executor, 2);
+        this.loader.setStreaming(0, 0, 100, TimeUnit.MILLISECONDS);
+        addAll(ROWS.subList(0, 3));
+        // The statement ends by itself once no rows have arrived before the time limit
+        waitForLoads(1);
+        assertEquals(ImmutableList.of("aaaaaaa\nbbbbbbb"), this.loads);
+        this.loader.flush();
+        assertEquals(ImmutableList.of("aaaaaaa\nbbbbbbb", "ccccccc"), this.loads);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testStreamingRequiresAsyncFlushing() {
+        this.loader.setStreaming(0, 0, 1, TimeUnit.MINUTES);
+    }
+
+    @Test
+    public void testConnectionPoolLoadsBuffersAtTheSameTime() throws Exception {
+        final CountDownLatch concurrentLoads = new CountDownLatch(2);
+        when(this.statement.execute(anyString())).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                if (((String) invocation.getArguments()[0]).startsWith("LOAD DATA")) {
+                    concurrentLoads.countDown();
+                    assertTrue(concurrentLoads.await(5, TimeUnit.SECONDS));
+                }
+                return false;
+            }
+        });
+        Connection pooledConnection = mock(Connection.class);
+        when(pooledConnection.createStatement()).thenReturn(this.statement);
+        DataSource dataSource = mock(DataSource.class);
+        when(dataSource.getConnection()).thenReturn(this.connection, pooledConnection);
+        InfileConnectionPool pool = new InfileConnectionPool(
+                dataSource, 2, ImmutableList.of("SET FOREIGN_KEY_CHECKS = 0"), ImmutableList.<String>of());
+        ExecutorService parallelExecutor = Executors.newFixedThreadPool(2);
+        try {
+            this.loader.setAsyncFlushing(parallelExecutor, 3);
+            this.loader.setConnectionPool(pool);
+            addAll(ROWS.subList(0, 4));
+            this.loader.flush();
+            assertEquals(ImmutableSet.of("aaaaaaa\nbbbbbbb", "ccccccc\nddddddd"), ImmutableSet.copyOf(this.loads));
+            verify(dataSource, times(2)).getConnection();
+        }
+        finally {
+            parallelExecutor.shutdownNow();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testConnectionPoolRequiresAsyncFlushing() {
+        this.loader.setConnectionPool(mock(InfileConnectionPool.class));
+    }
+
+    @Test
+    public void testRetriesDeadlockedLoad() throws Exception {
+        when(this.statement.execute(anyString()))
+                .thenThrow(new SQLException("Deadlock found when trying to get lock", "40001", 1213))
+                .thenReturn(false);
+        this.loader.setRetryPolicy(new RetryPolicy(2, 0, 0, TimeUnit.MILLISECONDS));
+        addAll(ROWS.subList(0, 2));
+        this.loader.flush();
+        // The same rows are read again for the retry
+        assertEquals(ImmutableList.of("aaaaaaa\nbbbbbbb", "aaaaaaa\nbbbbbbb"), this.loads);
+        verify(this.statement, times(2)).execute(anyString());
+    }
+
+    @Test
+    public void testDoesNotRetryPermanentFailure() throws Exception {
+        when(this.statement.execute(anyString()))
+                .thenThrow(new SQLException("Duplicate entry '1' for key 'PRIMARY'", "23000", 1062));
+        this.loader.setRetryPolicy(new RetryPolicy(3, 0, 0, TimeUnit.MILLISECONDS));
+        addAll(ROWS.subList(0, 2));
+        try {
+            this.loader.flush();
+            fail("The load should have failed");
+        }
+        catch (RuntimeException e) {
+            assertEquals(1062, ((SQLException) e.getCause()).getErrorCode());
+        }
+        verify(this.statement).execute(anyString());
+    }
+
+    @Test
+    public void testFailedFlushKeepsRows() throws Exception {
+        when(this.statement.execute(anyString()))
+                .thenThrow(new SQLException("Duplicate entry '1' for key 'PRIMARY'", "23000", 1062))
+                .thenReturn(false);
+        addAll(ROWS.subList(0, 1));
+        try {
+            this.loader.flush();
+            fail("The load should have failed");
+        }
+        catch (RuntimeException e) {
+            assertEquals(1062, ((SQLException) e.getCause()).getErrorCode());
+        }
+        // Rows added after the failure are loaded together with the rows that failed
+        addAll(ROWS.subList(1, 2));
+        this.loader.flush();
+        assertEquals(ImmutableList.of("aaaaaaa", "aaaaaaa\nbbbbbbb"), this.loads);
+        this.loader.flush();
+        assertEquals("", this.loads.get(2));
+    }
+
+    @Test
+    public void testRetriesBrokenConnectionOnFreshConnection() throws Exception {
+        Connection brokenConnection = mock(Connection.class);
+        Statement brokenStatement = mock(Statement.class);
+        when(brokenConnection.createStatement()).thenReturn(brokenStatement);
+        when(brokenStatement.execute(anyString())).thenThrow(new SQLException("Communications link failure", "08S01"));
+        DataSource dataSource = mock(DataSource.class);
+        when(dataSource.getConnection()).thenReturn(brokenConnection, this.connection);
+        this.loader.setAsyncFlushing(this.executor, 2);
+        this.loader.setConnectionPool(new InfileConnectionPool(
+                dataSource, 1, ImmutableList.<String>of(), ImmutableList.<String>of()));
+        this.loader.setRetryPolicy(new RetryPolicy(2, 0, 0, TimeUnit.MILLISECONDS));
+        addAll(ROWS.subList(0, 2));
+        this.loader.flush();
+        verify(brokenConnection).close();
+        verify(this.statement).execute(anyString());
+        assertEquals("aaaaaaa\nbbbbbbb", this.loads.get(this.loads.size() - 1));
+    }
+
+    @Test
+    public void testWarningsAccumulateAcrossFlushes() throws Exception {
+        when(this.statement.getWarnings()).thenReturn(
+                new SQLWarning("Data truncated for column 'a'", "01000", 1265),
+                null,
+                new SQLWarning("Data truncated for column 'b'", "01000", 1265));
+        addAll(ROWS);
+        this.loader.flush();
+        assertEquals(2, this.loader.getInfileWarnings().getCount());
+        assertEquals(2, this.loader.getWarnings().size());
+    }
+
+    @Test
+    public void testWarningsOffDoesNotReadWarnings() throws Exception {
+        this.loader.setInfileWarnings(new InfileWarnings(InfileWarnings.Mode.OFF, 0));
+        addAll(ROWS);
+        this.loader.flush();
+        verify(this.statement, never()).getWarnings();
+        assertTrue(this.loader.getWarnings().isEmpty());
+    }
+
+    private void waitForLoads(int count) throws InterruptedException {
+        for (int i = 0; i < 100 && this.loads.size() < count; i++) {
+            Thread.sleep(50);
+        }
+    }
+
+    private void addAll(List<String> rows) {
+        for (String row : rows) {
+            this.loader.add(row);
+        }
+    }
+
+    /**
+     * Loads each string as a row with a single column.
+     */
+    private static class StringLoader extends InfileObjectLoader<String> {
+        StringLoader(InfileDataBuffer infileDataBuffer, Connection connection) {
+            this.infileDataBuffer = infileDataBuffer;
+            this.connection = connection;
+            this.loadInfileSql = "LOAD DATA LOCAL INFILE 'stream' INTO TABLE strings (value)";
+        }
+
+        InfileDataBuffer getInfileDataBuffer() {
+            return this.infileDataBuffer;
+        }
+
+        @Override
+        public void convertToInfileRow(String entity, InfileRow infileRow) {
+            infileRow.append(entity);
+        }
+    }
+}
@@ -2,25 +2,43 @@ package com.opower.persistence.jpile.loader;
 
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.io.Files;
 import com.opower.persistence.jpile.AbstractIntTestForJPile;
+import com.opower.persistence.jpile.infile.BufferAllocator;
+import com.opower.persistence.jpile.infile.BufferPool;
+import com.opower.persistence.jpile.infile.InfileDataBuffer;
+import com.opower.persistence.jpile.infile.InfileSpool;
+import com.opower.persistence.jpile.infile.InfileSpoolReplayer;
 import com.opower.persistence.jpile.sample.Contact;
 import com.opower.persistence.jpile.sample.Customer;
 import com.opower.persistence.jpile.sample.Data;
 import com.opower.persistence.jpile.sample.ObjectFactory;
 import com.opower.persistence.jpile.sample.Product;
+import com.opower.persistence.jpile.sample.Reading;
 import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
 
+import javax.sql.DataSource;
+import java.io.File;
+import java.math.BigDecimal;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertNull;
 import static junit.framework.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
@@ -33,6 +51,11 @@ import static org.mockito.Mockito.verify;
  * @author amir.raminfar
  */
 public class IntTestHierarchicalInfileObjectLoader extends AbstractIntTestForJPile {
+    // Small enough that a hundred customers fill several buffers of each table
+    private static final int SMALL_BUFFER_SIZE = 512;
+    // The tables that persisting customers writes to
+    private static final int CUSTOMER_TABLES = 5;
+
     @Test
     public void testSingleCustomer() throws Exception {
         // Note, this SimpleDateFormat does NOT match the DATE_TIME_FORMATTER in the InfileDataBuffer.  The database
@@ -118,6 +141,122 @@ public class IntTestHierarchicalInfileObjectLoader extends AbstractIntTestForJPi
         }
     }
 
+    @Test
+    public void testAsyncFlushingLoadsFullBuffersWhilePersisting() {
+        this.hierarchicalInfileObjectLoader.setBufferSize(SMALL_BUFFER_SIZE);
+        this.hierarchicalInfileObjectLoader.setBuffersPerTable(2);
+        int loads = loadStatements();
+        persistHundredCustomers();
+        // The customers fill several buffers, and a buffer is only reused once its background load has finished
+        assertTrue(countFromOtherConnection("customer") > 0);
+        this.hierarchicalInfileObjectLoader.flush();
+        assertEquals(100, this.jdbcTemplate.queryForObject("select count(*) from customer", Integer.class).intValue());
+        assertTrue(loadStatements() - loads > CUSTOMER_TABLES);
+    }
+
+    @Test
+    public void testStreamingLoadsSeveralBuffersWithOneStatement() throws NoSuchAlgorithmException {
+        this.hierarchicalInfileObjectLoader.setBufferSize(SMALL_BUFFER_SIZE);
+        this.hierarchicalInfileObjectLoader.setStreaming(0, 0, 1, TimeUnit.MINUTES);
+        int loads = loadStatements();
+        // More than 40 bytes for each row fill several buffers of a single table
+        for (int i = 0; i < 100; i++) {
+            Data data = new Data();
+            data.setName("data" + i);
+            data.setMd5(toMd5(data.getName()));
+            this.hierarchicalInfileObjectLoader.persist(data);
+        }
+        this.hierarchicalInfileObjectLoader.flush();
+        assertEquals(100, this.jdbcTemplate.queryForObject("select count(*) from binary_data", Integer.class).intValue());
+        assertEquals(1, loadStatements() - loads);
+    }
+
+    @Test
+    public void testMaxLatencyFlushesWithoutCallingFlush() throws InterruptedException {
+        this.hierarchicalInfileObjectLoader.setMaxLatency(100, TimeUnit.MILLISECONDS);
+        this.hierarchicalInfileObjectLoader.persist(ObjectFactory.newCustomer());
+        int count = 0;
+        for (int i = 0; i < 50 && count == 0; i++) {
+            Thread.sleep(100);
+            count = this.jdbcTemplate.queryForObject("select count(*) from customer", Integer.class);
+        }
+        assertEquals(1, count);
+    }
+
+    @Test
+    public void testMemoryBudgetFlushesWhilePersisting() {
+        // A budget of two infile buffers forces the largest tables to be flushed while persisting, long before any of
+        // the buffers is full
+        BufferPool bufferPool = new BufferPool(BufferAllocator.HEAP, 2L * InfileDataBuffer.DEFAULT_INFILE_BUFFER_SIZE);
+        this.hierarchicalInfileObjectLoader.setBufferAllocator(bufferPool);
+        int loads = loadStatements();
+        persistHundredCustomers();
+        assertTrue(loadStatements() > loads);
+        this.hierarchicalInfileObjectLoader.flush();
+        assertEquals(100, this.jdbcTemplate.queryForObject("select count(*) from customer", Integer.class).intValue());
+        assertFalse(bufferPool.isExceeded());
+    }
+
+    @Test
+    public void testParallelFlushingLoadsBuffersAtTheSameTime() {
+        final AtomicInteger connections = new AtomicInteger();
+        DataSource dataSource = new DelegatingDataSource(newDataSource()) {
+            @Override
+            public Connection getConnection() throws SQLException {
+                connections.incrementAndGet();
+                return super.getConnection();
+            }
+        };
+        this.hierarchicalInfileObjectLoader.setBufferSize(SMALL_BUFFER_SIZE);
+        this.hierarchicalInfileObjectLoader.setParallelFlushing(dataSource, 3);
+        int loads = loadStatements();
+        persistHundredCustomers();
+        this.hierarchicalInfileObjectLoader.flush();
+        assertEquals(100, this.jdbcTemplate.queryForObject("select count(*) from customer", Integer.class).intValue());
+        assertTrue(loadStatements() - loads > CUSTOMER_TABLES);
+        // The pool only opens another connection while all of its connections are loading
+        assertTrue(connections.get() > 1);
+    }
+
+    @Test
+    public void testSpoolAndReplay() {
+        File directory = Files.createTempDir();
+        HierarchicalInfileObjectLoader spoolingLoader = new HierarchicalInfileObjectLoader();
+        spoolingLoader.setSpool(new InfileSpool(directory));
+        for (int i = 0; i < 100; i++) {
+            spoolingLoader.persist(ObjectFactory.newCustomer());
+        }
+        spoolingLoader.close();
+        assertEquals(0, this.jdbcTemplate.queryForObject("select count(*) from customer", Integer.class).intValue());
+
+        new InfileSpoolReplayer(directory).replay(this.connection);
+        assertEquals(100, this.jdbcTemplate.queryForObject("select count(*) from customer", Integer.class).intValue());
+    }
+
+    /**
+     * Verify that an entity with field access and no setters is persisted with the values of its fields, and gets its
+     * generated id and the id of its related entity.
+     */
+    @Test
+    public void testFieldAccess() {
+        SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        Customer customer = ObjectFactory.newCustomer();
+        Date readOn = new Date();
+        Reading reading = new Reading(customer, readOn, 12.5, true);
+
+        this.hierarchicalInfileObjectLoader.persist(reading);
+        this.hierarchicalInfileObjectLoader.flush();
+        Map<String, Object> actual = this.jdbcTemplate.queryForMap("select * from reading");
+
+        assertNotNull(reading.getId());
+        assertEquals(reading.getId(), actual.get("id"));
+        assertEquals(customer.getId().intValue(), actual.get("customer_id"));
+        assertEquals(simpleDateFormat.format(readOn), simpleDateFormat.format(actual.get("read_on")));
+        assertEquals(0, new BigDecimal("12.5").compareTo((BigDecimal) actual.get("kwh")));
+        assertEquals(Boolean.TRUE, actual.get("estimated"));
+        assertEquals(1, this.jdbcTemplate.queryForObject("select count(*) from customer", Integer.class).intValue());
+    }
+
     @Test
     public void testBinaryDataToHex() throws NoSuchAlgorithmException {
         String string = "Data to be inserted";
@@ -143,6 +282,26 @@ public class IntTestHierarchicalInfileObjectLoader extends AbstractIntTestForJPi
         assertTrue(Arrays.equals(md5, actual.getMd5()));
     }
 
+    @Test
+    public void testRawBinaryData() throws NoSuchAlgorithmException {
+        byte[] md5 = toMd5("Data to be inserted");
+        // Make sure every byte that needs escaping is in there
+        md5[0] = '\0';
+        md5[1] = '\n';
+        md5[2] = '\t';
+        md5[3] = '\\';
+        Data data = new Data();
+        data.setName("raw");
+        data.setMd5(md5);
+
+        this.hierarchicalInfileObjectLoader.setUseRawBinary(true);
+        this.hierarchicalInfileObjectLoader.persist(data);
+        this.hierarchicalInfileObjectLoader.flush();
+
+        byte[] actual = this.jdbcTemplate.queryForObject("select md5 from binary_data", byte[].class);
+        assertTrue(Arrays.equals(md5, actual));
+    }
+
     @Test
     @SuppressWarnings({"rawtypes", "deprecation"}) // Testing deprecated method
     public void testClassesToIgnore() {
@@ -209,6 +368,25 @@ public class IntTestHierarchicalInfileObjectLoader extends AbstractIntTestForJPi
         assertEquals("D\ba\nv\ri\td\0D\\D\u001A", actual.get("first_name"));
     }
 
+    private void persistHundredCustomers() {
+        for (int i = 0; i < 100; i++) {
+            this.hierarchicalInfileObjectLoader.persist(ObjectFactory.newCustomer());
+        }
+    }
+
+    /**
+     * Counts the {@code LOAD DATA} statements of the server, on another connection so that this can be called while
+     * the loader flushes in the background.
+     */
+    private static int loadStatements() {
+        Map<String, Object> status = new JdbcTemplate(newDataSource()).queryForMap("show global status like 'Com_load'");
+        return Integer.parseInt(status.get("Value").toString());
+    }
+
+    private static int countFromOtherConnection(String table) {
+        return new JdbcTemplate(newDataSource()).queryForObject("select count(*) from " + table, Integer.class);
+    }
+
     private byte[] toMd5(String s) throws NoSuchAlgorithmException {
         MessageDigest md = MessageDigest.getInstance("MD5");
         md.update(s.getBytes());
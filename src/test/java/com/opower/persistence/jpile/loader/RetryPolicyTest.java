@@ -0,0 +1,66 @@
+package com.opower.persistence.jpile.loader;
+
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link RetryPolicy}.
+ *
+ * @author agent
+ */
+public class RetryPolicyTest {
+    private static final SQLException DEADLOCK =
+            new SQLException("Deadlock found when trying to get lock", "40001", 1213);
+    private static final SQLException LOCK_WAIT_TIMEOUT =
+            new SQLException("Lock wait timeout exceeded", "HY000", 1205);
+    private static final SQLException COMMUNICATIONS_FAILURE =
+            new SQLException("Communications link failure", "08S01", 0);
+    private static final SQLException DUPLICATE_KEY =
+            new SQLException("Duplicate entry '1' for key 'PRIMARY'", "23000", 1062);
+
+    private final RetryPolicy retryPolicy = new RetryPolicy(3, 100, 250, TimeUnit.MILLISECONDS);
+
+    @Test
+    public void testTransientFailures() {
+        assertTrue(RetryPolicy.isTransient(DEADLOCK));
+        assertTrue(RetryPolicy.isTransient(LOCK_WAIT_TIMEOUT));
+        assertTrue(RetryPolicy.isTransient(COMMUNICATIONS_FAILURE));
+        assertTrue(RetryPolicy.isTransient(new SQLTransientConnectionException()));
+        // JdbcUtil wraps SQL exceptions
+        assertTrue(RetryPolicy.isTransient(new RuntimeException(DEADLOCK)));
+        assertFalse(RetryPolicy.isTransient(DUPLICATE_KEY));
+        assertFalse(RetryPolicy.isTransient(new IllegalStateException()));
+    }
+
+    @Test
+    public void testConnectionFailures() {
+        assertTrue(RetryPolicy.isConnectionFailure(new RuntimeException(COMMUNICATIONS_FAILURE)));
+        assertFalse(RetryPolicy.isConnectionFailure(DEADLOCK));
+        assertFalse(this.retryPolicy.shouldReplaceConnection(DEADLOCK));
+        this.retryPolicy.setFreshConnection(true);
+        assertTrue(this.retryPolicy.shouldReplaceConnection(DEADLOCK));
+    }
+
+    @Test
+    public void testRetriesUpToMaxAttempts() {
+        assertTrue(this.retryPolicy.shouldRetry(DEADLOCK, 1));
+        assertTrue(this.retryPolicy.shouldRetry(DEADLOCK, 2));
+        assertFalse(this.retryPolicy.shouldRetry(DEADLOCK, 3));
+        assertFalse(this.retryPolicy.shouldRetry(DUPLICATE_KEY, 1));
+    }
+
+    @Test
+    public void testBackoffDoublesUpToMaximum() {
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), this.retryPolicy.getBackoffNanos(1));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(200), this.retryPolicy.getBackoffNanos(2));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(250), this.retryPolicy.getBackoffNanos(3));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(250), this.retryPolicy.getBackoffNanos(100));
+    }
+}
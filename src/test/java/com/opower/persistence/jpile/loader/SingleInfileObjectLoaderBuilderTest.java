@@ -1,5 +1,6 @@
 package com.opower.persistence.jpile.loader;
 
+import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -7,25 +8,36 @@ import com.google.common.io.CharStreams;
 import com.mysql.jdbc.Statement;
 import com.opower.persistence.jpile.infile.InfileDataBuffer;
 import com.opower.persistence.jpile.reflection.PersistenceAnnotationInspector;
+import com.opower.persistence.jpile.sample.Contact;
 import com.opower.persistence.jpile.sample.Customer;
+import com.opower.persistence.jpile.sample.Data;
+import com.opower.persistence.jpile.sample.ObjectFactory;
+import com.opower.persistence.jpile.sample.Product;
+import com.opower.persistence.jpile.sample.Reading;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import javax.persistence.Column;
+import javax.persistence.Entity;
 import javax.persistence.EnumType;
 import javax.persistence.Enumerated;
+import javax.persistence.Id;
+import javax.persistence.Table;
 import java.io.InputStreamReader;
 import java.lang.reflect.Method;
 import java.sql.Connection;
 import java.sql.ResultSet;
+import java.util.Date;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertTrue;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -93,6 +105,150 @@ public class SingleInfileObjectLoaderBuilderTest {
         verify(statement).execute(anyString());
     }
 
+    @Test
+    public void testFlushWhenRowWrittenInPlaceDoesNotFit() throws Exception {
+        InfileDataBuffer infileDataBuffer = new InfileDataBuffer(Charsets.UTF_8, 15, 15);
+        infileDataBuffer.setWriteRowsInPlace(true);
+        SingleInfileObjectLoader<Customer> customerLoader = new SingleInfileObjectLoaderBuilder<>(Customer.class)
+                .withDefaultTableName()
+                .withJdbcConnection(connection)
+                .usingAnnotationInspector(new PersistenceAnnotationInspector())
+                .withBuffer(infileDataBuffer)
+                .build();
+
+        customerLoader.add(new Customer());
+        verify(statement, never()).execute(anyString());
+        customerLoader.add(new Customer());
+        verify(statement).execute(anyString());
+        assertEquals("125\t\\N\t\\N", CharStreams.toString(new InputStreamReader(infileDataBuffer.asInputStream())));
+    }
+
+    @Test
+    public void testBinaryColumnsAreHexByDefault() throws Exception {
+        SingleInfileObjectLoader<Data> dataLoader = newDataLoader(false);
+        assertEquals("LOAD DATA LOCAL INFILE 'stream' INTO TABLE binary_data (id,@hexmd5,name) SET md5=unhex(@hexmd5)",
+                dataLoader.loadInfileSql);
+        dataLoader.add(newData());
+        assertEquals("1\t0a5c\tdata", CharStreams.toString(
+                new InputStreamReader(dataLoader.getInfileDataBuffer().asInputStream())));
+    }
+
+    @Test
+    public void testRawBinaryColumns() throws Exception {
+        SingleInfileObjectLoader<Data> dataLoader = newDataLoader(true);
+        assertEquals("LOAD DATA LOCAL INFILE 'stream' INTO TABLE binary_data (id,md5,name) ", dataLoader.loadInfileSql);
+        dataLoader.add(newData());
+        assertEquals("1\t\\\n\\\\\tdata", CharStreams.toString(
+                new InputStreamReader(dataLoader.getInfileDataBuffer().asInputStream())));
+    }
+
+    @Test
+    public void testGeneratedRowWriterWritesSameRowsAsReflection() throws Exception {
+        Customer customer = ObjectFactory.newCustomer();
+        customer.setId(1L);
+        Product product = customer.getProducts().get(0);
+        product.setId(2L);
+        product.getSupplier().setId(3L);
+        product.setTitle("Title\twith a tab");
+        Contact contact = customer.getContacts().get(0);
+        contact.getContactPK().setCustomer(customer);
+
+        assertEquals(row(Customer.class, customer, false), row(Customer.class, customer, true));
+        assertEquals(row(Product.class, product, false), row(Product.class, product, true));
+        assertEquals(row(Contact.class, contact, false), row(Contact.class, contact, true));
+        assertEquals(row(Data.class, newData(), false), row(Data.class, newData(), true));
+    }
+
+    @Test
+    public void testFieldAccess() throws Exception {
+        Customer customer = new Customer();
+        customer.setId(7L);
+        Reading reading = new Reading(customer, new Date(0), 1.23456, true);
+        SingleInfileObjectLoader<Reading> loader = new SingleInfileObjectLoaderBuilder<>(Reading.class)
+                .withDefaultTableName()
+                .withJdbcConnection(connection)
+                .usingAnnotationInspector(new PersistenceAnnotationInspector())
+                .withBuffer(new InfileDataBuffer())
+                .build();
+
+        assertEquals(ImmutableSet.of("id", "customer_id", "read_on", "kwh", "estimated"), loader.getMappings().keySet());
+        assertEquals(Reading.class.getDeclaredField("kwh"), loader.getMappings().get("kwh"));
+        assertTrue(loader.isAutoGenerateId());
+        assertEquals("LOAD DATA LOCAL INFILE 'stream' INTO TABLE reading (customer_id,estimated,id,kwh,read_on) ",
+                     loader.loadInfileSql);
+
+        loader.add(reading);
+        assertEquals(AUTO_GENERATED_ID + 1, reading.getId().longValue());
+        String row = CharStreams.toString(new InputStreamReader(loader.getInfileDataBuffer().asInputStream()));
+        assertTrue(row, row.startsWith("7\t1\t124\t1.235\t"));
+        assertEquals(row, row(Reading.class, new Reading(customer, new Date(0), 1.23456, true), false));
+    }
+
+    @Test
+    public void testFieldAccessWithPublicFieldsGeneratesRowWriter() throws Exception {
+        PublicFields entity = new PublicFields();
+        entity.id = 1L;
+        entity.name = "name";
+        entity.count = 3;
+
+        assertEquals(row(PublicFields.class, entity, false), row(PublicFields.class, entity, true));
+        assertEquals("3\t1\tname", row(PublicFields.class, entity, true));
+        SingleInfileObjectLoader<PublicFields> loader = new SingleInfileObjectLoaderBuilder<>(PublicFields.class)
+                .withDefaultTableName()
+                .withJdbcConnection(connection)
+                .usingAnnotationInspector(new PersistenceAnnotationInspector())
+                .withBuffer(new InfileDataBuffer())
+                .build();
+        assertTrue(loader.rowWriter.getClass().getName().startsWith(PublicFields.class.getName() + "$$InfileRowWriter$$"));
+    }
+
+    private <T> String row(Class<T> type, T entity, boolean generateRowWriter) throws Exception {
+        SingleInfileObjectLoader<T> loader = new SingleInfileObjectLoaderBuilder<>(type)
+                .withDefaultTableName()
+                .withJdbcConnection(connection)
+                .usingAnnotationInspector(new PersistenceAnnotationInspector())
+                .withBuffer(new InfileDataBuffer())
+                .generateRowWriter(generateRowWriter)
+                .build();
+        assertEquals(generateRowWriter, loader.rowWriter != null);
+        loader.add(entity);
+        return CharStreams.toString(new InputStreamReader(loader.getInfileDataBuffer().asInputStream()));
+    }
+
+    private SingleInfileObjectLoader<Data> newDataLoader(boolean useRawBinary) {
+        return new SingleInfileObjectLoaderBuilder<>(Data.class)
+                .withDefaultTableName()
+                .withJdbcConnection(connection)
+                .usingAnnotationInspector(new PersistenceAnnotationInspector())
+                .withBuffer(new InfileDataBuffer())
+                .useRawBinary(useRawBinary)
+                .build();
+    }
+
+    private static Data newData() {
+        Data data = new Data();
+        data.setId(1L);
+        data.setName("data");
+        data.setMd5(new byte[] {'\n', '\\'});
+        return data;
+    }
+
+    /**
+     * An entity with field access whose fields are public.
+     */
+    @Entity
+    @Table(name = "public_fields")
+    public static class PublicFields {
+        @Id
+        public Long id;
+
+        @Column(name = "name")
+        public String name;
+
+        @Column(name = "count")
+        public int count;
+    }
+
     /**
      * An enum used for testing.
      */
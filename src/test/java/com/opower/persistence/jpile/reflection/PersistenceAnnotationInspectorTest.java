@@ -1,9 +1,13 @@
 package com.opower.persistence.jpile.reflection;
 
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.util.Date;
 import java.util.List;
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.ManyToOne;
 import javax.persistence.OneToOne;
 import javax.persistence.PrimaryKeyJoinColumn;
 import javax.persistence.SecondaryTables;
@@ -11,13 +15,16 @@ import javax.persistence.Table;
 import javax.persistence.Temporal;
 
 import com.google.common.collect.ImmutableList;
+import com.opower.persistence.jpile.sample.Address;
 import com.opower.persistence.jpile.sample.Contact;
 import com.opower.persistence.jpile.sample.Customer;
 import com.opower.persistence.jpile.sample.Product;
+import com.opower.persistence.jpile.sample.Reading;
 import org.junit.Test;
 
 import static junit.framework.Assert.assertNull;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
@@ -162,6 +169,40 @@ public class PersistenceAnnotationInspectorTest {
         );
     }
 
+    @Test
+    public void testIsFieldAccess() {
+        assertTrue(annotationInspector.isFieldAccess(Reading.class));
+        assertFalse(annotationInspector.isFieldAccess(Customer.class));
+        assertFalse(annotationInspector.isFieldAccess(Address.class));
+    }
+
+    @Test
+    public void testIdMember() throws Exception {
+        assertEquals(Reading.class.getDeclaredField("id"), annotationInspector.idMember(Reading.class));
+        assertEquals(Customer.class.getMethod("getId"), annotationInspector.idMember(Customer.class));
+    }
+
+    @Test
+    public void testMembersAnnotatedWithFieldAccess() throws Exception {
+        List<? extends PersistenceAnnotationInspector.AnnotatedMember<Column>> members =
+                annotationInspector.annotatedMembersWith(Reading.class, Column.class);
+        assertEquals(3, members.size());
+        for (PersistenceAnnotationInspector.AnnotatedMember<Column> member : members) {
+            assertTrue(member.getMember() instanceof Field);
+        }
+        assertEquals(ImmutableList.<AccessibleObject>of(Reading.class.getDeclaredField("customer")),
+                     annotationInspector.membersAnnotatedWith(Reading.class, ManyToOne.class));
+    }
+
+    @Test
+    public void testIdValueWithFieldAccess() {
+        Reading reading = new Reading(null, new Date(), 1.5, false);
+        assertNull(PersistenceAnnotationInspector.getIdValue(annotationInspector, reading));
+        PersistenceAnnotationInspector.setIdValue(annotationInspector, reading, 5L);
+        assertEquals(5L, reading.getId().longValue());
+        assertEquals(5L, PersistenceAnnotationInspector.getIdValue(annotationInspector, reading));
+    }
+
     @Test
     public void testGetterFromSetterWithGetBoolean() throws Exception {
         assertEquals(
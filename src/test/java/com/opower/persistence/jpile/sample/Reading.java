@@ -0,0 +1,55 @@
+package com.opower.persistence.jpile.sample;
+
+import javax.persistence.Access;
+import javax.persistence.AccessType;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import java.util.Date;
+
+/**
+ * A sample pojo object with field access for testing. It has no setters, and none of its getters are annotated.
+ *
+ * @author agent
+ * @since 1.7.12
+ */
+@Entity
+@Access(AccessType.FIELD)
+@Table(name = "reading")
+public class Reading {
+    @Id
+    @GeneratedValue(strategy = GenerationType.AUTO)
+    private Long id;
+
+    @ManyToOne
+    @JoinColumn(name = "customer_id")
+    private Customer customer;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "read_on")
+    private Date readOn;
+
+    @Column(name = "kwh", precision = 10, scale = 3)
+    private double kwh;
+
+    @Column(name = "estimated")
+    private boolean estimated;
+
+    public Reading(Customer customer, Date readOn, double kwh, boolean estimated) {
+        this.customer = customer;
+        this.readOn = readOn;
+        this.kwh = kwh;
+        this.estimated = estimated;
+    }
+
+    public Long getId() {
+        return id;
+    }
+}